@@ -0,0 +1,47 @@
+package com.akkasamples.iottempmanager.benchmarks;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.pattern.PatternsCS;
+import akka.util.Timeout;
+
+/**
+ * Shared setup for the benchmarks: actor systems with hot-path logging turned down so
+ * that stdout does not dominate the numbers, and a blocking ask for the benchmark thread.
+ */
+final class BenchmarkSystems {
+	static final Timeout TIMEOUT = new Timeout(10, TimeUnit.SECONDS);
+
+	private BenchmarkSystems() {
+	}
+
+	static ActorSystem create(String name) {
+		return create(name, ConfigFactory.empty());
+	}
+
+	static ActorSystem create(String name, Config overrides) {
+		Config config = overrides
+				.withFallback(ConfigFactory.parseString("akka.loglevel = WARNING\nakka.log-dead-letters = off"))
+				.withFallback(ConfigFactory.load());
+		return ActorSystem.create(name, config);
+	}
+
+	static Object ask(ActorRef actor, Object message) throws Exception {
+		return await(PatternsCS.ask(actor, message, TIMEOUT));
+	}
+
+	static <T> T await(CompletionStage<T> stage) throws Exception {
+		return stage.toCompletableFuture().get(TIMEOUT.duration().toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	static void shutdown(ActorSystem system) throws Exception {
+		system.terminate();
+		await(system.getWhenTerminated());
+	}
+}
@@ -0,0 +1,57 @@
+package com.akkasamples.iottempmanager.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.akkasamples.iottempmanager.Device;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+
+/**
+ * Round-trip throughput of a single Device: one ask per invocation, so this is the
+ * cost of a message plus its reply including the temporary ask actor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class DeviceBenchmark {
+	private ActorSystem system;
+	private ActorRef device;
+	private long requestId;
+
+	@Setup
+	public void setup() {
+		system = BenchmarkSystems.create("device-benchmark");
+		device = system.actorOf(Device.props("group", "device"));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		BenchmarkSystems.shutdown(system);
+	}
+
+	@Benchmark
+	public Object recordTemperature() throws Exception {
+		return BenchmarkSystems.ask(device, new Device.RecordTemperature(requestId++, 21.5));
+	}
+
+	@Benchmark
+	public Object readTemperature() throws Exception {
+		return BenchmarkSystems.ask(device, new Device.ReadTemperature(requestId++));
+	}
+}
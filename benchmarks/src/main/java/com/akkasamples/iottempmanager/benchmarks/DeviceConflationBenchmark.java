@@ -0,0 +1,65 @@
+package com.akkasamples.iottempmanager.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.akkasamples.iottempmanager.Device;
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+
+/**
+ * A sensor flooding its Device: a burst of writes, sent the way a DeviceGroup sends them,
+ * followed by a read. The time is how long the read waits behind the burst, with the
+ * default device queue and with the ConflatingDeviceMailbox.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class DeviceConflationBenchmark {
+	@Param({ "akka.dispatch.UnboundedMailbox", "com.akkasamples.iottempmanager.ConflatingDeviceMailbox" })
+	public String queue;
+
+	@Param({ "1000" })
+	public int burst;
+
+	private ActorSystem system;
+	private ActorRef device;
+	private long requestId;
+
+	@Setup
+	public void setup() {
+		system = BenchmarkSystems.create("device-conflation-benchmark",
+				ConfigFactory.parseString("iot.mailbox.device.underlying-mailbox-type = \"" + queue + "\""));
+		device = system.actorOf(Device.props("group", "device"));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		BenchmarkSystems.shutdown(system);
+	}
+
+	@Benchmark
+	public Object readBehindBurst() throws Exception {
+		for (int i = 0; i < burst; i++) {
+			device.tell(new Device.RecordTemperatures(requestId++, new double[] { 21.5 }, new long[] { requestId }), ActorRef.noSender());
+		}
+		return BenchmarkSystems.ask(device, new Device.ReadTemperature(requestId++));
+	}
+}
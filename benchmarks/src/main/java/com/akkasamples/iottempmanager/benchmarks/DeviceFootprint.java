@@ -0,0 +1,111 @@
+package com.akkasamples.iottempmanager.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.akkasamples.iottempmanager.DeviceManager;
+import com.akkasamples.iottempmanager.IoTManager;
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.pattern.PatternsCS;
+
+/**
+ * Heap retained per registered device, with every Device actor running against every
+ * device passivated into its group's table. Not a JMH benchmark, JMH measures time; this
+ * registers the devices with one reading each, lets them go idle and compares the live heap
+ * after a full GC with the heap before registering.
+ *
+ * Run with
+ *   ./gradlew :benchmarks:footprint
+ * or for another number of devices
+ *   ./gradlew :benchmarks:footprint -PfootprintArgs=100000
+ */
+public final class DeviceFootprint {
+	static final int SHARDS = 4;
+	static final int DEVICES_PER_GROUP = 1000;
+	static final long TIMEOUT_MILLIS = 120_000;
+	static final long PASSIVATE_AFTER_MILLIS = 2_000;
+
+	private DeviceFootprint() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int devices = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		double running = bytesPerDevice(devices, 0L);
+		double passivated = bytesPerDevice(devices, PASSIVATE_AFTER_MILLIS);
+		System.out.printf("%,d devices, one reading each%n", devices);
+		System.out.printf("  running:    %,.0f bytes per device%n", running);
+		System.out.printf("  passivated: %,.0f bytes per device%n", passivated);
+	}
+
+	static double bytesPerDevice(int devices, long passivateAfterMillis) throws Exception {
+		ActorSystem system = BenchmarkSystems.create("device-footprint", ConfigFactory.parseString(String.format(
+				"iot.device-manager.shards = %d\niot.device.passivate-after = %dms\niot.metrics.enabled = off", SHARDS, passivateAfterMillis)));
+		try {
+			ActorRef iotManager = system.actorOf(IoTManager.props(), "iot");
+			int groups = devices / DEVICES_PER_GROUP;
+			long before = liveHeap();
+			register(iotManager, groups);
+			// every device answers its registration running, idle ones stop afterwards
+			awaitRunning(iotManager, groups, passivateAfterMillis > 0 ? 0 : DEVICES_PER_GROUP);
+			return (liveHeap() - before) / (double) (groups * DEVICES_PER_GROUP);
+		} finally {
+			system.terminate();
+			system.getWhenTerminated().toCompletableFuture().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static void register(ActorRef iotManager, int groups) {
+		for (int g = 0; g < groups; g++) {
+			String[] deviceIds = new String[DEVICES_PER_GROUP];
+			double[] temperatures = new double[DEVICES_PER_GROUP];
+			long[] timestamps = new long[DEVICES_PER_GROUP];
+			for (int d = 0; d < DEVICES_PER_GROUP; d++) {
+				deviceIds[d] = "device-" + d;
+				temperatures[d] = d * 0.01;
+				timestamps[d] = 1000L;
+				iotManager.tell(new DeviceManager.RequestRegisterDevice("group-" + g, deviceIds[d]), ActorRef.noSender());
+			}
+			iotManager.tell(new DeviceManager.RecordTemperatures(g, "group-" + g, deviceIds, temperatures, timestamps), ActorRef.noSender());
+		}
+	}
+
+	// Groups answer in order, the stats come after everything sent to them before
+	private static void awaitRunning(ActorRef iotManager, int groups, int running) throws Exception {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (true) {
+			List<CompletableFuture<Object>> replies = new ArrayList<>();
+			for (int g = 0; g < groups; g++) {
+				replies.add(PatternsCS.ask(iotManager, new DeviceManager.ReadDeviceGroupStats(g, "group-" + g), TIMEOUT_MILLIS).toCompletableFuture());
+			}
+			boolean done = true;
+			for (CompletableFuture<Object> reply : replies) {
+				if (((DeviceManager.DeviceGroupStats) reply.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)).running != running) {
+					done = false;
+				}
+			}
+			if (done) {
+				return;
+			}
+			if (System.currentTimeMillis() > deadline) {
+				throw new IllegalStateException("Devices did not reach " + running + " running per group");
+			}
+			Thread.sleep(500);
+		}
+	}
+
+	private static long liveHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			Thread.sleep(200);
+			used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+		}
+		return used;
+	}
+}
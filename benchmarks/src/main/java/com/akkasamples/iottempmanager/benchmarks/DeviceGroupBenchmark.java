@@ -0,0 +1,64 @@
+package com.akkasamples.iottempmanager.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.akkasamples.iottempmanager.DeviceGroup;
+import com.akkasamples.iottempmanager.DeviceManager;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.PoisonPill;
+
+/**
+ * Registration rate of a DeviceGroup. Every invocation registers a new device, the
+ * group is replaced per iteration so that it does not grow without bound.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class DeviceGroupBenchmark {
+	private ActorSystem system;
+	private ActorRef group;
+	private long deviceNo;
+
+	@Setup
+	public void setup() {
+		system = BenchmarkSystems.create("device-group-benchmark");
+	}
+
+	@Setup(Level.Iteration)
+	public void newGroup() {
+		group = system.actorOf(DeviceGroup.props("group"));
+	}
+
+	@TearDown(Level.Iteration)
+	public void stopGroup() {
+		group.tell(PoisonPill.getInstance(), ActorRef.noSender());
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		BenchmarkSystems.shutdown(system);
+	}
+
+	@Benchmark
+	public Object registerDevice() throws Exception {
+		return BenchmarkSystems.ask(group, new DeviceManager.RequestRegisterDevice("group", "device-" + deviceNo++));
+	}
+}
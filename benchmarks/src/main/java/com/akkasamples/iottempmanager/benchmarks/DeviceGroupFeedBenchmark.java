@@ -0,0 +1,79 @@
+package com.akkasamples.iottempmanager.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.akkasamples.iottempmanager.DeviceManager;
+import com.akkasamples.iottempmanager.main.TemperatureFeed;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.stream.ActorMaterializer;
+import akka.stream.javadsl.Sink;
+
+/**
+ * Batched writes into a group with a growing number of live feed subscribers attached,
+ * each shaped like an SSE client. Conflation on the subscriber side should keep the write
+ * throughput flat as subscribers are added.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class DeviceGroupFeedBenchmark {
+	static final int DEVICES = 16;
+
+	@Param({ "0", "1000", "5000" })
+	public int subscribers;
+
+	private ActorSystem system;
+	private ActorRef deviceManager;
+	private String[] deviceIds = new String[DEVICES];
+
+	@Setup
+	public void setup() throws Exception {
+		system = BenchmarkSystems.create("device-group-feed-benchmark");
+		deviceManager = system.actorOf(DeviceManager.props());
+		for (int d = 0; d < DEVICES; d++) {
+			deviceIds[d] = "device-" + d;
+			BenchmarkSystems.ask(deviceManager, new DeviceManager.RequestRegisterDevice("group", deviceIds[d]));
+		}
+		ActorMaterializer materializer = ActorMaterializer.create(system);
+		for (int s = 0; s < subscribers; s++) {
+			DeviceManager.DeviceGroupFeed feed = (DeviceManager.DeviceGroupFeed) BenchmarkSystems.ask(deviceManager, new DeviceManager.SubscribeDeviceGroupFeed(s, "group"));
+			TemperatureFeed.serverSentEvents(feed.updates).runWith(Sink.ignore(), materializer);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		BenchmarkSystems.shutdown(system);
+	}
+
+	@Benchmark
+	public Object recordTemperatures() throws Exception {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		double[] temperatures = new double[DEVICES];
+		long[] timestamps = new long[DEVICES];
+		for (int d = 0; d < DEVICES; d++) {
+			temperatures[d] = random.nextDouble(-10.0, 40.0);
+			timestamps[d] = System.currentTimeMillis();
+		}
+		return BenchmarkSystems.ask(deviceManager, new DeviceManager.RecordTemperatures(random.nextLong(), "group", deviceIds, temperatures, timestamps));
+	}
+}
@@ -0,0 +1,85 @@
+package com.akkasamples.iottempmanager.benchmarks;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.akkasamples.iottempmanager.DeviceGroup;
+import com.akkasamples.iottempmanager.DeviceManager;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.pattern.PatternsCS;
+
+/**
+ * Latency of RequestAllTemperatures. The fresh variant spawns a DeviceGroupQuery that asks
+ * every Device of the group, the other one is answered from the latest readings kept by
+ * the group. Half of the devices have a temperature recorded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class DeviceGroupQueryBenchmark {
+	@Param({ "10", "1000", "100000" })
+	public int devicesPerGroup;
+
+	private ActorSystem system;
+	private ActorRef group;
+	private long requestId;
+
+	@Setup
+	public void setup() throws Exception {
+		system = BenchmarkSystems.create("device-group-query-benchmark");
+		group = system.actorOf(DeviceGroup.props("group"));
+		CompletableFuture<?>[] registrations = new CompletableFuture<?>[devicesPerGroup];
+		for (int i = 0; i < devicesPerGroup; i++) {
+			registrations[i] = PatternsCS.ask(group, new DeviceManager.RequestRegisterDevice("group", "device-" + i), BenchmarkSystems.TIMEOUT).toCompletableFuture();
+		}
+		BenchmarkSystems.await(CompletableFuture.allOf(registrations));
+		int recorded = (devicesPerGroup + 1) / 2;
+		String[] deviceIds = new String[recorded];
+		double[] temperatures = new double[recorded];
+		long[] timestamps = new long[recorded];
+		for (int i = 0; i < recorded; i++) {
+			deviceIds[i] = "device-" + (2 * i);
+			temperatures[i] = 20.0 + i % 10;
+			timestamps[i] = System.currentTimeMillis();
+		}
+		BenchmarkSystems.ask(group, new DeviceManager.RecordTemperatures(0L, "group", deviceIds, temperatures, timestamps));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		BenchmarkSystems.shutdown(system);
+	}
+
+	@Benchmark
+	public Object requestAllTemperatures() throws Exception {
+		return BenchmarkSystems.ask(group, new DeviceGroup.RequestAllTemperatures(requestId++, true));
+	}
+
+	@Benchmark
+	public Object requestLatestTemperatures() throws Exception {
+		return BenchmarkSystems.ask(group, new DeviceGroup.RequestAllTemperatures(requestId++, false));
+	}
+
+	@Benchmark
+	public Object requestGroupStats() throws Exception {
+		return BenchmarkSystems.ask(group, new DeviceManager.ReadDeviceGroupStats(requestId++, "group"));
+	}
+}
@@ -0,0 +1,105 @@
+package com.akkasamples.iottempmanager.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.akkasamples.iottempmanager.DeviceManager;
+import com.akkasamples.iottempmanager.IoTManager;
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+
+/**
+ * Readings per second through the IoTManager with the dispatchers of application.conf and
+ * of the high-throughput profile, alone and while another thread keeps running fresh
+ * queries over a group of QUERY_DEVICES devices. JMH applies @OperationsPerInvocation to a
+ * whole group, so withQueries counts batches of READINGS readings and queries instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class DispatcherBenchmark {
+	static final int GROUPS = 10;
+	static final int DEVICES = 100;
+	static final int QUERY_DEVICES = 10000;
+	static final int READINGS = GROUPS * DEVICES;
+
+	@Param({ "application", "high-throughput" })
+	public String profile;
+
+	private ActorSystem system;
+	private ActorRef iotManager;
+	private final String[] deviceIds = new String[DEVICES];
+	private final double[] temperatures = new double[DEVICES];
+	private final long[] timestamps = new long[DEVICES];
+
+	@Setup
+	public void setup() throws Exception {
+		system = BenchmarkSystems.create("dispatcher-benchmark",
+				"application".equals(profile) ? ConfigFactory.empty() : ConfigFactory.parseResources(profile + ".conf"));
+		iotManager = system.actorOf(IoTManager.props());
+		for (int g = 0; g < GROUPS; g++) {
+			for (int d = 0; d < DEVICES; d++) {
+				deviceIds[d] = "device-" + d;
+				temperatures[d] = d * 0.01;
+				timestamps[d] = d;
+				BenchmarkSystems.ask(iotManager, new DeviceManager.RequestRegisterDevice("group-" + g, "device-" + d));
+			}
+		}
+		for (int d = 0; d < QUERY_DEVICES; d++) {
+			BenchmarkSystems.ask(iotManager, new DeviceManager.RequestRegisterDevice("queried", "device-" + d));
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		BenchmarkSystems.shutdown(system);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(READINGS)
+	public Object recordTemperature() throws Exception {
+		return record();
+	}
+
+	@Benchmark
+	@Group("withQueries")
+	@GroupThreads(1)
+	public Object recordTemperatureWhileQuerying() throws Exception {
+		return record();
+	}
+
+	@Benchmark
+	@Group("withQueries")
+	@GroupThreads(1)
+	public Object freshGroupQuery() throws Exception {
+		return BenchmarkSystems.ask(iotManager, new DeviceManager.ReadDeviceGroupTemperature(0L, "queried", true));
+	}
+
+	// One batch per group, the read answers once the last device has its reading
+	private Object record() throws Exception {
+		for (int g = 0; g < GROUPS; g++) {
+			iotManager.tell(new DeviceManager.RecordTemperatures(g, "group-" + g, deviceIds, temperatures, timestamps), ActorRef.noSender());
+		}
+		return BenchmarkSystems.ask(iotManager, new DeviceManager.ReadDeviceTemperature(0L, "group-" + (GROUPS - 1), deviceIds[DEVICES - 1]));
+	}
+}
@@ -0,0 +1,102 @@
+package com.akkasamples.iottempmanager.benchmarks;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.akkasamples.iottempmanager.CompactDeviceGroup;
+import com.akkasamples.iottempmanager.DeviceGroup;
+import com.akkasamples.iottempmanager.DeviceManager;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.pattern.PatternsCS;
+
+/**
+ * The two iot.device-group.mode implementations side by side: a DeviceGroup asking a Device
+ * actor per device against a CompactDeviceGroup answering from its table. Every device has
+ * a reading, the devices are cycled through in order.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class GroupModeBenchmark {
+	@Param({ "actors", "compact" })
+	public String mode;
+
+	@Param({ "1000" })
+	public int devicesPerGroup;
+
+	private ActorSystem system;
+	private ActorRef group;
+	private String[] deviceIds;
+	private double[] temperatures;
+	private long[] timestamps;
+	private int next;
+	private long requestId;
+
+	@Setup
+	public void setup() throws Exception {
+		system = BenchmarkSystems.create("group-mode-benchmark");
+		group = system.actorOf(mode.equals("compact") ? CompactDeviceGroup.props("group") : DeviceGroup.props("group"));
+		deviceIds = new String[devicesPerGroup];
+		temperatures = new double[devicesPerGroup];
+		timestamps = new long[devicesPerGroup];
+		CompletableFuture<?>[] registrations = new CompletableFuture<?>[devicesPerGroup];
+		for (int i = 0; i < devicesPerGroup; i++) {
+			deviceIds[i] = "device-" + i;
+			temperatures[i] = 20.0 + i % 10;
+			timestamps[i] = i;
+			registrations[i] = PatternsCS.ask(group, new DeviceManager.RequestRegisterDevice("group", deviceIds[i]), BenchmarkSystems.TIMEOUT).toCompletableFuture();
+		}
+		BenchmarkSystems.await(CompletableFuture.allOf(registrations));
+		BenchmarkSystems.ask(group, new DeviceManager.RecordTemperatures(0L, "group", deviceIds, temperatures, timestamps));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		BenchmarkSystems.shutdown(system);
+	}
+
+	private String nextDevice() {
+		String deviceId = deviceIds[next];
+		next = next + 1 == devicesPerGroup ? 0 : next + 1;
+		return deviceId;
+	}
+
+	@Benchmark
+	public Object readTemperature() throws Exception {
+		return BenchmarkSystems.ask(group, new DeviceManager.ReadDeviceTemperature(requestId++, "group", nextDevice()));
+	}
+
+	@Benchmark
+	public Object recordTemperature() throws Exception {
+		return BenchmarkSystems.ask(group, new DeviceManager.RecordTemperature(requestId++, "group", nextDevice(), 21.0, requestId));
+	}
+
+	// one reading for every device of the group
+	@Benchmark
+	public Object recordBatch() throws Exception {
+		return BenchmarkSystems.ask(group, new DeviceManager.RecordTemperatures(requestId++, "group", deviceIds, temperatures, timestamps));
+	}
+
+	@Benchmark
+	public Object requestAllTemperatures() throws Exception {
+		return BenchmarkSystems.ask(group, new DeviceGroup.RequestAllTemperatures(requestId++, true));
+	}
+}
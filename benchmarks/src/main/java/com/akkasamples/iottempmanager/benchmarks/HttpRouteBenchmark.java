@@ -0,0 +1,106 @@
+package com.akkasamples.iottempmanager.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.akkasamples.iottempmanager.DeviceManager;
+import com.akkasamples.iottempmanager.IoTManager;
+import com.akkasamples.iottempmanager.main.IoTHttpApplication;
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.http.javadsl.Http;
+import akka.http.javadsl.ServerBinding;
+import akka.http.javadsl.model.HttpRequest;
+import akka.http.javadsl.model.HttpResponse;
+import akka.stream.ActorMaterializer;
+
+/**
+ * End-to-end latency of the IoTHttpApplication routes over a loopback binding, one
+ * request in flight at a time, the response entity is fully read before returning.
+ *
+ * routing = direct sends to the DeviceGroup found in the GroupRegistry, manager through the
+ * IoTManager and its DeviceManager shard (iot.device-manager.direct-routing off).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class HttpRouteBenchmark {
+	static final int DEVICES = 100;
+
+	@Param({ "direct", "manager" })
+	public String routing;
+
+	private ActorSystem system;
+	private ActorMaterializer materializer;
+	private ServerBinding binding;
+	private Http http;
+	private String baseUri;
+	private int deviceNo;
+
+	@Setup
+	public void setup() throws Exception {
+		system = BenchmarkSystems.create("http-route-benchmark",
+				ConfigFactory.parseString("iot.device-manager.direct-routing = " + routing.equals("direct")));
+		materializer = ActorMaterializer.create(system);
+		ActorRef iotManager = system.actorOf(IoTManager.props());
+		binding = BenchmarkSystems.await(IoTHttpApplication.bind(system, materializer, iotManager, "127.0.0.1", 0));
+		baseUri = "http://127.0.0.1:" + binding.localAddress().getPort();
+		http = Http.get(system);
+		for (int i = 0; i < DEVICES; i++) {
+			BenchmarkSystems.ask(iotManager, new DeviceManager.RequestRegisterDevice("group", "device-" + i));
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		BenchmarkSystems.await(binding.unbind());
+		BenchmarkSystems.shutdown(system);
+	}
+
+	private String nextDevice() {
+		deviceNo = (deviceNo + 1) % DEVICES;
+		return "device-" + deviceNo;
+	}
+
+	private Object send(HttpRequest request) throws Exception {
+		HttpResponse response = BenchmarkSystems.await(http.singleRequest(request, materializer));
+		return BenchmarkSystems.await(response.entity().toStrict(BenchmarkSystems.TIMEOUT.duration().toMillis(), materializer));
+	}
+
+	@Benchmark
+	public Object postTemperature() throws Exception {
+		return send(HttpRequest.POST(baseUri + "/temperature?groupId=group&deviceId=" + nextDevice() + "&temperature=21.5"));
+	}
+
+	@Benchmark
+	public Object getDeviceTemperature() throws Exception {
+		return send(HttpRequest.GET(baseUri + "/temperature?groupId=group&deviceId=" + nextDevice()));
+	}
+
+	@Benchmark
+	public Object getGroupTemperature() throws Exception {
+		return send(HttpRequest.GET(baseUri + "/temperature?groupId=group"));
+	}
+
+	@Benchmark
+	public Object getDeviceGroup() throws Exception {
+		return send(HttpRequest.GET(baseUri + "/devicegroup?groupId=group"));
+	}
+}
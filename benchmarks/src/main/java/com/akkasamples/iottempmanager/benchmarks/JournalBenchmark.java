@@ -0,0 +1,160 @@
+package com.akkasamples.iottempmanager.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.akkasamples.iottempmanager.DeviceManager;
+import com.akkasamples.iottempmanager.journal.TemperatureJournal;
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+
+/**
+ * Cost of the write-ahead journal: batched writes through a DeviceManager with the journal
+ * off and under each fsync policy, the raw append of one reading, and replay speed in
+ * records per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class JournalBenchmark {
+	static final int DEVICES = 16;
+	static final int REPLAY_READINGS = 1_000_000;
+
+	@State(Scope.Benchmark)
+	public static class Ingest {
+		@Param({ "off", "none", "interval", "always" })
+		public String fsync;
+
+		Path directory;
+		ActorSystem system;
+		ActorRef deviceManager;
+		String[] deviceIds = new String[DEVICES];
+
+		@Setup
+		public void setup() throws Exception {
+			directory = Files.createTempDirectory("journal-benchmark");
+			String journal = "off".equals(fsync) ? "iot.journal.enabled = off"
+					: String.format("iot.journal { enabled = on, fsync = %s, directory = \"%s\" }", fsync, directory.toString().replace("\\", "/"));
+			system = BenchmarkSystems.create("journal-benchmark", ConfigFactory.parseString(journal));
+			deviceManager = system.actorOf(DeviceManager.props(), "device-manager-0");
+			for (int d = 0; d < DEVICES; d++) {
+				deviceIds[d] = "device-" + d;
+				BenchmarkSystems.ask(deviceManager, new DeviceManager.RequestRegisterDevice("group", deviceIds[d]));
+			}
+		}
+
+		@TearDown
+		public void tearDown() throws Exception {
+			BenchmarkSystems.shutdown(system);
+			deleteRecursively(directory);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Append {
+		Path directory;
+		TemperatureJournal journal;
+		long timestamp;
+
+		@Setup(Level.Iteration)
+		public void setup() throws IOException {
+			directory = Files.createTempDirectory("journal-benchmark");
+			journal = TemperatureJournal.open(directory, 256 << 20, null);
+			journal.register("group", "device");
+		}
+
+		@TearDown(Level.Iteration)
+		public void tearDown() throws IOException {
+			journal.close();
+			deleteRecursively(directory);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Replay implements TemperatureJournal.Replay {
+		Path directory;
+		long replayed;
+
+		@Setup
+		public void setup() throws IOException {
+			directory = Files.createTempDirectory("journal-benchmark");
+			try (TemperatureJournal journal = TemperatureJournal.open(directory, 64 << 20, this)) {
+				for (int d = 0; d < DEVICES; d++) {
+					journal.register("group", "device-" + d);
+				}
+				for (int i = 0; i < REPLAY_READINGS; i++) {
+					journal.append(i % DEVICES, i, i * 0.01);
+				}
+			}
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			deleteRecursively(directory);
+		}
+
+		@Override
+		public void onRegister(int deviceNo, String groupId, String deviceId) {
+			replayed++;
+		}
+
+		@Override
+		public void onTemperature(int deviceNo, long timestamp, double temperature) {
+			replayed++;
+		}
+	}
+
+	@Benchmark
+	public Object recordTemperatures(Ingest state) throws Exception {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		double[] temperatures = new double[DEVICES];
+		long[] timestamps = new long[DEVICES];
+		for (int d = 0; d < DEVICES; d++) {
+			temperatures[d] = random.nextDouble(-10.0, 40.0);
+			timestamps[d] = System.currentTimeMillis();
+		}
+		return BenchmarkSystems.ask(state.deviceManager, new DeviceManager.RecordTemperatures(random.nextLong(), "group", state.deviceIds, temperatures, timestamps));
+	}
+
+	@Benchmark
+	public void append(Append state) {
+		state.journal.append(0, state.timestamp++, 21.5);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(REPLAY_READINGS)
+	public long replay(Replay state) throws IOException {
+		TemperatureJournal.open(state.directory, 64 << 20, state).close();
+		return state.replayed;
+	}
+
+	static void deleteRecursively(Path directory) throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+}
@@ -0,0 +1,327 @@
+package com.akkasamples.iottempmanager.benchmarks;
+
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.akkasamples.iottempmanager.IoTManager;
+import com.akkasamples.iottempmanager.main.IoTHttpApplication;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import akka.Done;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.http.javadsl.ConnectHttp;
+import akka.http.javadsl.Http;
+import akka.http.javadsl.ServerBinding;
+import akka.http.javadsl.model.HttpRequest;
+import akka.http.javadsl.model.HttpResponse;
+import akka.japi.Pair;
+import akka.stream.ActorMaterializer;
+import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.SourceQueueWithComplete;
+import scala.concurrent.duration.FiniteDuration;
+import scala.util.Try;
+
+/**
+ * Drives the IoTHttpApplication routes over loopback through an Akka HTTP host connection
+ * pool and reports throughput and latency percentiles. The devices are registered with
+ * POST /device first, then requests are a mix of GET /temperature for a device (reads),
+ * POST /temperature (writes) and GET /devicegroup (group reads).
+ *
+ * The open model sends at a fixed rate whatever the responses do. The closed model keeps
+ * concurrency requests in flight, each one sent when the one before it completed, paced to
+ * rate in total when rate is set. Latency counts from the time a request was due to be sent,
+ * not from when it actually went out, so a stalled server shows up in the percentiles with
+ * every request it held back (coordinated omission). An unpaced closed model has no such
+ * time and reports latency from the send.
+ *
+ * Options are key=value arguments, with the defaults:
+ * <pre>
+ * target = ""             a running service as http://host:port, empty starts one in process
+ * model = open            open or closed
+ * rate = 10000            requests per second, 0 unpaced (closed model only)
+ * concurrency = 64        requests in flight of the closed model
+ * connections = 32        pool connections
+ * duration = 30s          measured, after the warmup
+ * warmup = 5s
+ * groups = 10
+ * devices = 100           per group
+ * writes = 0.2            share of POST /temperature
+ * group-reads = 0.01      share of GET /devicegroup, the rest reads a device
+ * histogram = ""          file for the percentile distribution of all requests (.hgrm)
+ * </pre>
+ *
+ * Run with
+ *   ./gradlew :benchmarks:loadtest -PloadArgs="model=open rate=50000 duration=60s"
+ */
+public final class LoadGenerator {
+	static final String DEFAULTS = "target = \"\"\nmodel = open\nrate = 10000\nconcurrency = 64\nconnections = 32\nduration = 30s\nwarmup = 5s\n"
+			+ "groups = 10\ndevices = 100\nwrites = 0.2\ngroup-reads = 0.01\nhistogram = \"\"\n";
+	static final int READ = 0;
+	static final int WRITE = 1;
+	static final int GROUP_READ = 2;
+	static final String[] OPERATIONS = { "GET /temperature (device)", "POST /temperature", "GET /devicegroup" };
+	// responses still outstanding after the run get this long
+	static final long DRAIN_SECONDS = 30;
+
+	private final Config options;
+	private final boolean open;
+	private final double rate;
+	private final int concurrency;
+	private final long durationNanos;
+	private final long warmupNanos;
+	private final int groups;
+	private final int devices;
+	private final double writes;
+	private final double groupReads;
+
+	private final Recorder[] latencies = new Recorder[OPERATIONS.length];
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder succeeded = new LongAdder();
+	private final LongAdder overloaded = new LongAdder();
+	private final LongAdder otherStatus = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder measured = new LongAdder();
+	private volatile long measureFrom;
+	private volatile long measureTo;
+	private ActorSystem system;
+	private SourceQueueWithComplete<Pair<HttpRequest, Pending>> queue;
+
+	// A request waiting for its response
+	static final class Pending {
+		final int operation;
+		// System.nanoTime the request was due
+		final long intended;
+
+		Pending(int operation, long intended) {
+			this.operation = operation;
+			this.intended = intended;
+		}
+	}
+
+	LoadGenerator(Config options) {
+		this.options = options;
+		this.open = options.getString("model").equals("open");
+		if (!open && !options.getString("model").equals("closed")) {
+			throw new IllegalArgumentException("model must be open or closed, not " + options.getString("model"));
+		}
+		this.rate = options.getDouble("rate");
+		if (open && rate <= 0) {
+			throw new IllegalArgumentException("The open model needs a rate");
+		}
+		this.concurrency = options.getInt("concurrency");
+		this.durationNanos = options.getDuration("duration", TimeUnit.NANOSECONDS);
+		this.warmupNanos = options.getDuration("warmup", TimeUnit.NANOSECONDS);
+		this.groups = options.getInt("groups");
+		this.devices = options.getInt("devices");
+		this.writes = options.getDouble("writes");
+		this.groupReads = options.getDouble("group-reads");
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new Recorder(TimeUnit.SECONDS.toMicros(60), 3);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		StringBuilder overrides = new StringBuilder();
+		for (String arg : args) {
+			overrides.append(arg).append('\n');
+		}
+		Config options = ConfigFactory.parseString(overrides.toString()).withFallback(ConfigFactory.parseString(DEFAULTS)).resolve();
+		ActorSystem system = BenchmarkSystems.create("load-generator",
+				ConfigFactory.parseString("akka.http.host-connection-pool.max-connections = " + options.getInt("connections")));
+		try {
+			new LoadGenerator(options).run(system, System.out);
+		} finally {
+			system.terminate();
+			system.getWhenTerminated().toCompletableFuture().get(DRAIN_SECONDS, TimeUnit.SECONDS);
+		}
+	}
+
+	void run(ActorSystem system, PrintStream out) throws Exception {
+		this.system = system;
+		ActorMaterializer materializer = ActorMaterializer.create(system);
+		String target = options.getString("target");
+		ServerBinding binding = null;
+		if (target.isEmpty()) {
+			ActorRef iotManager = system.actorOf(IoTManager.props());
+			binding = BenchmarkSystems.await(IoTHttpApplication.bind(system, materializer, iotManager, "127.0.0.1", 0));
+			target = "http://127.0.0.1:" + binding.localAddress().getPort();
+		}
+		// the pool is sized by the akka.http.host-connection-pool settings of the system, the
+		// variant taking ConnectionPoolSettings connects with https whatever the scheme
+		ConnectHttp connect = ConnectHttp.toHost(target);
+		Http http = Http.get(system);
+
+		long registered = Source.range(0, groups * devices - 1)
+				.map(i -> Pair.create(HttpRequest.POST("/device?groupId=group-" + (i / devices) + "&deviceId=device-" + (i % devices)), 0))
+				.via(http.<Integer>cachedHostConnectionPool(connect, materializer))
+				.map(r -> {
+					r.first().get().discardEntityBytes(materializer);
+					return r.first().get().status().isSuccess() ? 1L : 0L;
+				})
+				.runFold(0L, Long::sum, materializer)
+				.toCompletableFuture().get(DRAIN_SECONDS * 4, TimeUnit.SECONDS);
+		if (registered != groups * devices) {
+			throw new IllegalStateException("Registered " + registered + " of " + (groups * devices) + " devices");
+		}
+
+		// the queue holds at most what is in flight, plus the backlog an open model catches up on
+		Pair<SourceQueueWithComplete<Pair<HttpRequest, Pending>>, CompletionStage<Done>> stream = Source.<Pair<HttpRequest, Pending>>queue(open ? 1024 : concurrency, open ? OverflowStrategy.backpressure() : OverflowStrategy.dropNew())
+				.via(http.<Pending>cachedHostConnectionPool(connect, materializer))
+				.toMat(Sink.foreach(r -> completed(r.first(), r.second(), materializer)), Keep.both())
+				.run(materializer);
+		queue = stream.first();
+
+		long start = System.nanoTime();
+		measureFrom = start + warmupNanos;
+		measureTo = measureFrom + durationNanos;
+		if (open) {
+			sendOpen(start);
+		} else {
+			sendClosed(start);
+		}
+		queue.complete();
+		stream.second().toCompletableFuture().get(DRAIN_SECONDS, TimeUnit.SECONDS);
+		report(out);
+		if (binding != null) {
+			BenchmarkSystems.await(binding.unbind());
+		}
+	}
+
+	// Request i is due at start + i / rate, a generator that fell behind sends the backlog at once
+	private void sendOpen(long start) {
+		double intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+		for (long i = 0;; i++) {
+			long intended = start + (long) (i * intervalNanos);
+			if (intended >= measureTo) {
+				return;
+			}
+			long wait = intended - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			queue.offer(request(intended)).toCompletableFuture().join();
+		}
+	}
+
+	// The first request of every user, the others follow from completed()
+	private void sendClosed(long start) throws InterruptedException {
+		for (int user = 0; user < concurrency; user++) {
+			queue.offer(request(rate > 0 ? start + (long) (user * userIntervalNanos() / concurrency) : System.nanoTime()));
+		}
+		// plus a scheduler tick for the last paced requests
+		long wait = measureTo - System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+		// users stop sending once past measureTo, wait for the last ones to answer
+		while (sent.sum() > succeeded.sum() + overloaded.sum() + otherStatus.sum() + failed.sum()) {
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+	}
+
+	private double userIntervalNanos() {
+		return TimeUnit.SECONDS.toNanos(1) * concurrency / rate;
+	}
+
+	private Pair<HttpRequest, Pending> request(long intended) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		String groupId = "group-" + random.nextInt(groups);
+		double pick = random.nextDouble();
+		sent.increment();
+		if (pick < writes) {
+			String temperature = String.format("%.1f", 15 + random.nextDouble() * 10);
+			return Pair.create(HttpRequest.POST("/temperature?groupId=" + groupId + "&deviceId=device-" + random.nextInt(devices) + "&temperature=" + temperature),
+					new Pending(WRITE, intended));
+		}
+		if (pick < writes + groupReads) {
+			return Pair.create(HttpRequest.GET("/devicegroup?groupId=" + groupId), new Pending(GROUP_READ, intended));
+		}
+		return Pair.create(HttpRequest.GET("/temperature?groupId=" + groupId + "&deviceId=device-" + random.nextInt(devices)), new Pending(READ, intended));
+	}
+
+	// Runs on the stream, one response at a time
+	private void completed(Try<HttpResponse> response, Pending pending, ActorMaterializer materializer) {
+		long now = System.nanoTime();
+		if (response.isFailure()) {
+			failed.increment();
+		} else {
+			HttpResponse r = response.get();
+			r.discardEntityBytes(materializer);
+			if (r.status().isSuccess()) {
+				succeeded.increment();
+			} else if (r.status().intValue() == 503) {
+				overloaded.increment();
+			} else {
+				otherStatus.increment();
+			}
+		}
+		if (pending.intended >= measureFrom && pending.intended < measureTo) {
+			measured.increment();
+			latencies[pending.operation].recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(now - pending.intended), TimeUnit.SECONDS.toMicros(60)));
+		}
+		if (!open) {
+			sendNext(pending, now);
+		}
+	}
+
+	// The user of the completed request goes on, due one user interval after its last request.
+	// A user that waits for its turn is due when the scheduler wakes it, the lateness of the
+	// scheduler is not the service's.
+	private void sendNext(Pending completed, long now) {
+		long intended = rate > 0 ? completed.intended + (long) userIntervalNanos() : now;
+		if (intended >= measureTo) {
+			return;
+		}
+		long wait = intended - now;
+		if (wait <= 0) {
+			queue.offer(request(intended));
+		} else {
+			system.scheduler().scheduleOnce(FiniteDuration.create(wait, TimeUnit.NANOSECONDS),
+					() -> queue.offer(request(Math.max(intended, System.nanoTime()))), system.dispatcher());
+		}
+	}
+
+	private void report(PrintStream out) throws Exception {
+		double seconds = durationNanos / 1e9;
+		out.printf("%s model, %s, %.0fs after %.0fs warmup, %d groups x %d devices, %.0f%% writes, %.0f%% group reads%n",
+				open ? "open" : "closed", rate > 0 ? String.format("%.0f req/s", rate) : concurrency + " users unpaced",
+				seconds, warmupNanos / 1e9, groups, devices, writes * 100, groupReads * 100);
+		out.printf("sent %d: 2xx %d, 503 %d, other %d, failed %d%n", sent.sum(), succeeded.sum(), overloaded.sum(), otherStatus.sum(), failed.sum());
+		out.printf("throughput %.0f req/s%n", measured.sum() / seconds);
+		out.printf("latency in ms, %s%n", open || rate > 0 ? "from the intended send time (corrected for coordinated omission)" : "from the send (closed model without rate, not corrected)");
+		out.printf("%-28s %10s %8s %8s %8s %8s %8s %8s%n", "", "count", "p50", "p90", "p99", "p99.9", "p99.99", "max");
+		Histogram all = new Histogram(TimeUnit.SECONDS.toMicros(60), 3);
+		for (int op = 0; op < OPERATIONS.length; op++) {
+			Histogram histogram = latencies[op].getIntervalHistogram();
+			all.add(histogram);
+			row(out, OPERATIONS[op], histogram);
+		}
+		row(out, "all", all);
+		String file = options.getString("histogram");
+		if (!file.isEmpty()) {
+			try (PrintStream hgrm = new PrintStream(new FileOutputStream(file))) {
+				all.outputPercentileDistribution(hgrm, 1000.0);
+			}
+		}
+	}
+
+	private static void row(PrintStream out, String name, Histogram histogram) {
+		out.printf("%-28s %10d %8.2f %8.2f %8.2f %8.2f %8.2f %8.2f%n", name, histogram.getTotalCount(),
+				histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+				histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0,
+				histogram.getValueAtPercentile(99.99) / 1000.0, histogram.getMaxValue() / 1000.0);
+	}
+}
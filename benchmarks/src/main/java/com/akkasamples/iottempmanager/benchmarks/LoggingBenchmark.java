@@ -0,0 +1,105 @@
+package com.akkasamples.iottempmanager.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.akkasamples.iottempmanager.Device;
+import com.akkasamples.iottempmanager.DeviceManager;
+import com.akkasamples.iottempmanager.IoTManager;
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.event.Logging;
+
+/**
+ * Readings per second through IoTManager, DeviceManager, DeviceGroup and Device, and into
+ * a single Device, with their per-message logging on (akka.loglevel = DEBUG), sampled one
+ * in 100 at INFO, and off at INFO. Log events go to a logger that drops them, so the
+ * numbers hold the cost of formatting and publishing but not of writing the lines out.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class LoggingBenchmark {
+	static final int DEVICES = 100;
+	static final int READINGS = 1000;
+
+	@Param({ "all", "sampled", "off" })
+	public String logging;
+
+	private ActorSystem system;
+	private ActorRef iotManager;
+	private ActorRef device;
+	private ActorRef discard;
+
+	// Stands in for the default logger, which would print every event to the benchmark
+	// output, and takes the acknowledgements of the readings sent to the device
+	public static class Discard extends AbstractActor {
+		@Override
+		public Receive createReceive() {
+			return receiveBuilder()
+					.match(Logging.InitializeLogger.class, r -> getSender().tell(Logging.loggerInitialized(), getSelf()))
+					.matchAny(r -> {})
+					.build();
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		String level = "all".equals(logging) ? "DEBUG" : "INFO";
+		int sampleRate = "sampled".equals(logging) ? 100 : 0;
+		system = BenchmarkSystems.create("logging-benchmark", ConfigFactory.parseString(String.format(
+				"akka.loglevel = %s\nakka.stdout-loglevel = OFF\nakka.loggers = [\"%s\"]\niot.logging.trace-sample-rate = %d",
+				level, Discard.class.getName(), sampleRate)));
+		iotManager = system.actorOf(IoTManager.props());
+		for (int d = 0; d < DEVICES; d++) {
+			BenchmarkSystems.ask(iotManager, new DeviceManager.RequestRegisterDevice("group", "device-" + d));
+		}
+		device = system.actorOf(Device.props("group", "device"));
+		discard = system.actorOf(Props.create(Discard.class));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		BenchmarkSystems.shutdown(system);
+	}
+
+	// Readings reach each device in order, the read answers once they are all recorded
+	@Benchmark
+	@OperationsPerInvocation(READINGS)
+	public Object recordTemperature() throws Exception {
+		for (int i = 0; i < READINGS; i++) {
+			iotManager.tell(new DeviceManager.RecordTemperature(i, "group", "device-" + i % DEVICES, i * 0.01), ActorRef.noSender());
+		}
+		return BenchmarkSystems.ask(iotManager, new DeviceManager.ReadDeviceTemperature(0L, "group", "device-" + (READINGS - 1) % DEVICES));
+	}
+
+	// A single Device, where the per-message logging is the larger part of the work
+	@Benchmark
+	@OperationsPerInvocation(READINGS)
+	public Object deviceRecordTemperature() throws Exception {
+		for (int i = 0; i < READINGS; i++) {
+			device.tell(new Device.RecordTemperature(i, i * 0.01), discard);
+		}
+		return BenchmarkSystems.ask(device, new Device.ReadTemperature(0L));
+	}
+}
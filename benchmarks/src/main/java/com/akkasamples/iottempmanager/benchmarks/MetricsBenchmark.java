@@ -0,0 +1,87 @@
+package com.akkasamples.iottempmanager.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.akkasamples.iottempmanager.Device;
+import com.akkasamples.iottempmanager.DeviceManager;
+import com.akkasamples.iottempmanager.IoTManager;
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+
+/**
+ * Readings per second through IoTManager, DeviceManager, DeviceGroup and Device, and into
+ * a single Device, with iot.metrics.enabled on and off. On, every actor reads the clock
+ * twice per message and records into a histogram, and every message passes the counting
+ * mailbox either way.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class MetricsBenchmark {
+	static final int DEVICES = 100;
+	static final int READINGS = 1000;
+
+	@Param({ "on", "off" })
+	public String metrics;
+
+	private ActorSystem system;
+	private ActorRef iotManager;
+	private ActorRef device;
+	private ActorRef discard;
+
+	@Setup
+	public void setup() throws Exception {
+		system = BenchmarkSystems.create("metrics-benchmark", ConfigFactory.parseString("iot.metrics.enabled = " + metrics));
+		iotManager = system.actorOf(IoTManager.props());
+		for (int d = 0; d < DEVICES; d++) {
+			BenchmarkSystems.ask(iotManager, new DeviceManager.RequestRegisterDevice("group", "device-" + d));
+		}
+		device = system.actorOf(Device.props("group", "device"));
+		discard = system.actorOf(Props.create(LoggingBenchmark.Discard.class));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		BenchmarkSystems.shutdown(system);
+	}
+
+	// Readings reach each device in order, the read answers once they are all recorded
+	@Benchmark
+	@OperationsPerInvocation(READINGS)
+	public Object recordTemperature() throws Exception {
+		for (int i = 0; i < READINGS; i++) {
+			iotManager.tell(new DeviceManager.RecordTemperature(i, "group", "device-" + i % DEVICES, i * 0.01), ActorRef.noSender());
+		}
+		return BenchmarkSystems.ask(iotManager, new DeviceManager.ReadDeviceTemperature(0L, "group", "device-" + (READINGS - 1) % DEVICES));
+	}
+
+	// A single Device, where the timing is the larger part of the work
+	@Benchmark
+	@OperationsPerInvocation(READINGS)
+	public Object deviceRecordTemperature() throws Exception {
+		for (int i = 0; i < READINGS; i++) {
+			device.tell(new Device.RecordTemperature(i, i * 0.01), discard);
+		}
+		return BenchmarkSystems.ask(device, new Device.ReadTemperature(0L));
+	}
+}
@@ -0,0 +1,128 @@
+package com.akkasamples.iottempmanager.benchmarks;
+
+import java.util.AbstractMap;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.akkasamples.iottempmanager.CompactDeviceGroup;
+import com.akkasamples.iottempmanager.DeviceGroup;
+import com.akkasamples.iottempmanager.DeviceManager;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.pattern.PatternsCS;
+
+/**
+ * Top 10 and a narrow temperature range of a group answered from its temperature index,
+ * against fetching every latest reading with RequestAllTemperatures and sorting or filtering
+ * them, which is what a client had to do before. A CompactDeviceGroup answers both from the
+ * same table a DeviceGroup uses. recordBatch changes every reading of the group,
+ * recordBatchThenTop adds the query that brings the index up to date with them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class RankedQueryBenchmark {
+	@Param({ "10000" })
+	public int devicesPerGroup;
+
+	private ActorSystem system;
+	private ActorRef group;
+	private String[] deviceIds;
+	private double[][] temperatures;
+	private long[] timestamps;
+	private long requestId;
+	private long batches;
+
+	@Setup
+	public void setup() throws Exception {
+		system = BenchmarkSystems.create("ranked-query-benchmark");
+		group = system.actorOf(CompactDeviceGroup.props("group"));
+		deviceIds = new String[devicesPerGroup];
+		// two sets of readings, every batch moves every device
+		temperatures = new double[2][devicesPerGroup];
+		timestamps = new long[devicesPerGroup];
+		Random random = new Random(42);
+		CompletableFuture<?>[] registrations = new CompletableFuture<?>[devicesPerGroup];
+		for (int i = 0; i < devicesPerGroup; i++) {
+			deviceIds[i] = "device-" + i;
+			temperatures[0][i] = 10.0 + random.nextInt(300) / 10.0;
+			temperatures[1][i] = 10.0 + random.nextInt(300) / 10.0;
+			timestamps[i] = i;
+			registrations[i] = PatternsCS.ask(group, new DeviceManager.RequestRegisterDevice("group", deviceIds[i]), BenchmarkSystems.TIMEOUT).toCompletableFuture();
+		}
+		BenchmarkSystems.await(CompletableFuture.allOf(registrations));
+		BenchmarkSystems.ask(group, new DeviceManager.RecordTemperatures(0L, "group", deviceIds, temperatures[0], timestamps));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		BenchmarkSystems.shutdown(system);
+	}
+
+	@Benchmark
+	public Object topFromIndex() throws Exception {
+		return BenchmarkSystems.ask(group, new DeviceManager.ReadTopTemperatures(requestId++, "group", 10, true));
+	}
+
+	@Benchmark
+	public Object topFromAllTemperatures() throws Exception {
+		DeviceGroup.RespondAllTemperatures all = (DeviceGroup.RespondAllTemperatures) BenchmarkSystems.ask(group, new DeviceGroup.RequestAllTemperatures(requestId++, true));
+		return available(all).sorted(Comparator.comparingDouble((Map.Entry<String, Double> e) -> e.getValue()).reversed())
+				.limit(10).collect(Collectors.toList());
+	}
+
+	// about 1% of the devices
+	@Benchmark
+	public Object rangeFromIndex() throws Exception {
+		return BenchmarkSystems.ask(group, new DeviceManager.ReadTemperatureRange(requestId++, "group", 20.0, 20.3));
+	}
+
+	@Benchmark
+	public Object rangeFromAllTemperatures() throws Exception {
+		DeviceGroup.RespondAllTemperatures all = (DeviceGroup.RespondAllTemperatures) BenchmarkSystems.ask(group, new DeviceGroup.RequestAllTemperatures(requestId++, true));
+		List<Map.Entry<String, Double>> range = available(all).filter(e -> e.getValue() >= 20.0 && e.getValue() <= 20.3)
+				.sorted(Comparator.comparingDouble(Map.Entry::getValue)).collect(Collectors.toList());
+		return range;
+	}
+
+	@Benchmark
+	public Object recordBatch() throws Exception {
+		return BenchmarkSystems.ask(group, new DeviceManager.RecordTemperatures(requestId++, "group", deviceIds, temperatures[(int) (batches++ & 1)], timestamps));
+	}
+
+	// the query after a batch pays for moving its readings in the index
+	@Benchmark
+	public Object recordBatchThenTop() throws Exception {
+		BenchmarkSystems.ask(group, new DeviceManager.RecordTemperatures(requestId++, "group", deviceIds, temperatures[(int) (batches++ & 1)], timestamps));
+		return BenchmarkSystems.ask(group, new DeviceManager.ReadTopTemperatures(requestId++, "group", 10, true));
+	}
+
+	private static Stream<Map.Entry<String, Double>> available(DeviceGroup.RespondAllTemperatures all) {
+		return all.readings.entrySet().stream()
+				.filter(e -> e.getValue() instanceof DeviceGroup.TemperatureAvailable)
+				.map(e -> new AbstractMap.SimpleImmutableEntry<>(e.getKey(), ((DeviceGroup.TemperatureAvailable) e.getValue()).temperature));
+	}
+}
@@ -0,0 +1,98 @@
+package com.akkasamples.iottempmanager.benchmarks;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.akkasamples.iottempmanager.DeviceGroup;
+import com.akkasamples.iottempmanager.DeviceManager;
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.pattern.PatternsCS;
+
+/**
+ * Device reads while writes saturate the group: one thread keeps a backlog of single-reading
+ * writes queued at the DeviceGroup and its Devices, the other reads device temperatures. With
+ * the default queues a read waits for the backlog, with the ReadPriorityMailbox on the group
+ * and device tiers it goes ahead of it.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class ReadPriorityBenchmark {
+	static final int DEVICES = 100;
+
+	@Param({ "akka.dispatch.UnboundedMailbox", "com.akkasamples.iottempmanager.ReadPriorityMailbox" })
+	public String queue;
+
+	// writes sent before waiting for the last of them
+	@Param({ "1000" })
+	public int backlog;
+
+	private ActorSystem system;
+	private ActorRef group;
+	private long writeId;
+	private long readId;
+	private int nextWrite;
+	private int nextRead;
+
+	@Setup
+	public void setup() throws Exception {
+		system = BenchmarkSystems.create("read-priority-benchmark", ConfigFactory.parseString(
+				"iot.mailbox.device-group.underlying-mailbox-type = \"" + queue + "\"\n"
+				+ "iot.mailbox.device.underlying-mailbox-type = \"" + queue + "\""));
+		group = system.actorOf(DeviceGroup.props("group"));
+		CompletableFuture<?>[] registrations = new CompletableFuture<?>[DEVICES];
+		for (int i = 0; i < DEVICES; i++) {
+			registrations[i] = PatternsCS.ask(group, new DeviceManager.RequestRegisterDevice("group", "device-" + i), BenchmarkSystems.TIMEOUT).toCompletableFuture();
+		}
+		BenchmarkSystems.await(CompletableFuture.allOf(registrations));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		BenchmarkSystems.shutdown(system);
+	}
+
+	private DeviceManager.RecordTemperatures write() {
+		nextWrite = (nextWrite + 1) % DEVICES;
+		return new DeviceManager.RecordTemperatures(writeId++, "group", new String[] { "device-" + nextWrite }, new double[] { 21.5 }, new long[] { writeId });
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public Object writeBacklog() throws Exception {
+		for (int i = 1; i < backlog; i++) {
+			group.tell(write(), ActorRef.noSender());
+		}
+		return BenchmarkSystems.ask(group, write());
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public Object readDevice() throws Exception {
+		nextRead = (nextRead + 7) % DEVICES;
+		return BenchmarkSystems.ask(group, new DeviceManager.ReadDeviceTemperature(readId++, "group", "device-" + nextRead));
+	}
+}
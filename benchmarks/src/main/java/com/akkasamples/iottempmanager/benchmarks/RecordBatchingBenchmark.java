@@ -0,0 +1,81 @@
+package com.akkasamples.iottempmanager.benchmarks;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.akkasamples.iottempmanager.DeviceManager;
+import com.akkasamples.iottempmanager.IoTManager;
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.pattern.PatternsCS;
+
+/**
+ * Ingest throughput of single RecordTemperature messages through the IoTManager, as sent by
+ * POST /temperature without acknowledgement. maxBatch = 1 hands every reading to its group
+ * on its own, larger batches collect them per group in the DeviceManager shard. An
+ * invocation sends READINGS readings, then waits for a fresh group query of every group,
+ * which reaches each Device behind the readings sent to it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class RecordBatchingBenchmark {
+	static final int GROUPS = 4;
+	static final int DEVICES_PER_GROUP = 100;
+	static final int READINGS = 4000;
+
+	@Param({ "1", "64" })
+	public int maxBatch;
+
+	private ActorSystem system;
+	private ActorRef iotManager;
+	private long requestId;
+
+	@Setup
+	public void setup() throws Exception {
+		system = BenchmarkSystems.create("record-batching-benchmark", ConfigFactory.parseString("iot.device-manager.batching.max-size = " + maxBatch));
+		iotManager = system.actorOf(IoTManager.props());
+		for (int g = 0; g < GROUPS; g++) {
+			for (int d = 0; d < DEVICES_PER_GROUP; d++) {
+				BenchmarkSystems.ask(iotManager, new DeviceManager.RequestRegisterDevice("group-" + g, "device-" + d));
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		BenchmarkSystems.shutdown(system);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(READINGS)
+	public Object recordTemperature() throws Exception {
+		for (int i = 0; i < READINGS; i++) {
+			iotManager.tell(new DeviceManager.RecordTemperature(requestId++, "group-" + i % GROUPS, "device-" + i / GROUPS % DEVICES_PER_GROUP, 21.0, requestId), ActorRef.noSender());
+		}
+		CompletableFuture<?>[] queries = new CompletableFuture<?>[GROUPS];
+		for (int g = 0; g < GROUPS; g++) {
+			queries[g] = PatternsCS.ask(iotManager, new DeviceManager.ReadDeviceGroupTemperature(requestId++, "group-" + g, true), BenchmarkSystems.TIMEOUT).toCompletableFuture();
+		}
+		return BenchmarkSystems.await(CompletableFuture.allOf(queries));
+	}
+}
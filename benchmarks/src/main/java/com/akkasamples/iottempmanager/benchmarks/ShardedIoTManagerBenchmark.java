@@ -0,0 +1,85 @@
+package com.akkasamples.iottempmanager.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.akkasamples.iottempmanager.DeviceManager;
+import com.akkasamples.iottempmanager.IoTManager;
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+
+/**
+ * Read throughput through the IoTManager with a varying number of DeviceManager shards.
+ * Several benchmark threads ask for device temperatures of random groups, so with one
+ * shard every request is serialized on a single DeviceManager mailbox.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@Threads(8)
+public class ShardedIoTManagerBenchmark {
+	static final int GROUPS = 256;
+	static final int DEVICES_PER_GROUP = 16;
+
+	@Param({ "1", "2", "4", "8" })
+	public int shards;
+
+	private ActorSystem system;
+	private ActorRef iotManager;
+
+	@Setup
+	public void setup() throws Exception {
+		system = BenchmarkSystems.create("sharded-iot-manager-benchmark", ConfigFactory.parseString("iot.device-manager.shards = " + shards));
+		iotManager = system.actorOf(IoTManager.props());
+		for (int g = 0; g < GROUPS; g++) {
+			for (int d = 0; d < DEVICES_PER_GROUP; d++) {
+				BenchmarkSystems.ask(iotManager, new DeviceManager.RequestRegisterDevice("group-" + g, "device-" + d));
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		BenchmarkSystems.shutdown(system);
+	}
+
+	@Benchmark
+	public Object readDeviceTemperature() throws Exception {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		return BenchmarkSystems.ask(iotManager, new DeviceManager.ReadDeviceTemperature(random.nextLong(),
+				"group-" + random.nextInt(GROUPS), "device-" + random.nextInt(DEVICES_PER_GROUP)));
+	}
+
+	@Benchmark
+	public Object recordTemperatures() throws Exception {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		String[] deviceIds = new String[DEVICES_PER_GROUP];
+		double[] temperatures = new double[DEVICES_PER_GROUP];
+		long[] timestamps = new long[DEVICES_PER_GROUP];
+		for (int d = 0; d < DEVICES_PER_GROUP; d++) {
+			deviceIds[d] = "device-" + d;
+			temperatures[d] = random.nextDouble(-10.0, 40.0);
+			timestamps[d] = System.currentTimeMillis();
+		}
+		return BenchmarkSystems.ask(iotManager, new DeviceManager.RecordTemperatures(random.nextLong(), "group-" + random.nextInt(GROUPS), deviceIds, temperatures, timestamps));
+	}
+}
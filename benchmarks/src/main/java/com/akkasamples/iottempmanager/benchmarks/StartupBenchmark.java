@@ -0,0 +1,133 @@
+package com.akkasamples.iottempmanager.benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.akkasamples.iottempmanager.DeviceManager;
+import com.akkasamples.iottempmanager.IoTManager;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.pattern.PatternsCS;
+
+/**
+ * Time until every group answers after a start: loading the snapshots written by a previous
+ * run against registering the same devices and recording one reading each from scratch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class StartupBenchmark {
+	static final int SHARDS = 4;
+	static final int DEVICES_PER_GROUP = 1000;
+	// starting a million devices takes longer than the timeouts of the other benchmarks
+	static final long TIMEOUT_MILLIS = 120_000;
+
+	@Param({ "100000", "1000000" })
+	public int devices;
+
+	private Path directory;
+	private Config journaled;
+	private ActorSystem system;
+
+	@Setup(Level.Trial)
+	public void writeSnapshots() throws Exception {
+		directory = Files.createTempDirectory("startup-benchmark");
+		journaled = ConfigFactory.parseString(String.format("iot.device-manager.shards = %d\niot.journal { enabled = on, snapshot-interval = 0, directory = \"%s\" }",
+				SHARDS, directory.toString().replace("\\", "/")));
+		ActorSystem writer = BenchmarkSystems.create("startup-benchmark", journaled);
+		ActorRef iotManager = writer.actorOf(IoTManager.props(), "iot");
+		registerAll(iotManager);
+		for (int shard = 0; shard < SHARDS; shard++) {
+			PatternsCS.ask(writer.actorSelection("/user/iot/device-manager-" + shard), new DeviceManager.TakeSnapshot(), TIMEOUT_MILLIS).toCompletableFuture().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		shutdown(writer);
+	}
+
+	@TearDown(Level.Invocation)
+	public void stop() throws Exception {
+		shutdown(system);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteSnapshots() throws Exception {
+		JournalBenchmark.deleteRecursively(directory);
+	}
+
+	@Benchmark
+	public void snapshotLoad() throws Exception {
+		system = BenchmarkSystems.create("startup-benchmark", journaled);
+		awaitGroups(system.actorOf(IoTManager.props(), "iot"));
+	}
+
+	@Benchmark
+	public void coldRegistration() throws Exception {
+		system = BenchmarkSystems.create("startup-benchmark", ConfigFactory.parseString("iot.device-manager.shards = " + SHARDS));
+		registerAll(system.actorOf(IoTManager.props(), "iot"));
+	}
+
+	// stopping a million devices takes a while too
+	private static void shutdown(ActorSystem system) throws Exception {
+		system.terminate();
+		system.getWhenTerminated().toCompletableFuture().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	private int groups() {
+		return devices / DEVICES_PER_GROUP;
+	}
+
+	private void registerAll(ActorRef iotManager) throws Exception {
+		for (int g = 0; g < groups(); g++) {
+			String[] deviceIds = new String[DEVICES_PER_GROUP];
+			double[] temperatures = new double[DEVICES_PER_GROUP];
+			long[] timestamps = new long[DEVICES_PER_GROUP];
+			for (int d = 0; d < DEVICES_PER_GROUP; d++) {
+				deviceIds[d] = "device-" + d;
+				temperatures[d] = d * 0.01;
+				timestamps[d] = 1000L;
+				iotManager.tell(new DeviceManager.RequestRegisterDevice("group-" + g, deviceIds[d]), ActorRef.noSender());
+			}
+			iotManager.tell(new DeviceManager.RecordTemperatures(g, "group-" + g, deviceIds, temperatures, timestamps), ActorRef.noSender());
+		}
+		awaitGroups(iotManager);
+	}
+
+	// Groups answer in order, the stats come after everything sent to them before
+	private void awaitGroups(ActorRef iotManager) throws Exception {
+		List<CompletableFuture<Object>> replies = new ArrayList<>();
+		for (int g = 0; g < groups(); g++) {
+			CompletionStage<Object> reply = PatternsCS.ask(iotManager, new DeviceManager.ReadDeviceGroupStats(g, "group-" + g), TIMEOUT_MILLIS);
+			replies.add(reply.toCompletableFuture());
+		}
+		for (CompletableFuture<Object> reply : replies) {
+			DeviceManager.DeviceGroupStats stats = (DeviceManager.DeviceGroupStats) reply.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			if (stats.readings != DEVICES_PER_GROUP) {
+				throw new IllegalStateException(String.format("Group %s started with %d readings", stats.groupId, stats.readings));
+			}
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.akkasamples.iottempmanager.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.akkasamples.iottempmanager.DeviceManager;
+import com.akkasamples.iottempmanager.IoTManager;
+import com.akkasamples.iottempmanager.ingest.IngestResult;
+import com.akkasamples.iottempmanager.ingest.TemperatureFrames;
+import com.akkasamples.iottempmanager.main.IoTHttpApplication;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.http.javadsl.Http;
+import akka.http.javadsl.ServerBinding;
+import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpRequest;
+import akka.http.javadsl.model.HttpResponse;
+import akka.stream.ActorMaterializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.Tcp;
+import akka.util.ByteString;
+
+/**
+ * Readings per second into one group over loopback: length-prefixed binary frames on the
+ * TCP endpoint, one connection per READINGS, against the same readings as one POST
+ * /temperature each and as a CSV body of POST /temperature/batch. Every invocation waits
+ * until the readings are acknowledged.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class TcpIngestionBenchmark {
+	static final int DEVICES = 100;
+	static final int READINGS = 10000;
+
+	private ActorSystem system;
+	private ActorMaterializer materializer;
+	private ServerBinding httpBinding;
+	private Tcp.ServerBinding tcpBinding;
+	private Http http;
+	private String baseUri;
+	private ByteString frames;
+	private ByteString csv;
+	private int deviceNo;
+
+	@Setup
+	public void setup() throws Exception {
+		system = BenchmarkSystems.create("tcp-ingestion-benchmark");
+		materializer = ActorMaterializer.create(system);
+		ActorRef iotManager = system.actorOf(IoTManager.props());
+		httpBinding = BenchmarkSystems.await(IoTHttpApplication.bind(system, materializer, iotManager, "127.0.0.1", 0));
+		tcpBinding = BenchmarkSystems.await(IoTHttpApplication.bindTcp(system, materializer, iotManager, "127.0.0.1", 0, TemperatureFrames.DEFAULT_MAX_FRAME_LENGTH));
+		baseUri = "http://127.0.0.1:" + httpBinding.localAddress().getPort();
+		http = Http.get(system);
+		for (int i = 0; i < DEVICES; i++) {
+			BenchmarkSystems.ask(iotManager, new DeviceManager.RequestRegisterDevice("group", "device-" + i));
+		}
+		StringBuilder lines = new StringBuilder();
+		ByteString bytes = ByteString.empty();
+		for (int i = 0; i < READINGS; i++) {
+			bytes = bytes.concat(TemperatureFrames.encode("group", "device-" + i % DEVICES, 1000L + i, 21.5));
+			lines.append("group,device-").append(i % DEVICES).append(",21.5,").append(1000L + i).append('\n');
+		}
+		frames = bytes.compact();
+		csv = ByteString.fromString(lines.toString(), StandardCharsets.UTF_8.name());
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		BenchmarkSystems.await(tcpBinding.unbind());
+		BenchmarkSystems.await(httpBinding.unbind());
+		BenchmarkSystems.shutdown(system);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(READINGS)
+	public IngestResult tcpFrames() throws Exception {
+		IngestResult result = BenchmarkSystems.await(Source.single(frames)
+				.via(Tcp.get(system).outgoingConnection("127.0.0.1", tcpBinding.localAddress().getPort()))
+				.via(TemperatureFrames.acks())
+				.runWith(Sink.fold(IngestResult.EMPTY, IngestResult::plus), materializer));
+		if (result.accepted != READINGS) {
+			throw new IllegalStateException("Accepted " + result.accepted + " of " + READINGS);
+		}
+		return result;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(READINGS)
+	public Object httpBatch() throws Exception {
+		HttpResponse response = BenchmarkSystems.await(http.singleRequest(HttpRequest.POST(baseUri + "/temperature/batch").withEntity(ContentTypes.TEXT_PLAIN_UTF8, csv), materializer));
+		return BenchmarkSystems.await(response.entity().toStrict(BenchmarkSystems.TIMEOUT.duration().toMillis(), materializer));
+	}
+
+	@Benchmark
+	public Object httpPostTemperature() throws Exception {
+		deviceNo = (deviceNo + 1) % DEVICES;
+		HttpResponse response = BenchmarkSystems.await(http.singleRequest(HttpRequest.POST(baseUri + "/temperature?groupId=group&deviceId=device-" + deviceNo + "&temperature=21.5"), materializer));
+		return BenchmarkSystems.await(response.entity().toStrict(BenchmarkSystems.TIMEOUT.duration().toMillis(), materializer));
+	}
+}
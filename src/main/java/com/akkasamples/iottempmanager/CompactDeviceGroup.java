@@ -0,0 +1,167 @@
+package com.akkasamples.iottempmanager;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.akkasamples.iottempmanager.metrics.IoTMetrics;
+
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+
+/**
+ * A DeviceGroup for devices that only report their latest value: the devices are rows of
+ * the group's DeviceTable and every message is answered from it, without Device actors,
+ * asks or DeviceGroupQuery. Selected with iot.device-group.mode = compact.
+ *
+ * It speaks the protocol of DeviceGroup. A fresh RequestAllTemperatures is answered like any
+ * other, there is nobody else to ask. No history is kept, ReadDeviceTemperatureHistory gets
+ * the latest reading if it falls into the range.
+ */
+public class CompactDeviceGroup extends TimedActor {
+	private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+	private final SampledTrace trace = SampledTrace.create(getContext().getSystem(), log);
+	private final String groupId;
+	private final DeviceTable latest = new DeviceTable();
+	private final GroupFeed feed = new GroupFeed();
+	// iot_group_readings_total of this group
+	private LongAdder readings;
+
+	public CompactDeviceGroup(String groupId) {
+		super(IoTMetrics.DEVICE_GROUP);
+		this.groupId = groupId;
+	}
+
+	public static Props props(String groupId) {
+		return Props.create(CompactDeviceGroup.class, () -> new CompactDeviceGroup(groupId)).withMailbox("iot.mailbox.device-group").withDispatcher(DeviceGroup.DISPATCHER);
+	}
+
+	@Override
+	public void preStart() throws Exception {
+		log.info("CompactDeviceGroup{{}}.preStart()", groupId);
+		readings = IoTMetrics.get(getContext().getSystem()).groupReadings(groupId);
+		super.preStart();
+	}
+
+	@Override
+	public void postStop() throws Exception {
+		log.info("CompactDeviceGroup{{}}.postStop()", groupId);
+		IoTMetrics.get(getContext().getSystem()).removeGroup(groupId, readings);
+		super.postStop();
+	}
+
+	@Override
+	public Receive createReceive() {
+		return receiveBuilder().match(DeviceManager.RequestRegisterDevice.class, r -> {
+			if (r.groupId.equals(groupId)) {
+				latest.add(r.deviceId);
+				getSender().tell(new DeviceManager.DeviceRegistered(groupId, r.deviceId), getSelf());
+			} else {
+				log.warning("CompactDeviceGroup{{}}.registerDevice({}, {}) received a request for another group", groupId, r.groupId, r.deviceId);
+			}
+		}).match(DeviceGroup.RequestDeviceList.class, r -> {
+			getSender().tell(new DeviceGroup.RespondDeviceList(r.requestId, new HashSet<>(Arrays.asList(latest.deviceIds()))), getSelf());
+		}).match(DeviceGroup.RequestAllTemperatures.class, r -> {
+			getSender().tell(new DeviceGroup.RespondAllTemperatures(r.requestId, latest.latestReadings()), getSelf());
+		}).match(DeviceManager.ReadDeviceGroupStats.class, r -> {
+			getSender().tell(new DeviceManager.DeviceGroupStats(r.requestId, groupId, latest.size(), latest.readings(), latest.withoutReading(), 0,
+					latest.min(), latest.max(), latest.mean()), getSelf());
+		}).match(DeviceManager.ReadTopTemperatures.class, r -> {
+			int[] rows = latest.top(r.n, r.hottest);
+			getSender().tell(new DeviceManager.RankedTemperatures(r.requestId, groupId, latest.deviceIds(rows), latest.temperatures(rows)), getSelf());
+		}).match(DeviceManager.ReadTemperatureRange.class, r -> {
+			int[] rows = latest.between(r.min, r.max);
+			getSender().tell(new DeviceManager.RankedTemperatures(r.requestId, groupId, latest.deviceIds(rows), latest.temperatures(rows)), getSelf());
+		}).match(DeviceManager.SubscribeDeviceGroupFeed.class, r -> {
+			getSender().tell(new DeviceManager.DeviceGroupFeed(r.requestId, groupId, feed.source(getContext())), getSelf());
+		}).match(DeviceGroup.RequestLatestTemperatures.class, r -> {
+			getSender().tell(new DeviceGroup.RespondLatestTemperatures(r.requestId, groupId, latest.deviceIds(), latest.temperatures(), latest.timestamps()), getSelf());
+		})
+		.match(DeviceManager.ReadDeviceTemperature.class, this::onReadTemperature)
+		.match(DeviceManager.ReadDeviceTemperatureHistory.class, this::onReadTemperatureHistory)
+		.match(DeviceManager.RecordTemperature.class, this::onRecordTemperature)
+		.match(DeviceManager.RecordTemperatures.class, this::onRecordTemperatures)
+		.match(DeviceGroup.RestoreDevices.class, this::onRestoreDevices).build();
+	}
+
+	// The device hop of a trace takes no time, the group is the device
+	private void onReadTemperature(DeviceManager.ReadDeviceTemperature r) {
+		if (r.trace != null) {
+			r.trace.started(TraceContext.DEVICE_GROUP);
+		}
+		int row = latest.indexOf(r.deviceId);
+		if (row >= 0) {
+			if (r.trace != null) {
+				r.trace.enqueued(TraceContext.DEVICE);
+				r.trace.started(TraceContext.DEVICE);
+				r.trace.replied();
+			}
+			getSender().tell(new DeviceManager.DeviceTemperature(r.requestId, r.groupId, r.deviceId, latest.hasReading(row) ? latest.temperature(row) : -1.00), getSelf());
+		}
+	}
+
+	private void onReadTemperatureHistory(DeviceManager.ReadDeviceTemperatureHistory r) {
+		int row = latest.indexOf(r.deviceId);
+		if (row >= 0) {
+			long timestamp = latest.timestamp(row);
+			boolean inRange = latest.hasReading(row) && timestamp >= r.from && timestamp <= r.to;
+			getSender().tell(new DeviceManager.DeviceTemperatureHistory(r.requestId, r.groupId, r.deviceId,
+					inRange ? new long[] { timestamp } : new long[0], inRange ? new double[] { latest.temperature(row) } : new double[0]), getSelf());
+		}
+	}
+
+	private void onRecordTemperature(DeviceManager.RecordTemperature r) {
+		int row = latest.indexOf(r.deviceId);
+		if (row < 0) {
+			log.warning("CompactDeviceGroup{{}}.recordTemperature({}, {}): Invalid Device ID specified", r.groupId, r.deviceId, r.temperature);
+			return;
+		}
+		if (trace.isEnabled()) {
+			trace.log("CompactDeviceGroup{{}}.recordTemperature({}, {})", r.groupId, r.deviceId, r.temperature);
+		}
+		if (!latest.record(row, r.temperature, r.timestamp)) {
+			log.warning("CompactDeviceGroup{{}}.recordTemperature({}, {}): Temperature is not finite", r.groupId, r.deviceId, r.temperature);
+			return;
+		}
+		readings.increment();
+		if (feed.isStarted()) {
+			feed.publish(new DeviceManager.TemperatureUpdate(r.deviceId, r.temperature, r.timestamp));
+		}
+		getSender().tell(new DeviceManager.DeviceTemperature(r.requestId, r.groupId, r.deviceId, r.temperature), getSelf());
+	}
+
+	private void onRecordTemperatures(DeviceManager.RecordTemperatures r) {
+		int accepted = 0;
+		DeviceManager.TemperatureUpdate[] updates = !feed.isStarted() ? null : new DeviceManager.TemperatureUpdate[r.size()];
+		for (int i = 0; i < r.size(); i++) {
+			int row = latest.indexOf(r.deviceIds[i]);
+			if (row >= 0 && latest.record(row, r.temperatures[i], r.timestamps[i])) {
+				if (updates != null) {
+					updates[accepted] = new DeviceManager.TemperatureUpdate(r.deviceIds[i], r.temperatures[i], r.timestamps[i]);
+				}
+				accepted++;
+			}
+		}
+		readings.add(accepted);
+		if (updates != null && accepted > 0) {
+			feed.publish(accepted == updates.length ? updates : Arrays.copyOf(updates, accepted));
+		}
+		if (accepted < r.size()) {
+			log.warning("CompactDeviceGroup{{}}.recordTemperatures({}): {} rows for unknown devices or not finite", groupId, r.size(), r.size() - accepted);
+		}
+		// a shard flushing its batches does not wait for the answer
+		if (!getSender().equals(getContext().getSystem().deadLetters())) {
+			getSender().tell(new DeviceManager.TemperaturesRecorded(r.requestId, groupId, accepted, r.size() - accepted), getSelf());
+		}
+	}
+
+	private void onRestoreDevices(DeviceGroup.RestoreDevices r) {
+		for (int i = 0; i < r.deviceIds.length; i++) {
+			int row = latest.add(r.deviceIds[i]);
+			if (!Double.isNaN(r.temperatures[i])) {
+				latest.record(row, r.temperatures[i], r.timestamps[i]);
+			}
+		}
+	}
+}
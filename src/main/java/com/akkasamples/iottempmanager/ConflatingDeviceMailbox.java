@@ -0,0 +1,103 @@
+package com.akkasamples.iottempmanager;
+
+import java.util.ArrayDeque;
+
+import com.akkasamples.iottempmanager.metrics.InstrumentedMailbox;
+import com.typesafe.config.Config;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedMessageQueueSemantics;
+import scala.Option;
+
+/**
+ * Device mailbox that folds a write into the write queued last, so a flooding sensor keeps
+ * one message in the queue however fast it sends. Enabled as the queue of the device tier:
+ *
+ * <pre>
+ * iot.mailbox.device.underlying-mailbox-type = "com.akkasamples.iottempmanager.ConflatingDeviceMailbox"
+ * </pre>
+ *
+ * Only a write at the tail takes the next write, a write behind a read stays behind it, so
+ * every read sees the writes sent before it and none sent after. The folded readings are
+ * capped at iot.device.history-size: the device history could not hold more anyway. Every
+ * folded RecordTemperature is acknowledged once the device applied them all.
+ */
+public class ConflatingDeviceMailbox implements MailboxType, ProducesMessageQueue<ConflatingDeviceMailbox.ConflatingQueue> {
+	private final int historySize;
+
+	public ConflatingDeviceMailbox(ActorSystem.Settings settings, Config config) {
+		this.historySize = settings.config().getInt("iot.device.history-size");
+	}
+
+	@Override
+	public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+		return new ConflatingQueue(historySize);
+	}
+
+	public static final class ConflatingQueue implements InstrumentedMailbox.FoldingQueue, UnboundedMessageQueueSemantics {
+		private final int historySize;
+		private final ArrayDeque<Envelope> queue = new ArrayDeque<>();
+		// read by hasMessages without the lock
+		private volatile int size;
+
+		ConflatingQueue(int historySize) {
+			this.historySize = historySize;
+		}
+
+		@Override
+		public synchronized boolean add(ActorRef receiver, Envelope handle) {
+			Envelope last = queue.peekLast();
+			if (last != null && Device.ConflatedTemperatures.isWrite(last.message()) && Device.ConflatedTemperatures.isWrite(handle.message())) {
+				Device.ConflatedTemperatures folded;
+				if (last.message() instanceof Device.ConflatedTemperatures) {
+					folded = (Device.ConflatedTemperatures) last.message();
+				} else {
+					folded = new Device.ConflatedTemperatures(historySize);
+					folded.add(last.message(), last.sender());
+					queue.pollLast();
+					queue.addLast(new Envelope(folded, last.sender()));
+				}
+				folded.add(handle.message(), handle.sender());
+				return false;
+			}
+			queue.addLast(handle);
+			size = queue.size();
+			return true;
+		}
+
+		@Override
+		public void enqueue(ActorRef receiver, Envelope handle) {
+			add(receiver, handle);
+		}
+
+		@Override
+		public synchronized Envelope dequeue() {
+			Envelope envelope = queue.pollFirst();
+			size = queue.size();
+			return envelope;
+		}
+
+		@Override
+		public int numberOfMessages() {
+			return size;
+		}
+
+		@Override
+		public boolean hasMessages() {
+			return size > 0;
+		}
+
+		@Override
+		public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+			Envelope envelope;
+			while ((envelope = dequeue()) != null) {
+				deadLetters.enqueue(owner, envelope);
+			}
+		}
+	}
+}
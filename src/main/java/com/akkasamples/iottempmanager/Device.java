@@ -1,75 +1,180 @@
 package com.akkasamples.iottempmanager;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
-import akka.actor.AbstractActor;
+import com.akkasamples.iottempmanager.metrics.IoTMetrics;
+
+import akka.actor.ActorRef;
 import akka.actor.Props;
+import akka.actor.ReceiveTimeout;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import scala.Option;
+import scala.concurrent.duration.FiniteDuration;
+
+public class Device extends TimedActor {
+	// Samples kept per device when the group does not pass iot.device.history-size
+	public static final int DEFAULT_HISTORY_SIZE = 120;
+	public static final String DISPATCHER = "iot.dispatchers.device";
 
-public class Device extends AbstractActor {
 	private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+	private final SampledTrace trace = SampledTrace.create(getContext().getSystem(), log);
 
 	private String groupId;
 	private String deviceId;
 	private Optional<Double> currentTemperature = Optional.empty();
+	private final TemperatureHistory history;
+	// idle time after which the device asks its group to passivate it, 0 never
+	private final long passivateAfterMillis;
 
-	private Device(String groupId, String deviceId) {
+	private Device(String groupId, String deviceId, TemperatureHistory history, Optional<Double> temperature, long passivateAfterMillis) {
+		super(IoTMetrics.DEVICE);
 		this.groupId = groupId;
 		this.deviceId = deviceId;
+		this.history = history;
+		this.currentTemperature = temperature;
+		this.passivateAfterMillis = passivateAfterMillis;
 	}
 
 	public static Props props(String groupId, String deviceId) {
-		return Props.create(Device.class, () -> new Device(groupId, deviceId));
+		return props(groupId, deviceId, DEFAULT_HISTORY_SIZE);
+	}
+
+	public static Props props(String groupId, String deviceId, int historySize) {
+		return props(groupId, deviceId, new TemperatureHistory(historySize), Optional.empty(), 0L);
+	}
+
+	/**
+	 * A device of a group that passivates it after passivateAfterMillis without a message,
+	 * started with the history and reading it handed off when it is revived.
+	 */
+	static Props props(String groupId, String deviceId, TemperatureHistory history, Optional<Double> temperature, long passivateAfterMillis) {
+		return Props.create(Device.class, () -> new Device(groupId, deviceId, history, temperature, passivateAfterMillis))
+				.withMailbox("iot.mailbox.device").withDispatcher(DISPATCHER);
 	}
 
 	@Override
 	public Receive createReceive() {
 		return receiveBuilder()
 				.match(ReadTemperature.class, r -> {
-					log.info(String.format("device{id=%s, gid=%s}.readTemperature(%d): Responding temperature: %f ", deviceId, groupId, r.requestId, currentTemperature.orElse(-1.00)));
+					if (r.trace != null) {
+						r.trace.started(TraceContext.DEVICE);
+					}
+					if (trace.isEnabled()) {
+						trace.log("device{id={}, gid={}}.readTemperature({}): Responding temperature: {}", deviceId, groupId, r.requestId, currentTemperature.orElse(-1.00));
+					}
+					if (r.trace != null) {
+						r.trace.replied();
+					}
 					getSender().tell(new RespondTemperature(r.requestId, currentTemperature), getSelf());
 				})
+				// forwarded by the group, answered to the requester without a hop back through it
+				.match(DeviceManager.ReadDeviceTemperature.class, r -> {
+					if (r.trace != null) {
+						r.trace.started(TraceContext.DEVICE);
+					}
+					if (trace.isEnabled()) {
+						trace.log("device{id={}, gid={}}.readDeviceTemperature({}): Responding temperature: {}", deviceId, groupId, r.requestId, currentTemperature.orElse(-1.00));
+					}
+					if (r.trace != null) {
+						r.trace.replied();
+					}
+					getSender().tell(new DeviceManager.DeviceTemperature(r.requestId, groupId, deviceId, currentTemperature.orElse(-1.00)), getSelf());
+				})
+				.match(DeviceManager.ReadDeviceTemperatureHistory.class, r -> {
+					RespondTemperatureHistory range = history.range(r.requestId, r.from, r.to);
+					getSender().tell(new DeviceManager.DeviceTemperatureHistory(r.requestId, groupId, deviceId, range.timestamps, range.temperatures), getSelf());
+				})
 				.match(RecordTemperature.class, r -> {
-					log.info(String.format("device{id=%s, gid=%s}.recordTemperature(%d, %f): Prev Temperature: %f ", deviceId, groupId, r.requestId, r.temperature, currentTemperature.orElse(-1.00)));
+					if (trace.isEnabled()) {
+						trace.log("device{id={}, gid={}}.recordTemperature({}, {})", deviceId, groupId, r.requestId, r.temperature);
+					}
 					currentTemperature = Optional.of(r.temperature);
+					history.add(r.timestamp, r.temperature);
 					getSender().tell(new TemperatureRecorded(r.requestId, currentTemperature), getSelf());
 				})
+				.match(RecordTemperatures.class, r -> {
+					if (trace.isEnabled()) {
+						trace.log("device{id={}, gid={}}.recordTemperatures({}, {})", deviceId, groupId, r.requestId, r.temperatures.length);
+					}
+					for (int i = 0; i < r.temperatures.length; i++) {
+						history.add(r.timestamps[i], r.temperatures[i]);
+					}
+					currentTemperature = Optional.of(r.temperatures[r.temperatures.length - 1]);
+				})
+				.match(ConflatedTemperatures.class, r -> {
+					if (trace.isEnabled()) {
+						trace.log("device{id={}, gid={}}.recordConflatedTemperatures({}, {})", deviceId, groupId, r.writes, r.acks.size());
+					}
+					RespondTemperatureHistory readings = r.readings.range(0L, Long.MIN_VALUE, Long.MAX_VALUE);
+					for (int i = 0; i < readings.timestamps.length; i++) {
+						history.add(readings.timestamps[i], readings.temperatures[i]);
+					}
+					currentTemperature = Optional.of(r.latestTemperature);
+					// every collapsed write that wanted an answer gets the temperature as of now
+					for (ConflatedTemperatures.Ack ack : r.acks) {
+						ack.sender.tell(new TemperatureRecorded(ack.requestId, currentTemperature), getSelf());
+					}
+				})
+				.match(ReadTemperatureHistory.class, r -> {
+					getSender().tell(history.range(r.requestId, r.from, r.to), getSelf());
+				})
+				.match(ReceiveTimeout.class, r -> {
+					getContext().getParent().tell(new Passivate(), getSelf());
+				})
+				// the group stops the device once it took the history, or lets it run on if
+				// a message for the device came in meanwhile
+				.match(HandOff.class, r -> {
+					getSender().tell(new HandedOff(history), getSelf());
+				})
 				.build();
 	}
 	
 	//Lifecycle methods
 	@Override
 	public void postStop() throws Exception {
-		log.info(String.format("device{id=%s, gid=%s}.postStop()", deviceId, groupId));
+		log.debug("device{id={}, gid={}}.postStop()", deviceId, groupId);
 	}
 
 	@Override
 	public void preStart() throws Exception {
-		log.info(String.format("device{id=%s, gid=%s}.preStart(): Current Temperature: %f", deviceId, groupId, currentTemperature.orElse(-1.00)));
+		// once per device, a large group starts many of them at once
+		log.debug("device{id={}, gid={}}.preStart()", deviceId, groupId);
+		if (passivateAfterMillis > 0) {
+			getContext().setReceiveTimeout(FiniteDuration.create(passivateAfterMillis, TimeUnit.MILLISECONDS));
+		}
 	}
 	
 	@Override
 	public void preRestart(Throwable reason, Option<Object> message) throws Exception {
-		log.info(String.format("device{id=%s, gid=%s}.preRestart(): Current Temperature: %f", deviceId, groupId, currentTemperature.orElse(-1.00)));
-		log.error(String.format("device{id=%s, gid=%s}.preRestart(): Message: %s, Reason = ", deviceId, groupId, message), reason);
+		log.info("device{id={}, gid={}}.preRestart(): Current Temperature: {}", deviceId, groupId, currentTemperature.orElse(-1.00));
+		log.error(reason, "device{id={}, gid={}}.preRestart(): Message: {}", deviceId, groupId, message);
 	}
 	
 	@Override
 	public void postRestart(Throwable reason) throws Exception {
 		super.postRestart(reason);
-		log.info(String.format("device{id=%s, gid=%s}.postRestart(): Current Temperature: %f", deviceId, groupId, currentTemperature.orElse(-1.00)));
-		log.error(String.format("device{id=%s, gid=%s}.postRestart(): Reason = ", deviceId, groupId), reason);
+		log.info("device{id={}, gid={}}.postRestart(): Current Temperature: {}", deviceId, groupId, currentTemperature.orElse(-1.00));
+		log.error(reason, "device{id={}, gid={}}.postRestart()", deviceId, groupId);
 	}
 
 	// Messages for Read Temperature
 	public static class ReadTemperature {
 		public long requestId;
+		// null unless the read comes from a request carrying one
+		public TraceContext trace;
 		
 		public ReadTemperature(long reqId) {
 			this.requestId = reqId;
 		}
+
+		public ReadTemperature(long reqId, TraceContext trace) {
+			this.requestId = reqId;
+			this.trace = trace;
+		}
 	}
 	
 	public static class RespondTemperature {
@@ -82,14 +187,98 @@ public class Device extends AbstractActor {
 		}
 	}
 	
+	// Passivation, see DeviceGroup. Sent by an idle device to its group
+	public static class Passivate {
+	}
+
+	public static class HandOff {
+	}
+
+	// Ownership of the history moves to the group with this message
+	static class HandedOff {
+		final TemperatureHistory history;
+
+		HandedOff(TemperatureHistory history) {
+			this.history = history;
+		}
+	}
+
 	// Messages for Recording temperature
 	public static class RecordTemperature {
 		public long requestId;
 		public Double temperature;
+		public long timestamp;
 		
 		public RecordTemperature(long reqId, Double temperature) {
+			this(reqId, temperature, System.currentTimeMillis());
+		}
+
+		public RecordTemperature(long reqId, Double temperature, long timestamp) {
 			this.requestId = reqId;
 			this.temperature = temperature;
+			this.timestamp = timestamp;
+		}
+	}
+
+	// The readings of this device in a group's batch, in order. Not answered, the group
+	// already counted them.
+	public static class RecordTemperatures {
+		public long requestId;
+		public double[] temperatures;
+		public long[] timestamps;
+
+		public RecordTemperatures(long requestId, double[] temperatures, long[] timestamps) {
+			this.requestId = requestId;
+			this.temperatures = temperatures;
+			this.timestamps = timestamps;
+		}
+	}
+
+	/**
+	 * Writes folded together while queued by the ConflatingDeviceMailbox: the latest of their
+	 * readings, as many as a history holds, and who to acknowledge. Only the mailbox changes
+	 * it, under its lock and until the device dequeued it.
+	 */
+	static final class ConflatedTemperatures {
+		final TemperatureHistory readings;
+		final List<Ack> acks = new ArrayList<>(2);
+		double latestTemperature;
+		int writes;
+
+		ConflatedTemperatures(int historySize) {
+			this.readings = new TemperatureHistory(historySize);
+		}
+
+		// A RecordTemperature or RecordTemperatures, acknowledged to the sender of the former
+		static boolean isWrite(Object message) {
+			return message instanceof RecordTemperature || message instanceof RecordTemperatures || message instanceof ConflatedTemperatures;
+		}
+
+		void add(Object write, ActorRef sender) {
+			if (write instanceof RecordTemperature) {
+				RecordTemperature r = (RecordTemperature) write;
+				readings.add(r.timestamp, r.temperature);
+				latestTemperature = r.temperature;
+				acks.add(new Ack(sender, r.requestId));
+				writes++;
+			} else if (write instanceof RecordTemperatures) {
+				RecordTemperatures r = (RecordTemperatures) write;
+				for (int i = 0; i < r.temperatures.length; i++) {
+					readings.add(r.timestamps[i], r.temperatures[i]);
+				}
+				latestTemperature = r.temperatures[r.temperatures.length - 1];
+				writes++;
+			}
+		}
+
+		static final class Ack {
+			final ActorRef sender;
+			final long requestId;
+
+			Ack(ActorRef sender, long requestId) {
+				this.sender = sender;
+				this.requestId = requestId;
+			}
 		}
 	}
 
@@ -99,4 +288,31 @@ public class Device extends AbstractActor {
 			super(reqId, temperature);
 		}
 	}
+
+	// Messages for Reading the temperature history
+	// Samples with from <= timestamp <= to, timestamps in epoch millis
+	public static class ReadTemperatureHistory {
+		public long requestId;
+		public long from;
+		public long to;
+
+		public ReadTemperatureHistory(long reqId, long from, long to) {
+			this.requestId = reqId;
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	// Oldest sample first, the two arrays are index aligned
+	public static class RespondTemperatureHistory {
+		public long requestId;
+		public long[] timestamps;
+		public double[] temperatures;
+
+		public RespondTemperatureHistory(long reqId, long[] timestamps, double[] temperatures) {
+			this.requestId = reqId;
+			this.timestamps = timestamps;
+			this.temperatures = temperatures;
+		}
+	}
 }
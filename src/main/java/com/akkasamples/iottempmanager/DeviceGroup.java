@@ -1,46 +1,75 @@
 package com.akkasamples.iottempmanager;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.akkasamples.iottempmanager.metrics.IoTMetrics;
 
-import akka.actor.AbstractActor;
 import akka.actor.ActorRef;
 import akka.actor.Props;
 import akka.actor.Terminated;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
-import akka.pattern.Patterns;
+import akka.pattern.PatternsCS;
 import akka.util.Timeout;
-import scala.concurrent.Await;
-import scala.concurrent.Future;
 import scala.concurrent.duration.FiniteDuration;
 
-public class DeviceGroup extends AbstractActor {
+public class DeviceGroup extends TimedActor {
+	// Reads are forwarded to the Device, which answers the requester. The reply to a single
+	// RecordTemperature is piped back, a device that does not answer within this window
+	// results in a Status.Failure instead of a reply
+	static final Timeout DEVICE_TIMEOUT = new Timeout(100, TimeUnit.MILLISECONDS);
+	public static final String DISPATCHER = "iot.dispatchers.device-group";
+
 	private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+	private final SampledTrace trace = SampledTrace.create(getContext().getSystem(), log);
 	private String groupId;
 	private Map<String, ActorRef> deviceIdToActors = new HashMap<>();
 	private Map<ActorRef, String> actorsToDeviceIds = new HashMap<>();
+	private Set<ActorRef> activeQueries = new HashSet<>();
+	// every device of the group with its latest reading, kept up to date by the writes
+	// passing through. Devices restored from a snapshot are only in here until first used.
+	private DeviceTable latest = new DeviceTable();
 	final long nextCollectionId = 0L;
+	// samples of history kept by every device, read once per group
+	private int historySize;
+	// idle time after which a device is passivated, 0 never, read once per group
+	private long passivateAfterMillis;
+	// devices that were asked to hand off their history, until they answer
+	private Map<String, ActorRef> passivating = new HashMap<>();
+	// iot_group_readings_total of this group
+	private LongAdder readings;
+	private final GroupFeed feed = new GroupFeed();
 
 	public DeviceGroup(String groupId) {
+		super(IoTMetrics.DEVICE_GROUP);
 		this.groupId = groupId;
 	}
 
 	public static Props props(String groupId) {
-		return Props.create(DeviceGroup.class, () -> new DeviceGroup(groupId));
+		return Props.create(DeviceGroup.class, () -> new DeviceGroup(groupId)).withMailbox("iot.mailbox.device-group").withDispatcher(DISPATCHER);
 	}
 
 	@Override
 	public void preStart() throws Exception {
-		log.info(String.format("DeviceGroup{%s}.preStart()", groupId));
+		log.info("DeviceGroup{{}}.preStart()", groupId);
+		historySize = getContext().getSystem().settings().config().getInt("iot.device.history-size");
+		passivateAfterMillis = getContext().getSystem().settings().config().getDuration("iot.device.passivate-after", TimeUnit.MILLISECONDS);
+		readings = IoTMetrics.get(getContext().getSystem()).groupReadings(groupId);
 		super.preStart();
 	}
 
 	@Override
 	public void postStop() throws Exception {
-		log.info(String.format("DeviceGroup{%s}.postStop()", groupId));
+		log.info("DeviceGroup{{}}.postStop()", groupId);
+		IoTMetrics.get(getContext().getSystem()).removeGroup(groupId, readings);
 		super.postStop();
 	}
 
@@ -48,74 +77,262 @@ public class DeviceGroup extends AbstractActor {
 	public Receive createReceive() {
 		return receiveBuilder().match(DeviceManager.RequestRegisterDevice.class, r -> {
 			if (r.groupId.equals(this.groupId)) {
-				if (!deviceIdToActors.containsKey(r.deviceId)) {
-					ActorRef device = getContext().actorOf(Device.props(groupId, r.deviceId));
-					actorsToDeviceIds.put(device, r.deviceId);
-					deviceIdToActors.put(r.deviceId, device);
-					getContext().watch(device);
+				if (latest.indexOf(r.deviceId) < 0) {
+					latest.add(r.deviceId);
+					startDevice(r.deviceId);
 				}
 				getSender().tell(new DeviceManager.DeviceRegistered(groupId, r.deviceId), getSelf());
 			} else {
-				log.warning(String.format("DeviceGroup{%s}.registerDevice(%s, %s) received a request for another group ", this.groupId, r.groupId, r.deviceId));
+				log.warning("DeviceGroup{{}}.registerDevice({}, {}) received a request for another group", this.groupId, r.groupId, r.deviceId);
 			}
 		}).match(RequestDeviceList.class, (r) -> {
-			log.info(String.format("DeviceGroup{%s}.deviceList(%d)", this.groupId, r.requestId));
-			getSender().tell(new RespondDeviceList(r.requestId, deviceIdToActors.keySet()), getSelf());
+			if (trace.isEnabled()) {
+				trace.log("DeviceGroup{{}}.deviceList({})", this.groupId, r.requestId);
+			}
+			getSender().tell(new RespondDeviceList(r.requestId, new HashSet<>(Arrays.asList(latest.deviceIds()))), getSelf());
 		}).match(RequestAllTemperatures.class, this::onAllTemperatures)
+		.match(DeviceManager.ReadDeviceGroupStats.class, this::onGroupStats)
+		.match(DeviceManager.ReadTopTemperatures.class, r -> {
+			ranked(r.requestId, latest.top(r.n, r.hottest));
+		})
+		.match(DeviceManager.ReadTemperatureRange.class, r -> {
+			ranked(r.requestId, latest.between(r.min, r.max));
+		})
+		.match(DeviceManager.SubscribeDeviceGroupFeed.class, r -> {
+			getSender().tell(new DeviceManager.DeviceGroupFeed(r.requestId, groupId, feed.source(getContext())), getSelf());
+		})
+		.match(RequestLatestTemperatures.class, r -> {
+			getSender().tell(new RespondLatestTemperatures(r.requestId, groupId, latest.deviceIds(), latest.temperatures(), latest.timestamps()), getSelf());
+		})
 		.match(DeviceManager.ReadDeviceTemperature.class, r -> {
-			if (deviceIdToActors.containsKey(r.deviceId)) {
-				ActorRef deviceActor = deviceIdToActors.get(r.deviceId);
-				Future<Object> result = Patterns.ask(deviceActor, new Device.ReadTemperature(r.requestId), 100);
-				Timeout timeout = new Timeout(100, TimeUnit.MILLISECONDS);
-				try {
-					Device.RespondTemperature reply = (Device.RespondTemperature)Await.result(result, timeout.duration());
-					getSender().tell(new DeviceManager.DeviceTemperature(r.requestId, r.groupId, r.deviceId, reply.temperature.orElse(-1.00)), getSelf());
-				} catch (Exception e) {
-					e.printStackTrace();
+			if (r.trace != null) {
+				r.trace.started(TraceContext.DEVICE_GROUP);
+			}
+			if (latest.indexOf(r.deviceId) >= 0) {
+				ActorRef deviceActor = deviceFor(r.deviceId);
+				if (r.trace != null) {
+					r.trace.enqueued(TraceContext.DEVICE);
 				}
+				// the Device answers the requester, a read queued behind others has no deadline of its own
+				deviceActor.forward(r, getContext());
+			}
+		})
+		.match(DeviceManager.ReadDeviceTemperatureHistory.class, r -> {
+			if (latest.indexOf(r.deviceId) >= 0) {
+				deviceFor(r.deviceId).forward(r, getContext());
 			}
 		})
 		.match(DeviceManager.RecordTemperature.class, r -> {
-			if (deviceIdToActors.containsKey(r.deviceId)) {
-				log.warning(String.format("DeviceGroup{%s}.recordTemperature(%s, %f):", r.groupId, r.deviceId, r.temperature));
-				ActorRef deviceActor = deviceIdToActors.get(r.deviceId);
-				Future<Object> result = Patterns.ask(deviceActor, new Device.RecordTemperature(r.requestId, r.temperature), 100);
-				Timeout timeout = new Timeout(100, TimeUnit.MILLISECONDS);
-				try {
-					Device.RespondTemperature reply = (Device.RespondTemperature)Await.result(result, timeout.duration());
-					getSender().tell(new DeviceManager.DeviceTemperature(r.requestId, r.groupId, r.deviceId, reply.temperature.orElse(-1.00)), getSelf());
-				} catch (Exception e) {
-					e.printStackTrace();
+			if (!Double.isFinite(r.temperature)) {
+				log.warning("DeviceGroup{{}}.recordTemperature({}, {}): Temperature is not finite", r.groupId, r.deviceId, r.temperature);
+			} else if (latest.indexOf(r.deviceId) >= 0) {
+				if (trace.isEnabled()) {
+					trace.log("DeviceGroup{{}}.recordTemperature({}, {})", r.groupId, r.deviceId, r.temperature);
 				}
+				ActorRef deviceActor = deviceFor(r.deviceId);
+				latest.record(latest.indexOf(r.deviceId), r.temperature, r.timestamp);
+				readings.increment();
+				if (feed.isStarted()) {
+					feed.publish(new DeviceManager.TemperatureUpdate(r.deviceId, r.temperature, r.timestamp));
+				}
+				CompletionStage<Object> reply = PatternsCS.ask(deviceActor, new Device.RecordTemperature(r.requestId, r.temperature, r.timestamp), DEVICE_TIMEOUT)
+						.thenApply(o -> new DeviceManager.DeviceTemperature(r.requestId, r.groupId, r.deviceId, ((Device.RespondTemperature) o).temperature.orElse(-1.00)));
+				PatternsCS.pipe(reply, getContext().dispatcher()).to(getSender(), getSelf());
 			} else {
-				log.warning(String.format("DeviceGroup{%s}.recordTemperature(%s, %f): Invalid Device ID specified", r.groupId, r.deviceId, r.temperature));
+				log.warning("DeviceGroup{{}}.recordTemperature({}, {}): Invalid Device ID specified", r.groupId, r.deviceId, r.temperature);
 			}
 		})
+		.match(DeviceManager.RecordTemperatures.class, this::onRecordTemperatures)
+		.match(RestoreDevices.class, this::onRestoreDevices)
+		// acknowledgements of the batched writes above, nobody is waiting for them
+		.match(Device.TemperatureRecorded.class, r -> {})
+		.match(Device.Passivate.class, r -> onPassivate(getSender()))
+		.match(Device.HandedOff.class, r -> onHandedOff(getSender(), r))
 		.match(Terminated.class, this::onTerminated).build();
 	}
 
 	public void onTerminated(Terminated t) {
+		if (activeQueries.remove(t.actor())) {
+			return;
+		}
 		ActorRef device = t.actor();
-		log.info(String.format("DeviceGroup{%s}.onTerminated(Device Terminated %s)", groupId, device));
+		log.info("DeviceGroup{{}}.onTerminated(Device Terminated {})", groupId, device);
 		if (actorsToDeviceIds.containsKey(device)) {
 			String deviceId = actorsToDeviceIds.get(device);
 			actorsToDeviceIds.remove(device);
 			deviceIdToActors.remove(deviceId);
+			passivating.remove(deviceId);
+			latest.remove(deviceId);
 			getContext().unwatch(t.actor());
+			for (ActorRef query : activeQueries) {
+				query.tell(new DeviceGroupQuery.DeviceStopped(device), getSelf());
+			}
+		}
+	}
+
+	// A device idle for passivateAfterMillis asks to be stopped. Not while a query may still
+	// be waiting for it, it asks again after the next idle period.
+	private void onPassivate(ActorRef device) {
+		String deviceId = actorsToDeviceIds.get(device);
+		if (deviceId == null || !activeQueries.isEmpty()) {
+			return;
+		}
+		passivating.put(deviceId, device);
+		device.tell(new Device.HandOff(), getSelf());
+	}
+
+	// The device handled everything sent to it before the HandOff. Unless a message was sent
+	// to it since, which took it off passivating, its history moves into the table and it
+	// stops. Unwatched first, so stopping it does not remove it from the group.
+	private void onHandedOff(ActorRef device, Device.HandedOff r) {
+		String deviceId = actorsToDeviceIds.get(device);
+		if (deviceId == null || passivating.remove(deviceId) != device) {
+			return;
+		}
+		if (r.history.size() > 0) {
+			r.history.trim();
+			latest.setHistory(latest.indexOf(deviceId), r.history);
+		}
+		actorsToDeviceIds.remove(device);
+		deviceIdToActors.remove(deviceId);
+		getContext().unwatch(device);
+		getContext().stop(device);
+		if (trace.isEnabled()) {
+			trace.log("DeviceGroup{{}}.passivated({})", groupId, deviceId);
+		}
+	}
+
+	// One Device.RecordTemperatures per device of the batch, however many of its readings
+	// the batch holds
+	private void onRecordTemperatures(DeviceManager.RecordTemperatures r) {
+		int accepted = 0;
+		DeviceManager.TemperatureUpdate[] updates = !feed.isStarted() ? null : new DeviceManager.TemperatureUpdate[r.size()];
+		// table row in the high half, index into the batch in the low half
+		long[] byRow = new long[r.size()];
+		for (int i = 0; i < r.size(); i++) {
+			int row = latest.indexOf(r.deviceIds[i]);
+			if (row >= 0 && Double.isFinite(r.temperatures[i])) {
+				// started before the reading goes into the table, a new device starts from the table
+				deviceFor(r.deviceIds[i]);
+				latest.record(row, r.temperatures[i], r.timestamps[i]);
+				if (updates != null) {
+					updates[accepted] = new DeviceManager.TemperatureUpdate(r.deviceIds[i], r.temperatures[i], r.timestamps[i]);
+				}
+				byRow[accepted] = ((long) row << 32) | i;
+				accepted++;
+			}
+		}
+		// sorted, the readings of a device follow each other in the order of the batch
+		Arrays.sort(byRow, 0, accepted);
+		for (int start = 0, end; start < accepted; start = end) {
+			end = start + 1;
+			while (end < accepted && byRow[end] >>> 32 == byRow[start] >>> 32) {
+				end++;
+			}
+			double[] temperatures = new double[end - start];
+			long[] timestamps = new long[end - start];
+			for (int j = start; j < end; j++) {
+				int i = (int) byRow[j];
+				temperatures[j - start] = r.temperatures[i];
+				timestamps[j - start] = r.timestamps[i];
+			}
+			deviceFor(r.deviceIds[(int) byRow[start]]).tell(new Device.RecordTemperatures(r.requestId, temperatures, timestamps), getSelf());
+		}
+		readings.add(accepted);
+		if (updates != null && accepted > 0) {
+			feed.publish(accepted == updates.length ? updates : Arrays.copyOf(updates, accepted));
+		}
+		if (accepted < r.size()) {
+			log.warning("DeviceGroup{{}}.recordTemperatures({}): {} rows for unknown devices or not finite", groupId, r.size(), r.size() - accepted);
+		}
+		// a shard flushing its batches does not wait for the answer
+		if (!getSender().equals(getContext().getSystem().deadLetters())) {
+			getSender().tell(new DeviceManager.TemperaturesRecorded(r.requestId, groupId, accepted, r.size() - accepted), getSelf());
+		}
+	}
+
+	private void onRestoreDevices(RestoreDevices r) {
+		for (int i = 0; i < r.deviceIds.length; i++) {
+			int row = latest.add(r.deviceIds[i]);
+			if (!Double.isNaN(r.temperatures[i])) {
+				latest.record(row, r.temperatures[i], r.timestamps[i]);
+				ActorRef running = deviceIdToActors.get(r.deviceIds[i]);
+				if (running != null) {
+					cancelPassivation(r.deviceIds[i]);
+					running.tell(new Device.RecordTemperature(0L, r.temperatures[i], r.timestamps[i]), getSelf());
+				}
+			}
+		}
+	}
+
+	private ActorRef startDevice(String deviceId) {
+		return startDevice(deviceId, Device.props(groupId, deviceId, new TemperatureHistory(historySize), Optional.empty(), passivateAfterMillis));
+	}
+
+	private ActorRef startDevice(String deviceId, Props props) {
+		ActorRef device = getContext().actorOf(props);
+		actorsToDeviceIds.put(device, deviceId);
+		deviceIdToActors.put(deviceId, device);
+		getContext().watch(device);
+		return device;
+	}
+
+	// A device of the table that is not running yet starts with its latest reading, a
+	// passivated one with the history it handed off as well
+	private ActorRef deviceFor(String deviceId) {
+		ActorRef device = deviceIdToActors.get(deviceId);
+		if (device != null) {
+			cancelPassivation(deviceId);
+			return device;
+		}
+		int row = latest.indexOf(deviceId);
+		TemperatureHistory history = latest.history(row);
+		if (history != null) {
+			latest.setHistory(row, null);
+			return startDevice(deviceId, Device.props(groupId, deviceId, history, Optional.of(latest.temperature(row)), passivateAfterMillis));
+		}
+		device = startDevice(deviceId);
+		if (latest.hasReading(row)) {
+			device.tell(new Device.RecordTemperature(0L, latest.temperature(row), latest.timestamp(row)), getSelf());
+		}
+		return device;
+	}
+
+	// The device gets a message after the HandOff, so its history is no longer complete
+	private void cancelPassivation(String deviceId) {
+		if (!passivating.isEmpty()) {
+			passivating.remove(deviceId);
 		}
 	}
 
 	private void onAllTemperatures(RequestAllTemperatures r) {
+		if (!r.fresh) {
+			getSender().tell(new RespondAllTemperatures(r.requestId, latest.latestReadings()), getSelf());
+			return;
+		}
 		// since Java collections are mutable, we want to avoid sharing them between
 		// actors (since multiple Actors (threads)
-		// modifying the same mutable data-structure is not safe), and perform a
-		// defensive copy of the mutable map:
-		//
-		// Feel free to use your favourite immutable data-structures library with Akka
-		// in Java applications!
-		Map<ActorRef, String> actorToDeviceIdCopy = new HashMap<>(this.actorsToDeviceIds);
+		// modifying the same mutable data-structure is not safe), and hand the query
+		// its own copy of the devices as two index aligned arrays
+		String[] deviceIds = latest.deviceIds();
+		ActorRef[] deviceActors = new ActorRef[deviceIds.length];
+		for (int i = 0; i < deviceIds.length; i++) {
+			deviceActors[i] = deviceFor(deviceIds[i]);
+		}
+
+		ActorRef query = getContext().actorOf(DeviceGroupQuery.props(deviceActors, deviceIds, r.requestId, getSender(), new FiniteDuration(3, TimeUnit.SECONDS)));
+		// one watch per query instead of one per device and query
+		getContext().watch(query);
+		activeQueries.add(query);
+	}
+
+	private void onGroupStats(DeviceManager.ReadDeviceGroupStats r) {
+		getSender().tell(new DeviceManager.DeviceGroupStats(r.requestId, groupId, latest.size(), latest.readings(), latest.withoutReading(), deviceIdToActors.size(),
+				latest.min(), latest.max(), latest.mean()), getSelf());
+	}
 
-		getContext().actorOf(DeviceGroupQuery.props(actorToDeviceIdCopy, r.requestId, getSender(), new FiniteDuration(3, TimeUnit.SECONDS)));
+	private void ranked(long requestId, int[] rows) {
+		getSender().tell(new DeviceManager.RankedTemperatures(requestId, groupId, latest.deviceIds(rows), latest.temperatures(rows)), getSelf());
 	}
 
 	// Messages to list devices
@@ -159,11 +376,58 @@ public class DeviceGroup extends AbstractActor {
 	}
 
 	// Request for all temperatures
+	// Served from the latest readings seen by the group, unless fresh asks every device
 	public static class RequestAllTemperatures {
 		final long requestId;
+		final boolean fresh;
 
 		public RequestAllTemperatures(long requestId) {
+			this(requestId, false);
+		}
+
+		public RequestAllTemperatures(long requestId, boolean fresh) {
+			this.requestId = requestId;
+			this.fresh = fresh;
+		}
+	}
+
+	// Copy of the latest readings of the group as index aligned arrays, for snapshots
+	public static class RequestLatestTemperatures {
+		public long requestId;
+
+		public RequestLatestTemperatures(long requestId) {
+			this.requestId = requestId;
+		}
+	}
+
+	public static class RespondLatestTemperatures {
+		public long requestId;
+		public String groupId;
+		public String[] deviceIds;
+		// NaN for a device without reading
+		public double[] temperatures;
+		public long[] timestamps;
+
+		public RespondLatestTemperatures(long requestId, String groupId, String[] deviceIds, double[] temperatures, long[] timestamps) {
 			this.requestId = requestId;
+			this.groupId = groupId;
+			this.deviceIds = deviceIds;
+			this.temperatures = temperatures;
+			this.timestamps = timestamps;
+		}
+	}
+
+	// Devices with their latest reading (NaN for none) in bulk, as loaded from a snapshot.
+	// The Device actors are started on first use.
+	static class RestoreDevices {
+		final String[] deviceIds;
+		final double[] temperatures;
+		final long[] timestamps;
+
+		RestoreDevices(String[] deviceIds, double[] temperatures, long[] timestamps) {
+			this.deviceIds = deviceIds;
+			this.temperatures = temperatures;
+			this.timestamps = timestamps;
 		}
 	}
 
@@ -1,97 +1,151 @@
 package com.akkasamples.iottempmanager;
 
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
 
 import com.akkasamples.iottempmanager.DeviceGroup.TemperatureReading;
+import com.akkasamples.iottempmanager.metrics.IoTMetrics;
 
 import akka.actor.AbstractActor;
 import akka.actor.ActorRef;
 import akka.actor.Cancellable;
 import akka.actor.Props;
-import akka.actor.Terminated;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import scala.concurrent.duration.FiniteDuration;
 
+/**
+ * Collects the temperature of every device of a group. Devices are addressed by their
+ * index in the arrays handed over by the DeviceGroup, the index doubles as the requestId
+ * of the ReadTemperature so a reply finds its slot without any lookup. Replies go into
+ * one pre-sized array and the outstanding devices are tracked in a bitmap, so a query
+ * over n devices allocates O(n) in total.
+ *
+ * Devices are not watched individually, the DeviceGroup already watches them and tells
+ * running queries about a stopped device with {@link DeviceStopped}.
+ */
 public class DeviceGroupQuery extends AbstractActor {
+	// Queries wait for up to the collection timeout, they run apart from the writes
+	public static final String DISPATCHER = "iot.dispatchers.query";
+
 	private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
-	private long requestId;
-	private ActorRef requester;
-	private Map<ActorRef, String> actorsToDevices;
+	private final SampledTrace trace = SampledTrace.create(getContext().getSystem(), log);
+	private final long requestId;
+	private final ActorRef requester;
+	private final ActorRef[] deviceActors;
+	private final String[] deviceIds;
+	private final TemperatureReading[] replies;
+	private final BitSet pending;
+	private int pendingCount;
+	// only built when a device stops during the query
+	private Map<ActorRef, Integer> indexByActor;
 	private Cancellable queryTimer;
 
-	public DeviceGroupQuery(Map<ActorRef, String> actorToDeviceId, long requestId, ActorRef requester, FiniteDuration timeout) {
+	public DeviceGroupQuery(ActorRef[] deviceActors, String[] deviceIds, long requestId, ActorRef requester, FiniteDuration timeout) {
 		this.requestId = requestId;
 		this.requester = requester;
-		this.actorsToDevices = actorToDeviceId;
+		this.deviceActors = deviceActors;
+		this.deviceIds = deviceIds;
+		this.replies = new TemperatureReading[deviceActors.length];
+		this.pending = new BitSet(deviceActors.length);
+		this.pending.set(0, deviceActors.length);
+		this.pendingCount = deviceActors.length;
 
 		queryTimer = getContext().getSystem().scheduler().scheduleOnce(timeout, getSelf(), new CollectionTimeout(), getContext().dispatcher(), getSelf());
 	}
 
-	public static Props props(Map<ActorRef, String> actorToDeviceId, long requestId, ActorRef requester, FiniteDuration timeout) {
-		return Props.create(DeviceGroupQuery.class, () -> new DeviceGroupQuery(actorToDeviceId, requestId, requester, timeout));
+	public static Props props(ActorRef[] deviceActors, String[] deviceIds, long requestId, ActorRef requester, FiniteDuration timeout) {
+		return Props.create(DeviceGroupQuery.class, () -> new DeviceGroupQuery(deviceActors, deviceIds, requestId, requester, timeout)).withDispatcher(DISPATCHER);
 	}
 
 	@Override
 	public void preStart() throws Exception {
-		log.info(String.format("DeviceGroupQuery{%d}.preStart()", requestId));
-		for (ActorRef deviceActor : actorsToDevices.keySet()) {
-			getContext().watch(deviceActor);
-			deviceActor.tell(new Device.ReadTemperature(0L), getSelf());
+		if (trace.isEnabled()) {
+			trace.log("DeviceGroupQuery{{}}.preStart({} devices)", requestId, deviceActors.length);
+		}
+		for (int i = 0; i < deviceActors.length; i++) {
+			deviceActors[i].tell(new Device.ReadTemperature(i), getSelf());
+		}
+		if (pendingCount == 0) {
+			respond(false);
 		}
 	}
 
 	@Override
 	public void postStop() throws Exception {
-		log.info(String.format("DeviceGroupQuery{%d}.postStop()", requestId));
 		this.queryTimer.cancel();
 	}
 
 	@Override
 	public Receive createReceive() {
-		return waitingForReplies(new HashMap<>(), actorsToDevices.keySet());
-	}
-	
-	private Receive waitingForReplies(Map<String, DeviceGroup.TemperatureReading> repliesSofar, Set<ActorRef> stillWaiting) {
 		return receiveBuilder().match(Device.RespondTemperature.class, r -> {
-			ActorRef sender = getSender();
-			TemperatureReading reading = r.temperature.map(v -> (DeviceGroup.TemperatureReading) new DeviceGroup.TemperatureAvailable(v)).orElse(new DeviceGroup.TemperatureNotAvailable());
-			responseReceived(repliesSofar, stillWaiting, reading, sender);
+			int index = (int) r.requestId;
+			if (index >= 0 && index < deviceActors.length && deviceActors[index].equals(getSender())) {
+				TemperatureReading reading = r.temperature.isPresent() ? new DeviceGroup.TemperatureAvailable(r.temperature.get()) : new DeviceGroup.TemperatureNotAvailable();
+				responseReceived(index, reading);
+			}
 		})
-		.match(Terminated.class, t -> {
-			responseReceived(repliesSofar, stillWaiting, new DeviceGroup.DeviceTerminated(), t.actor());
+		.match(DeviceStopped.class, r -> {
+			Integer index = indexOf(r.device);
+			if (index != null) {
+				responseReceived(index, new DeviceGroup.DeviceTerminated());
+			}
 		})
 		.match(CollectionTimeout.class, r -> {
-			Map<String, TemperatureReading> replies = new HashMap<>(repliesSofar);
-			for (ActorRef actor: stillWaiting) {
-				replies.put(actorsToDevices.get(actor), new DeviceGroup.DeviceTimedout());
-				requester.tell(new DeviceGroup.RespondAllTemperatures(requestId, replies), getSelf());
-				getContext().stop(getSelf());
+			log.warning("DeviceGroupQuery{{}}.timeout(): {} of {} devices did not answer", requestId, pendingCount, deviceActors.length);
+			DeviceGroup.TemperatureReading timedOut = new DeviceGroup.DeviceTimedout();
+			for (int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(i + 1)) {
+				replies[i] = timedOut;
 			}
+			respond(true);
 		})
 		.build();
 	}
 
-	private void responseReceived(Map<String, TemperatureReading> repliesSofar, Set<ActorRef> stillWaiting, TemperatureReading reading, ActorRef actor) {
-		getContext().unwatch(actor);
-		String deviceId = actorsToDevices.get(actor);
-		Set<ActorRef> newPending = new HashSet<>(stillWaiting);
-		newPending.remove(actor);
-		
-		Map<String, DeviceGroup.TemperatureReading> replies = new HashMap<>(repliesSofar);
-		replies.put(deviceId, reading);
-		if (newPending.isEmpty()) {
-			requester.tell(new DeviceGroup.RespondAllTemperatures(requestId, replies), getSelf());
-			getContext().stop(getSelf());
-		} else {
-			getContext().become(waitingForReplies(replies, newPending));
+	private void responseReceived(int index, TemperatureReading reading) {
+		if (!pending.get(index)) {
+			return;
+		}
+		pending.clear(index);
+		replies[index] = reading;
+		if (--pendingCount == 0) {
+			respond(false);
+		}
+	}
+
+	private void respond(boolean timedOut) {
+		Map<String, TemperatureReading> readings = new HashMap<>((int) (deviceIds.length / 0.75f) + 1);
+		boolean partial = timedOut;
+		for (int i = 0; i < deviceIds.length; i++) {
+			readings.put(deviceIds[i], replies[i]);
+			partial |= replies[i] instanceof DeviceGroup.DeviceTerminated;
+		}
+		IoTMetrics.get(getContext().getSystem()).queryCompleted(timedOut, partial);
+		requester.tell(new DeviceGroup.RespondAllTemperatures(requestId, readings), getSelf());
+		getContext().stop(getSelf());
+	}
+
+	private Integer indexOf(ActorRef device) {
+		if (indexByActor == null) {
+			indexByActor = new HashMap<>((int) (deviceActors.length / 0.75f) + 1);
+			for (int i = 0; i < deviceActors.length; i++) {
+				indexByActor.put(deviceActors[i], i);
+			}
 		}
+		return indexByActor.get(device);
 	}
 
 	public static class CollectionTimeout {
 	}
 
+	// Sent by the DeviceGroup when one of its devices stopped while the query is running
+	public static class DeviceStopped {
+		public ActorRef device;
+
+		public DeviceStopped(ActorRef device) {
+			this.device = device;
+		}
+	}
+
 }
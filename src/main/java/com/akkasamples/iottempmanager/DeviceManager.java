@@ -1,8 +1,15 @@
 package com.akkasamples.iottempmanager;
 
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.TimeUnit;
 
 import com.akkasamples.iottempmanager.DeviceGroup.DeviceTerminated;
@@ -10,120 +17,421 @@ import com.akkasamples.iottempmanager.DeviceGroup.DeviceTimedout;
 import com.akkasamples.iottempmanager.DeviceGroup.TemperatureAvailable;
 import com.akkasamples.iottempmanager.DeviceGroup.TemperatureNotAvailable;
 import com.akkasamples.iottempmanager.DeviceGroup.TemperatureReading;
+import com.akkasamples.iottempmanager.journal.JournalSnapshot;
+import com.akkasamples.iottempmanager.journal.TemperatureJournal;
+import com.akkasamples.iottempmanager.metrics.IoTMetrics;
+import com.typesafe.config.Config;
 
-import akka.actor.AbstractActor;
+import akka.NotUsed;
 import akka.actor.ActorRef;
+import akka.actor.Cancellable;
 import akka.actor.Props;
+import akka.actor.Status;
 import akka.actor.Terminated;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
-import akka.pattern.Patterns;
+import akka.pattern.PatternsCS;
+import akka.stream.javadsl.Source;
 import akka.util.Timeout;
-import scala.concurrent.Await;
-import scala.concurrent.Future;
+import scala.concurrent.duration.FiniteDuration;
+
+public class DeviceManager extends TimedActor {
+	// None of the handlers block: replies are forwarded or piped back to the requester and
+	// a timed out ask reaches it as a Status.Failure
+	static final Timeout DEVICE_LIST_TIMEOUT = new Timeout(1000, TimeUnit.MILLISECONDS);
+	// Must outlive the DeviceGroupQuery collection timeout
+	static final Timeout GROUP_TEMPERATURE_TIMEOUT = new Timeout(4000, TimeUnit.MILLISECONDS);
+	// shared with the IoTManager, both only route
+	public static final String DISPATCHER = "iot.dispatchers.device-manager";
 
-public class DeviceManager extends AbstractActor {
 	private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+	private final SampledTrace trace = SampledTrace.create(getContext().getSystem(), log);
 	private Map<String, ActorRef> groupToActors = new HashMap<>();
 	private Map<ActorRef, String> actorsToGroups = new HashMap<>();
+	// the groups are published under the IoTManager for the HTTP routes to send to directly
+	private final GroupRegistry registry = GroupRegistry.get(getContext().getSystem());
+	// iot.device-group.mode = compact keeps the devices of a group in a CompactDeviceGroup
+	private boolean compactGroups;
+	// iot.device-manager.batching: RecordTemperature readings collected per group
+	private int maxBatch;
+	private FiniteDuration linger;
+	private final Map<String, GroupBatch> batches = new HashMap<>();
+	private boolean batchFlushScheduled;
+	// null unless iot.journal.enabled
+	private TemperatureJournal journal;
+	private String fsync;
+	private FiniteDuration flushInterval;
+	private boolean flushScheduled;
+	private Cancellable snapshotTimer;
+	// set from the start of a snapshot until it is written
+	private JournalSnapshot snapshot;
+	// groups that did not hand over their readings for the snapshot yet
+	private Set<String> snapshotPending;
+	private List<ActorRef> snapshotRequesters = new ArrayList<>();
+
+	public DeviceManager() {
+		super(IoTMetrics.DEVICE_MANAGER);
+	}
 
 	public static Props props() {
-		return Props.create(DeviceManager.class);
+		return Props.create(DeviceManager.class).withMailbox("iot.mailbox.device-manager").withDispatcher(DISPATCHER);
 	}
 
 	@Override
 	public void preStart() throws Exception {
 		log.info("DeviceManager.preStart()");
+		String mode = getContext().getSystem().settings().config().getString("iot.device-group.mode");
+		if (!mode.equals("actors") && !mode.equals("compact")) {
+			throw new IllegalArgumentException("iot.device-group.mode must be actors or compact, not " + mode);
+		}
+		compactGroups = mode.equals("compact");
+		Config batching = getContext().getSystem().settings().config().getConfig("iot.device-manager.batching");
+		maxBatch = Math.max(1, batching.getInt("max-size"));
+		linger = FiniteDuration.create(batching.getDuration("linger", TimeUnit.MICROSECONDS), TimeUnit.MICROSECONDS);
+		Config config = getContext().getSystem().settings().config().getConfig("iot.journal");
+		if (config.getBoolean("enabled")) {
+			recover(config);
+		}
 		super.preStart();
 	}
 
 	@Override
 	public void postStop() throws Exception {
 		log.info("DeviceManager.postStop()");
+		if (snapshotTimer != null) {
+			snapshotTimer.cancel();
+		}
+		if (journal != null) {
+			journal.close();
+		}
+		// the groups stopped with this shard
+		for (Map.Entry<String, ActorRef> group : groupToActors.entrySet()) {
+			registry.remove(getContext().getParent(), group.getKey(), group.getValue());
+		}
 		super.postStop();
 	}
 
+	// Rebuilds the groups and devices of this shard from its journal directory
+	private void recover(Config config) throws Exception {
+		long start = System.nanoTime();
+		fsync = config.getString("fsync");
+		if (!"none".equals(fsync) && !"interval".equals(fsync) && !"always".equals(fsync)) {
+			throw new IllegalArgumentException("iot.journal.fsync must be one of none, interval, always: " + fsync);
+		}
+		flushInterval = FiniteDuration.create(config.getDuration("flush-interval", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+		JournalRecovery recovery = new JournalRecovery(this::groupFor, getSelf());
+		journal = TemperatureJournal.open(Paths.get(config.getString("directory"), getSelf().path().name()), config.getBytes("segment-size").intValue(), recovery);
+		recovery.finish();
+		log.info("DeviceManager.recover(): {} groups, {} devices, {} readings replayed in {} ms",
+				recovery.groups(), journal.devices(), recovery.readings(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		long snapshotInterval = config.getDuration("snapshot-interval", TimeUnit.MILLISECONDS);
+		if (snapshotInterval > 0) {
+			FiniteDuration interval = FiniteDuration.create(snapshotInterval, TimeUnit.MILLISECONDS);
+			snapshotTimer = getContext().getSystem().scheduler().schedule(interval, interval, getSelf(), new TakeSnapshot(), getContext().dispatcher(), ActorRef.noSender());
+		}
+	}
+
+	// Later writes go to a new journal segment, the groups copy their latest readings as of now
+	private void onTakeSnapshot(TakeSnapshot r) {
+		if (journal == null) {
+			getSender().tell(new Status.Failure(new IllegalStateException("Snapshots need iot.journal.enabled")), getSelf());
+			return;
+		}
+		if (!getSender().equals(getContext().getSystem().deadLetters())) {
+			snapshotRequesters.add(getSender());
+		}
+		if (snapshot != null) {
+			return;
+		}
+		// readings journaled before the new segment must be in the groups' copies
+		flushBatches();
+		snapshot = journal.startSnapshot();
+		snapshotPending = new HashSet<>(groupToActors.keySet());
+		for (ActorRef group : groupToActors.values()) {
+			group.tell(new DeviceGroup.RequestLatestTemperatures(snapshot.firstSegment()), getSelf());
+		}
+		writeSnapshotWhenComplete();
+	}
+
+	private void onLatestTemperatures(DeviceGroup.RespondLatestTemperatures r) {
+		if (snapshotPending == null || !snapshotPending.remove(r.groupId)) {
+			return;
+		}
+		int[] deviceNos = new int[r.deviceIds.length];
+		for (int i = 0; i < deviceNos.length; i++) {
+			deviceNos[i] = journal.deviceNumber(r.groupId, r.deviceIds[i]);
+		}
+		snapshot.addGroup(r.groupId, deviceNos, r.deviceIds, r.temperatures, r.timestamps);
+		writeSnapshotWhenComplete();
+	}
+
+	// Writing happens on the snapshot dispatcher, this DeviceManager keeps serving meanwhile
+	private void writeSnapshotWhenComplete() {
+		if (!snapshotPending.isEmpty()) {
+			return;
+		}
+		snapshotPending = null;
+		JournalSnapshot written = snapshot;
+		CompletionStage<Object> result = CompletableFuture.supplyAsync(() -> {
+			try {
+				written.write();
+				return new SnapshotWritten(written);
+			} catch (Exception e) {
+				return new SnapshotFailed(e);
+			}
+		}, getContext().getSystem().dispatchers().lookup("iot.journal.snapshot-dispatcher"));
+		PatternsCS.pipe(result, getContext().dispatcher()).to(getSelf());
+	}
+
+	private void onSnapshotWritten(SnapshotWritten r) throws Exception {
+		journal.snapshotWritten(r.snapshot);
+		log.info("DeviceManager.snapshotWritten(): {} devices, journal continues at segment {}", r.snapshot.devices(), r.snapshot.firstSegment());
+		for (ActorRef requester : snapshotRequesters) {
+			requester.tell(new SnapshotTaken(r.snapshot.devices()), getSelf());
+		}
+		snapshotRequesters.clear();
+		snapshot = null;
+	}
+
+	// The journal segments stay, the next snapshot covers them
+	private void onSnapshotFailed(SnapshotFailed r) {
+		log.warning("DeviceManager.snapshotFailed(): {}", r.cause);
+		for (ActorRef requester : snapshotRequesters) {
+			requester.tell(new Status.Failure(r.cause), getSelf());
+		}
+		snapshotRequesters.clear();
+		snapshot = null;
+	}
+
+	// Group commit: records appended until the flush share one fsync
+	private void journalWritten() {
+		if ("always".equals(fsync)) {
+			journal.flush();
+		} else if ("interval".equals(fsync) && !flushScheduled) {
+			flushScheduled = true;
+			getContext().getSystem().scheduler().scheduleOnce(flushInterval, getSelf(), new FlushJournal(), getContext().dispatcher(), getSelf());
+		}
+	}
+
 	@Override
 	public Receive createReceive() {
 		return receiveBuilder().match(RequestRegisterDevice.class, this::onRegisterDevice)
 				.match(DeviceManager.RecordTemperature.class, r -> {
 					if (groupToActors.containsKey(r.groupId)) {
-						log.info(String.format("DeviceManager.recordDeviceTemperature(%s, %s, %f):", r.groupId, r.deviceId, r.temperature));
+						if (trace.isEnabled()) {
+							trace.log("DeviceManager.recordDeviceTemperature({}, {}, {})", r.groupId, r.deviceId, r.temperature);
+						}
 						ActorRef deviceGroupActor = groupToActors.get(r.groupId);
-						deviceGroupActor.tell(r, getSelf());
+						if (journal != null) {
+							int deviceNo = journal.deviceNumber(r.groupId, r.deviceId);
+							if (deviceNo >= 0) {
+								journal.append(deviceNo, r.timestamp, r.temperature);
+								journalWritten();
+							}
+						}
+						if (maxBatch > 1) {
+							batch(r);
+						} else {
+							deviceGroupActor.tell(r, getSelf());
+						}
+					} else {
+						log.warning("DeviceManager.recordDeviceTemperature({}, {}, {}): Device Group not Found", r.groupId, r.deviceId, r.temperature);
+					}
+				})
+				.match(DeviceManager.RecordTemperatures.class, r -> {
+					flushBatch(r.groupId);
+					if (groupToActors.containsKey(r.groupId)) {
+						if (journal != null) {
+							journalTemperatures(r);
+						}
+						groupToActors.get(r.groupId).forward(r, getContext());
 					} else {
-						log.warning(String.format("DeviceManager.recordDeviceTemperature(%s, %s, %f): Device Group not Found", r.groupId, r.deviceId, r.temperature));
+						log.warning("DeviceManager.recordDeviceTemperatures({}, {}): Device Group not Found", r.groupId, r.size());
+						getSender().tell(new TemperaturesRecorded(r.requestId, r.groupId, 0, r.size()), getSelf());
 					}
 				})
 				.match(DeviceManager.ReadDeviceTemperature.class, r -> {
+					if (r.trace != null) {
+						r.trace.started(TraceContext.DEVICE_MANAGER);
+					}
+					flushBatch(r.groupId);
 					if (groupToActors.containsKey(r.groupId)) {
-						ActorRef deviceGroupActor = groupToActors.get(r.groupId);
-						Timeout timeout = new Timeout(100, TimeUnit.MILLISECONDS);
-						Future<Object> result = Patterns.ask(deviceGroupActor, r, timeout);
-						try {
-							DeviceTemperature reply = (DeviceTemperature)Await.result(result, timeout.duration());
-							getSender().tell(new DeviceTemperature(r.requestId, r.groupId, r.deviceId, reply.temperature), getSelf());
-						} catch (Exception e) {
-							e.printStackTrace();
+						// DeviceGroup answers the original sender directly with a DeviceTemperature
+						if (r.trace != null) {
+							r.trace.enqueued(TraceContext.DEVICE_GROUP);
 						}
+						groupToActors.get(r.groupId).forward(r, getContext());
 					}
 				})
 				.match(RequestDeviceList.class, r -> {
-					log.info(String.format("DeviceManager.requestDeviceList(%s): IsPresent: %b", r.groupId, groupToActors.containsKey(r.groupId)));
+					flushBatch(r.groupId);
 					if (groupToActors.containsKey(r.groupId)) {
 						ActorRef deviceGroupActor = groupToActors.get(r.groupId);
-						Timeout timeout = new Timeout(1000, TimeUnit.MILLISECONDS);
-						log.info(String.format("DeviceManager.requestDeviceList(%s): Asking for Device List", r.groupId));
-						Future<Object> result = Patterns.ask(deviceGroupActor, new DeviceGroup.RequestDeviceList(r.requestId), timeout);
-						try {
-							DeviceGroup.RespondDeviceList reply = (DeviceGroup.RespondDeviceList)Await.result(result, timeout.duration());
-							log.info(String.format("DeviceManager.requestDeviceList(%s): DeviceList: %s", r.groupId, reply.devices));
-							getSender().tell(new DeviceList(r.requestId, r.groupId, reply.devices), getSelf());
-							log.info(String.format("DeviceManager.requestDeviceList(%s): DeviceList: %s", r.groupId, reply.devices));
-						} catch (Exception e) {
-							e.printStackTrace();
+						if (trace.isEnabled()) {
+							trace.log("DeviceManager.requestDeviceList({}, {}): Asking for Device List", r.groupId, r.requestId);
 						}
+						CompletionStage<Object> reply = PatternsCS.ask(deviceGroupActor, new DeviceGroup.RequestDeviceList(r.requestId), DEVICE_LIST_TIMEOUT)
+								.thenApply(o -> new DeviceList(r.requestId, r.groupId, ((DeviceGroup.RespondDeviceList) o).devices));
+						PatternsCS.pipe(reply, getContext().dispatcher()).to(getSender(), getSelf());
 					} else {
-						log.warning(String.format("DeviceManager.requestDeviceList(%s): Deviceroup Not Present", r.groupId));
+						log.warning("DeviceManager.requestDeviceList({}): Device Group Not Present", r.groupId);
 					}
 				}).match(DeviceManager.ReadDeviceGroupTemperature.class, this::onAllTemperature)
+				.match(DeviceManager.ReadDeviceGroupStats.class, r -> {
+					flushBatch(r.groupId);
+					if (groupToActors.containsKey(r.groupId)) {
+						groupToActors.get(r.groupId).forward(r, getContext());
+					} else {
+						getSender().tell(new DeviceGroupNotFound(r.requestId, r.groupId), getSelf());
+					}
+				})
+				.match(DeviceManager.ReadTopTemperatures.class, r -> {
+					flushBatch(r.groupId);
+					if (groupToActors.containsKey(r.groupId)) {
+						groupToActors.get(r.groupId).forward(r, getContext());
+					} else {
+						getSender().tell(new DeviceGroupNotFound(r.requestId, r.groupId), getSelf());
+					}
+				})
+				.match(DeviceManager.ReadTemperatureRange.class, r -> {
+					flushBatch(r.groupId);
+					if (groupToActors.containsKey(r.groupId)) {
+						groupToActors.get(r.groupId).forward(r, getContext());
+					} else {
+						getSender().tell(new DeviceGroupNotFound(r.requestId, r.groupId), getSelf());
+					}
+				})
+				.match(DeviceManager.ReadDeviceTemperatureHistory.class, r -> {
+					flushBatch(r.groupId);
+					if (groupToActors.containsKey(r.groupId)) {
+						groupToActors.get(r.groupId).forward(r, getContext());
+					}
+				})
+				.match(DeviceManager.SubscribeDeviceGroupFeed.class, r -> {
+					flushBatch(r.groupId);
+					if (groupToActors.containsKey(r.groupId)) {
+						groupToActors.get(r.groupId).forward(r, getContext());
+					}
+				})
+				.match(FlushBatches.class, r -> {
+					batchFlushScheduled = false;
+					flushBatches();
+				})
+				.match(FlushJournal.class, r -> {
+					flushScheduled = false;
+					journal.flush();
+				})
+				// replies of the groups to the readings sent during recovery, batches are sent
+				// without a sender and not answered
+				.match(TemperaturesRecorded.class, r -> {})
+				.match(TakeSnapshot.class, this::onTakeSnapshot)
+				.match(DeviceGroup.RespondLatestTemperatures.class, this::onLatestTemperatures)
+				.match(SnapshotWritten.class, this::onSnapshotWritten)
+				.match(SnapshotFailed.class, this::onSnapshotFailed)
+				.match(Status.Failure.class, this::onFailure)
 				.match(Terminated.class, this::onTerminate).build();
 	}
 	
 	public void onAllTemperature(DeviceManager.ReadDeviceGroupTemperature r) {
-		ActorRef requester = getSender();
+		flushBatch(r.groupId);
 		if (groupToActors.containsKey(r.groupId)) {
 			ActorRef deviceGroupActor = groupToActors.get(r.groupId);
-			Future<Object> result = Patterns.ask(deviceGroupActor, new DeviceGroup.RequestAllTemperatures(r.requestId), 100);
-			Timeout timeout = new Timeout(100, TimeUnit.MILLISECONDS);
-			try {
-				DeviceGroup.RespondAllTemperatures reply = (DeviceGroup.RespondAllTemperatures)Await.result(result, timeout.duration());
-				requester.tell(new DeviceGroupTemperature(r.requestId, r.groupId, reply.readings), getSelf());
-			} catch (Exception e) {
-				e.printStackTrace();
+			CompletionStage<Object> reply = PatternsCS.ask(deviceGroupActor, new DeviceGroup.RequestAllTemperatures(r.requestId, r.fresh), GROUP_TEMPERATURE_TIMEOUT)
+					.thenApply(o -> new DeviceGroupTemperature(r.requestId, r.groupId, ((DeviceGroup.RespondAllTemperatures) o).readings));
+			PatternsCS.pipe(reply, getContext().dispatcher()).to(getSender(), getSelf());
+		}
+	}
+
+	public void onFailure(Status.Failure f) {
+		log.warning("DeviceManager.onFailure({}): {}", getSender(), f.cause());
+	}
+
+	// Adds the reading to the batch of its group, sent once full or at the next FlushBatches
+	private void batch(RecordTemperature r) {
+		GroupBatch batch = batches.get(r.groupId);
+		if (batch == null) {
+			batch = new GroupBatch(r.requestId);
+			batches.put(r.groupId, batch);
+		}
+		batch.add(r.deviceId, r.temperature, r.timestamp);
+		if (batch.size == maxBatch) {
+			flushBatch(r.groupId);
+		} else if (!batchFlushScheduled) {
+			batchFlushScheduled = true;
+			if (linger.length() > 0) {
+				getContext().getSystem().scheduler().scheduleOnce(linger, getSelf(), new FlushBatches(), getContext().dispatcher(), getSelf());
+			} else {
+				getSelf().tell(new FlushBatches(), getSelf());
 			}
 		}
 	}
 
+	// Sends the readings collected for the group, before anything else goes out to it. Nobody
+	// waits for a batch, it goes without a sender so the group does not answer it.
+	private void flushBatch(String groupId) {
+		if (batches.isEmpty()) {
+			return;
+		}
+		GroupBatch batch = batches.remove(groupId);
+		if (batch != null) {
+			groupToActors.get(groupId).tell(batch.toMessage(groupId), ActorRef.noSender());
+		}
+	}
+
+	private void flushBatches() {
+		for (Map.Entry<String, GroupBatch> batch : batches.entrySet()) {
+			groupToActors.get(batch.getKey()).tell(batch.getValue().toMessage(batch.getKey()), ActorRef.noSender());
+		}
+		batches.clear();
+	}
+
+	private void journalTemperatures(RecordTemperatures r) {
+		int appended = 0;
+		for (int i = 0; i < r.size(); i++) {
+			int deviceNo = journal.deviceNumber(r.groupId, r.deviceIds[i]);
+			if (deviceNo >= 0) {
+				journal.append(deviceNo, r.timestamps[i], r.temperatures[i]);
+				appended++;
+			}
+		}
+		if (appended > 0) {
+			journalWritten();
+		}
+	}
+
 	public void onRegisterDevice(RequestRegisterDevice r) {
-		if (!groupToActors.containsKey(r.groupId)) {
-			ActorRef deviceGroup = getContext().actorOf(DeviceGroup.props(r.groupId));
-			actorsToGroups.put(deviceGroup, r.groupId);
-			groupToActors.put(r.groupId, deviceGroup);
-			deviceGroup.forward(r, getContext());
+		flushBatch(r.groupId);
+		if (journal != null && journal.deviceNumber(r.groupId, r.deviceId) < 0) {
+			journal.register(r.groupId, r.deviceId);
+			journalWritten();
+		}
+		groupFor(r.groupId).forward(r, getContext());
+	}
+
+	private ActorRef groupFor(String groupId) {
+		ActorRef deviceGroup = groupToActors.get(groupId);
+		if (deviceGroup == null) {
+			deviceGroup = getContext().actorOf(compactGroups ? CompactDeviceGroup.props(groupId) : DeviceGroup.props(groupId));
+			actorsToGroups.put(deviceGroup, groupId);
+			groupToActors.put(groupId, deviceGroup);
 			getContext().watch(deviceGroup);
-		} else {
-			groupToActors.get(r.groupId).forward(r, getContext());
+			registry.register(getContext().getParent(), groupId, deviceGroup);
 		}
+		return deviceGroup;
 	}
 
 	public void onTerminate(Terminated t) {
 		if (actorsToGroups.containsKey(t.actor())) {
 			String groupId = actorsToGroups.get(t.actor());
-			log.info(String.format("DeviceManager.onTerminateDeviceGroup(%s)", groupId));
+			log.info("DeviceManager.onTerminateDeviceGroup({})", groupId);
 			groupToActors.remove(groupId);
 			actorsToGroups.remove(t.actor());
+			registry.remove(getContext().getParent(), groupId, t.actor());
+			batches.remove(groupId);
 			getContext().unwatch(t.actor());
+			if (snapshotPending != null && snapshotPending.remove(groupId)) {
+				writeSnapshotWhenComplete();
+			}
 		}
 	}
 	//Messages for Requesting all devices of a group
@@ -175,18 +483,127 @@ public class DeviceManager extends AbstractActor {
 		}
 	}
 
+	// Timer of the journal group commit
+	static class FlushJournal {
+	}
+
+	// Sends the batches collected since the first reading in them
+	static class FlushBatches {
+	}
+
+	// RecordTemperature readings of one group not sent yet, the arrays grow with the batch
+	static final class GroupBatch {
+		final long requestId;
+		String[] deviceIds = new String[8];
+		double[] temperatures = new double[8];
+		long[] timestamps = new long[8];
+		int size;
+
+		GroupBatch(long requestId) {
+			this.requestId = requestId;
+		}
+
+		void add(String deviceId, double temperature, long timestamp) {
+			if (size == deviceIds.length) {
+				deviceIds = Arrays.copyOf(deviceIds, size * 2);
+				temperatures = Arrays.copyOf(temperatures, size * 2);
+				timestamps = Arrays.copyOf(timestamps, size * 2);
+			}
+			deviceIds[size] = deviceId;
+			temperatures[size] = temperature;
+			timestamps[size] = timestamp;
+			size++;
+		}
+
+		// under the requestId of its first reading
+		RecordTemperatures toMessage(String groupId) {
+			return size == deviceIds.length
+					? new RecordTemperatures(requestId, groupId, deviceIds, temperatures, timestamps)
+					: new RecordTemperatures(requestId, groupId, Arrays.copyOf(deviceIds, size), Arrays.copyOf(temperatures, size), Arrays.copyOf(timestamps, size));
+		}
+	}
+
+	// Writes a snapshot of the journaled state, periodically with iot.journal.snapshot-interval
+	public static class TakeSnapshot {
+	}
+
+	public static class SnapshotTaken {
+		public int devices;
+
+		public SnapshotTaken(int devices) {
+			this.devices = devices;
+		}
+	}
+
+	static class SnapshotWritten {
+		final JournalSnapshot snapshot;
+
+		SnapshotWritten(JournalSnapshot snapshot) {
+			this.snapshot = snapshot;
+		}
+	}
+
+	static class SnapshotFailed {
+		final Exception cause;
+
+		SnapshotFailed(Exception cause) {
+			this.cause = cause;
+		}
+	}
+
 	// Device's Record Temperature
 	public static class RecordTemperature {
 		public long requestId;
 		public String deviceId;
 		public String groupId;
 		public Double temperature;
+		public long timestamp;
 
 		public RecordTemperature(long requestId, String groupId, String deviceId, Double temp) {
+			this(requestId, groupId, deviceId, temp, System.currentTimeMillis());
+		}
+
+		public RecordTemperature(long requestId, String groupId, String deviceId, Double temp, long timestamp) {
 			this.requestId = requestId;
 			this.groupId = groupId;
 			this.deviceId = deviceId;
 			this.temperature = temp;
+			this.timestamp = timestamp;
+		}
+	}
+
+	// Batch of temperatures for devices of one group, the rows are the parallel arrays
+	public static class RecordTemperatures {
+		public long requestId;
+		public String groupId;
+		public String[] deviceIds;
+		public double[] temperatures;
+		public long[] timestamps;
+
+		public RecordTemperatures(long requestId, String groupId, String[] deviceIds, double[] temperatures, long[] timestamps) {
+			this.requestId = requestId;
+			this.groupId = groupId;
+			this.deviceIds = deviceIds;
+			this.temperatures = temperatures;
+			this.timestamps = timestamps;
+		}
+
+		public int size() {
+			return deviceIds.length;
+		}
+	}
+
+	public static class TemperaturesRecorded {
+		public long requestId;
+		public String groupId;
+		public int accepted;
+		public int rejected;
+
+		public TemperaturesRecorded(long requestId, String groupId, int accepted, int rejected) {
+			this.requestId = requestId;
+			this.groupId = groupId;
+			this.accepted = accepted;
+			this.rejected = rejected;
 		}
 	}
 
@@ -195,12 +612,19 @@ public class DeviceManager extends AbstractActor {
 		public long requestId;
 		public String deviceId;
 		public String groupId;
+		// stamped by every hop on the way to the Device
+		public TraceContext trace;
 
 		public ReadDeviceTemperature(long requestId, String groupId, String deviceId) {
 			this.requestId = requestId;
 			this.groupId = groupId;
 			this.deviceId = deviceId;
 		}
+
+		public ReadDeviceTemperature(TraceContext trace, String groupId, String deviceId) {
+			this(trace.requestId, groupId, deviceId);
+			this.trace = trace;
+		}
 	}
 
 	public static class DeviceTemperature {
@@ -217,14 +641,94 @@ public class DeviceManager extends AbstractActor {
 		}
 	}
 	
+	// Device's Temperature History, from and to are inclusive epoch millis
+	public static class ReadDeviceTemperatureHistory {
+		public long requestId;
+		public String groupId;
+		public String deviceId;
+		public long from;
+		public long to;
+
+		public ReadDeviceTemperatureHistory(long requestId, String groupId, String deviceId, long from, long to) {
+			this.requestId = requestId;
+			this.groupId = groupId;
+			this.deviceId = deviceId;
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	public static class DeviceTemperatureHistory {
+		public long requestId;
+		public String groupId;
+		public String deviceId;
+		// oldest sample first, index aligned
+		public long[] timestamps;
+		public double[] temperatures;
+
+		public DeviceTemperatureHistory(long requestId, String groupId, String deviceId, long[] timestamps, double[] temperatures) {
+			this.requestId = requestId;
+			this.groupId = groupId;
+			this.deviceId = deviceId;
+			this.timestamps = timestamps;
+			this.temperatures = temperatures;
+		}
+
+		// NaN for an empty window
+		public double min() {
+			double min = Double.NaN;
+			for (double t : temperatures) {
+				min = Double.isNaN(min) ? t : Math.min(min, t);
+			}
+			return min;
+		}
+
+		public double max() {
+			double max = Double.NaN;
+			for (double t : temperatures) {
+				max = Double.isNaN(max) ? t : Math.max(max, t);
+			}
+			return max;
+		}
+
+		public double avg() {
+			if (temperatures.length == 0) {
+				return Double.NaN;
+			}
+			double sum = 0.0;
+			for (double t : temperatures) {
+				sum += t;
+			}
+			return sum / temperatures.length;
+		}
+
+		public String getResponse(boolean withStats) {
+			StringBuilder builder = new StringBuilder(temperatures.length * 24 + 64);
+			for (int i = 0; i < temperatures.length; i++) {
+				builder.append(timestamps[i]).append(' ').append(temperatures[i]).append('\n');
+			}
+			if (withStats) {
+				builder.append(String.format("samples: %d\nmin: %s\nmax: %s\navg: %s\n", temperatures.length, min(), max(), avg()));
+			}
+			return builder.toString();
+		}
+	}
+
 	//DeviceGroup's Temperatures
 	public static class ReadDeviceGroupTemperature {
 		public long requestId;
 		public String groupId;
+		// ask every device instead of answering from the latest readings of the group
+		public boolean fresh;
 
 		public ReadDeviceGroupTemperature(long requestId, String groupId) {
+			this(requestId, groupId, false);
+		}
+
+		public ReadDeviceGroupTemperature(long requestId, String groupId, boolean fresh) {
 			this.requestId = requestId;
 			this.groupId = groupId;
+			this.fresh = fresh;
 		}
 	}
 
@@ -261,4 +765,149 @@ public class DeviceManager extends AbstractActor {
 			}
 		}
 	}
+
+	//DeviceGroup's live temperature updates
+	public static class SubscribeDeviceGroupFeed {
+		public long requestId;
+		public String groupId;
+
+		public SubscribeDeviceGroupFeed(long requestId, String groupId) {
+			this.requestId = requestId;
+			this.groupId = groupId;
+		}
+	}
+
+	// Every materialization of updates is a new subscriber, it only sees updates recorded
+	// after it is attached. An element holds the updates of one write in recording order.
+	public static class DeviceGroupFeed {
+		public long requestId;
+		public String groupId;
+		public Source<TemperatureUpdate[], NotUsed> updates;
+
+		public DeviceGroupFeed(long requestId, String groupId, Source<TemperatureUpdate[], NotUsed> updates) {
+			this.requestId = requestId;
+			this.groupId = groupId;
+			this.updates = updates;
+		}
+	}
+
+	public static class TemperatureUpdate {
+		public final String deviceId;
+		public final double temperature;
+		public final long timestamp;
+
+		public TemperatureUpdate(String deviceId, double temperature, long timestamp) {
+			this.deviceId = deviceId;
+			this.temperature = temperature;
+			this.timestamp = timestamp;
+		}
+	}
+
+	//DeviceGroup's running temperature aggregates
+	public static class ReadDeviceGroupStats {
+		public long requestId;
+		public String groupId;
+
+		public ReadDeviceGroupStats(long requestId, String groupId) {
+			this.requestId = requestId;
+			this.groupId = groupId;
+		}
+	}
+
+	public static class DeviceGroupStats {
+		public long requestId;
+		public String groupId;
+		public int devices;
+		public int readings;
+		public int withoutReading;
+		// Device actors running, the others are passivated or not started since a restore
+		public int running;
+		// NaN while no device has a reading
+		public double min;
+		public double max;
+		public double mean;
+
+		public DeviceGroupStats(long requestId, String groupId, int devices, int readings, int withoutReading, int running, double min, double max, double mean) {
+			this.requestId = requestId;
+			this.groupId = groupId;
+			this.devices = devices;
+			this.readings = readings;
+			this.withoutReading = withoutReading;
+			this.running = running;
+			this.min = min;
+			this.max = max;
+			this.mean = mean;
+		}
+
+		public String getResponse() {
+			return String.format("devices: %d\nreadings: %d\nwithoutReading: %d\nrunning: %d\nmin: %s\nmax: %s\nmean: %s\n",
+					devices, readings, withoutReading, running, min, max, mean);
+		}
+	}
+
+	// Answer to ReadDeviceGroupStats, ReadTopTemperatures and ReadTemperatureRange for a group
+	// without a registered device
+	public static class DeviceGroupNotFound {
+		public long requestId;
+		public String groupId;
+
+		public DeviceGroupNotFound(long requestId, String groupId) {
+			this.requestId = requestId;
+			this.groupId = groupId;
+		}
+	}
+
+	//Hottest or coldest devices of a group, answered from the group's temperature index
+	public static class ReadTopTemperatures {
+		public long requestId;
+		public String groupId;
+		public int n;
+		// hottest first when true, coldest first otherwise
+		public boolean hottest;
+
+		public ReadTopTemperatures(long requestId, String groupId, int n, boolean hottest) {
+			this.requestId = requestId;
+			this.groupId = groupId;
+			this.n = n;
+			this.hottest = hottest;
+		}
+	}
+
+	//Devices of a group with min <= temperature <= max
+	public static class ReadTemperatureRange {
+		public long requestId;
+		public String groupId;
+		public double min;
+		public double max;
+
+		public ReadTemperatureRange(long requestId, String groupId, double min, double max) {
+			this.requestId = requestId;
+			this.groupId = groupId;
+			this.min = min;
+			this.max = max;
+		}
+	}
+
+	// Answer to both, index aligned and in the order asked for, devices without reading left out
+	public static class RankedTemperatures {
+		public long requestId;
+		public String groupId;
+		public String[] deviceIds;
+		public double[] temperatures;
+
+		public RankedTemperatures(long requestId, String groupId, String[] deviceIds, double[] temperatures) {
+			this.requestId = requestId;
+			this.groupId = groupId;
+			this.deviceIds = deviceIds;
+			this.temperatures = temperatures;
+		}
+
+		public String getResponse() {
+			StringBuilder builder = new StringBuilder();
+			for (int i = 0; i < deviceIds.length; i++) {
+				builder.append(deviceIds[i]).append(": ").append(temperatures[i]).append('\n');
+			}
+			return builder.toString();
+		}
+	}
 }
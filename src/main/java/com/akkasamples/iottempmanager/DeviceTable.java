@@ -0,0 +1,351 @@
+package com.akkasamples.iottempmanager;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Latest temperature of every device of a group, kept as rows of parallel primitive
+ * columns with an open addressing deviceId to row index in front of them. Rows are
+ * dense: removing a device moves the last row into its place.
+ *
+ * The table also maintains the group aggregates (number of readings, min, max, mean) as
+ * readings come in. Sum and count are exact running values. Min and max are updated in
+ * place and only recomputed, on the next read, when the device holding the extreme moved
+ * away from it or was removed.
+ *
+ * Rows with a reading are ordered by temperature in a TemperatureIndex, brought up to
+ * date by the first ordered query after the readings, so the hottest, coldest and in
+ * range devices are found without a scan of the group.
+ *
+ * Devices passivated with a history park it in the table until they run again.
+ *
+ * Not thread safe, it is owned by a single DeviceGroup actor.
+ */
+final class DeviceTable {
+	private static final int EMPTY = 0;
+
+	private String[] deviceIds;
+	private double[] temperatures;
+	private long[] timestamps;
+	// history of a passivated device, null while it runs or has none
+	private TemperatureHistory[] histories;
+	private int size;
+
+	// slot -> row + 1, EMPTY for a free slot, length is a power of two
+	private int[] slots;
+	private int mask;
+
+	private int readings;
+	private double sum;
+	private double min = Double.NaN;
+	private double max = Double.NaN;
+	private boolean extremesStale;
+
+	private final TemperatureIndex index;
+
+	DeviceTable() {
+		this(16);
+	}
+
+	DeviceTable(int expectedDevices) {
+		int capacity = Math.max(4, expectedDevices);
+		deviceIds = new String[capacity];
+		temperatures = new double[capacity];
+		timestamps = new long[capacity];
+		histories = new TemperatureHistory[capacity];
+		slots = new int[tableSizeFor(capacity * 2)];
+		mask = slots.length - 1;
+		index = new TemperatureIndex(capacity);
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Row of the device or -1 if it is not in the table.
+	 */
+	int indexOf(String deviceId) {
+		for (int slot = hash(deviceId) & mask;; slot = (slot + 1) & mask) {
+			int entry = slots[slot];
+			if (entry == EMPTY) {
+				return -1;
+			}
+			if (deviceIds[entry - 1].equals(deviceId)) {
+				return entry - 1;
+			}
+		}
+	}
+
+	/**
+	 * Adds the device without a reading, returns its row. A known device keeps its row.
+	 */
+	int add(String deviceId) {
+		int row = indexOf(deviceId);
+		if (row >= 0) {
+			return row;
+		}
+		if (size == deviceIds.length) {
+			grow();
+		}
+		row = size++;
+		deviceIds[row] = deviceId;
+		temperatures[row] = Double.NaN;
+		timestamps[row] = 0L;
+		insertSlot(deviceId, row);
+		return row;
+	}
+
+	boolean remove(String deviceId) {
+		int row = indexOf(deviceId);
+		if (row < 0) {
+			return false;
+		}
+		clearReading(row);
+		deleteSlot(row);
+		index.removed(row);
+		int last = --size;
+		if (row != last) {
+			index.moved(last, row);
+			deviceIds[row] = deviceIds[last];
+			temperatures[row] = temperatures[last];
+			timestamps[row] = timestamps[last];
+			histories[row] = histories[last];
+			slots[findSlot(row, last)] = row + 1;
+		}
+		deviceIds[last] = null;
+		histories[last] = null;
+		return true;
+	}
+
+	String deviceId(int row) {
+		return deviceIds[row];
+	}
+
+	boolean hasReading(int row) {
+		return !Double.isNaN(temperatures[row]);
+	}
+
+	double temperature(int row) {
+		return temperatures[row];
+	}
+
+	long timestamp(int row) {
+		return timestamps[row];
+	}
+
+	TemperatureHistory history(int row) {
+		return histories[row];
+	}
+
+	void setHistory(int row, TemperatureHistory history) {
+		histories[row] = history;
+	}
+
+	/**
+	 * Records the reading, false and nothing recorded for a temperature that is not finite:
+	 * NaN is how the table marks a row without reading.
+	 */
+	boolean record(int row, double temperature, long timestamp) {
+		if (!Double.isFinite(temperature)) {
+			return false;
+		}
+		double previous = temperatures[row];
+		if (Double.isNaN(previous)) {
+			readings++;
+			index.changed(row);
+		} else {
+			sum -= previous;
+			if (previous == min || previous == max) {
+				extremesStale = true;
+			}
+			if (previous != temperature) {
+				index.changed(row);
+			}
+		}
+		temperatures[row] = temperature;
+		timestamps[row] = timestamp;
+		sum += temperature;
+		if (!extremesStale) {
+			min = Double.isNaN(min) ? temperature : Math.min(min, temperature);
+			max = Double.isNaN(max) ? temperature : Math.max(max, temperature);
+		}
+		return true;
+	}
+
+	// Copies of the filled part of the columns, index aligned
+
+	String[] deviceIds() {
+		return Arrays.copyOf(deviceIds, size);
+	}
+
+	double[] temperatures() {
+		return Arrays.copyOf(temperatures, size);
+	}
+
+	long[] timestamps() {
+		return Arrays.copyOf(timestamps, size);
+	}
+
+	/**
+	 * Latest reading of every device, TemperatureNotAvailable for a device without one.
+	 */
+	Map<String, DeviceGroup.TemperatureReading> latestReadings() {
+		Map<String, DeviceGroup.TemperatureReading> readings = new HashMap<>((int) (size / 0.75f) + 1);
+		DeviceGroup.TemperatureReading notAvailable = new DeviceGroup.TemperatureNotAvailable();
+		for (int row = 0; row < size; row++) {
+			readings.put(deviceIds[row], hasReading(row) ? new DeviceGroup.TemperatureAvailable(temperatures[row]) : notAvailable);
+		}
+		return readings;
+	}
+
+	// Ordered queries, rows of the table in temperature order
+
+	/**
+	 * Rows of the n devices with the highest temperatures, hottest first, or the lowest,
+	 * coldest first. Devices without a reading are left out.
+	 */
+	int[] top(int n, boolean hottest) {
+		index.reconcile(temperatures, deviceIds, size);
+		return hottest ? index.highest(n) : index.lowest(n);
+	}
+
+	/**
+	 * Rows of the devices with min <= temperature <= max, coldest first.
+	 */
+	int[] between(double min, double max) {
+		index.reconcile(temperatures, deviceIds, size);
+		return index.between(min, max);
+	}
+
+	String[] deviceIds(int[] rows) {
+		String[] ids = new String[rows.length];
+		for (int i = 0; i < rows.length; i++) {
+			ids[i] = deviceIds[rows[i]];
+		}
+		return ids;
+	}
+
+	double[] temperatures(int[] rows) {
+		double[] values = new double[rows.length];
+		for (int i = 0; i < rows.length; i++) {
+			values[i] = temperatures[rows[i]];
+		}
+		return values;
+	}
+
+	// Aggregates
+
+	int readings() {
+		return readings;
+	}
+
+	int withoutReading() {
+		return size - readings;
+	}
+
+	double min() {
+		refreshExtremes();
+		return min;
+	}
+
+	double max() {
+		refreshExtremes();
+		return max;
+	}
+
+	double mean() {
+		return readings == 0 ? Double.NaN : sum / readings;
+	}
+
+	private void clearReading(int row) {
+		double previous = temperatures[row];
+		if (!Double.isNaN(previous)) {
+			readings--;
+			sum -= previous;
+			if (previous == min || previous == max) {
+				extremesStale = true;
+			}
+			temperatures[row] = Double.NaN;
+			index.changed(row);
+		}
+	}
+
+	private void refreshExtremes() {
+		if (!extremesStale) {
+			return;
+		}
+		double newMin = Double.NaN;
+		double newMax = Double.NaN;
+		double newSum = 0.0;
+		for (int row = 0; row < size; row++) {
+			double t = temperatures[row];
+			if (!Double.isNaN(t)) {
+				newMin = Double.isNaN(newMin) ? t : Math.min(newMin, t);
+				newMax = Double.isNaN(newMax) ? t : Math.max(newMax, t);
+				newSum += t;
+			}
+		}
+		min = newMin;
+		max = newMax;
+		// also resets the rounding drift of the running sum
+		sum = newSum;
+		extremesStale = false;
+	}
+
+	// Index maintenance
+
+	private void insertSlot(String deviceId, int row) {
+		int slot = hash(deviceId) & mask;
+		while (slots[slot] != EMPTY) {
+			slot = (slot + 1) & mask;
+		}
+		slots[slot] = row + 1;
+	}
+
+	private int findSlot(int row, int entryRow) {
+		for (int slot = hash(deviceIds[row]) & mask;; slot = (slot + 1) & mask) {
+			if (slots[slot] == entryRow + 1) {
+				return slot;
+			}
+		}
+	}
+
+	// Backward shift deletion, keeps probe sequences intact without tombstones
+	private void deleteSlot(int row) {
+		int hole = findSlot(row, row);
+		for (int slot = (hole + 1) & mask; slots[slot] != EMPTY; slot = (slot + 1) & mask) {
+			int home = hash(deviceIds[slots[slot] - 1]) & mask;
+			// move the entry into the hole unless its home lies cyclically in (hole, slot]
+			if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+				slots[hole] = slots[slot];
+				hole = slot;
+			}
+		}
+		slots[hole] = EMPTY;
+	}
+
+	private void grow() {
+		int capacity = deviceIds.length * 2;
+		deviceIds = Arrays.copyOf(deviceIds, capacity);
+		temperatures = Arrays.copyOf(temperatures, capacity);
+		timestamps = Arrays.copyOf(timestamps, capacity);
+		histories = Arrays.copyOf(histories, capacity);
+		index.grow(capacity);
+		slots = new int[tableSizeFor(capacity * 2)];
+		mask = slots.length - 1;
+		for (int row = 0; row < size; row++) {
+			insertSlot(deviceIds[row], row);
+		}
+	}
+
+	private static int hash(String deviceId) {
+		int h = deviceId.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static int tableSizeFor(int n) {
+		return Integer.highestOneBit(Math.max(2, n) - 1) << 1;
+	}
+}
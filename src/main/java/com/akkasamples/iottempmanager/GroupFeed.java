@@ -0,0 +1,54 @@
+package com.akkasamples.iottempmanager;
+
+import akka.NotUsed;
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.japi.Pair;
+import akka.stream.ActorMaterializer;
+import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.BroadcastHub;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+
+/**
+ * Live updates of one group, started with the first subscriber. The feed is a BroadcastHub
+ * fed by an actor queue that drops the oldest updates when full, so recording never waits
+ * for subscribers. Each subscriber conflates on its own side of the hub, see TemperatureFeed.
+ *
+ * Owned by the group actor, its streams run on materializers of that actor's context.
+ */
+final class GroupFeed {
+	// Updates queued for the feed before the oldest are dropped, and the hub buffer
+	static final int FEED_BUFFER_SIZE = 1024;
+	static final int FEED_HUB_BUFFER_SIZE = 256;
+
+	private ActorRef input;
+	private Source<DeviceManager.TemperatureUpdate[], NotUsed> source;
+
+	/**
+	 * Whether anybody subscribed, updates are only built for a started feed.
+	 */
+	boolean isStarted() {
+		return input != null;
+	}
+
+	Source<DeviceManager.TemperatureUpdate[], NotUsed> source(AbstractActor.ActorContext context) {
+		if (source == null) {
+			ActorMaterializer materializer = ActorMaterializer.create(context);
+			Pair<ActorRef, Source<DeviceManager.TemperatureUpdate[], NotUsed>> hub = Source.<DeviceManager.TemperatureUpdate[]>actorRef(FEED_BUFFER_SIZE, OverflowStrategy.dropHead())
+					.toMat(BroadcastHub.of(DeviceManager.TemperatureUpdate[].class, FEED_HUB_BUFFER_SIZE), Keep.both())
+					.run(materializer);
+			input = hub.first();
+			source = hub.second();
+			// the hub holds updates back while nobody is attached, this consumer keeps it draining
+			source.runWith(Sink.ignore(), materializer);
+		}
+		return source;
+	}
+
+	// One feed element per write, the hub hands every element to every subscriber
+	void publish(DeviceManager.TemperatureUpdate... updates) {
+		input.tell(updates, ActorRef.noSender());
+	}
+}
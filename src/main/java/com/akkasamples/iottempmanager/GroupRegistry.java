@@ -0,0 +1,79 @@
+package com.akkasamples.iottempmanager;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+
+/**
+ * The running groups of every IoTManager by groupId, so callers outside the actors can send
+ * to a DeviceGroup without the IoTManager and DeviceManager hops. Each DeviceManager shard
+ * publishes the groups it starts under its parent and takes them out once they terminated
+ * or the shard stops, a lookup is a ConcurrentHashMap get.
+ *
+ * An entry can outlive its group until the shard saw the Terminated, a message sent to it
+ * then is a dead letter, just as if the shard had forwarded it in that moment.
+ */
+public final class GroupRegistry implements Extension {
+	private static final Id ID = new Id();
+
+	// IoTManager, then groupId
+	private final ConcurrentMap<ActorRef, ConcurrentMap<String, ActorRef>> groups = new ConcurrentHashMap<>();
+
+	GroupRegistry() {
+	}
+
+	public static GroupRegistry get(ActorSystem system) {
+		return ID.get(system);
+	}
+
+	static class Id extends AbstractExtensionId<GroupRegistry> implements ExtensionIdProvider {
+		@Override
+		public Id lookup() {
+			return ID;
+		}
+
+		@Override
+		public GroupRegistry createExtension(ExtendedActorSystem system) {
+			return new GroupRegistry();
+		}
+	}
+
+	/**
+	 * Live read-only view of the groups below the IoTManager, empty until it started one.
+	 */
+	public Map<String, ActorRef> groupsOf(ActorRef iotManager) {
+		return Collections.unmodifiableMap(groupsFor(iotManager));
+	}
+
+	private ConcurrentMap<String, ActorRef> groupsFor(ActorRef iotManager) {
+		return groups.computeIfAbsent(iotManager, m -> new ConcurrentHashMap<>());
+	}
+
+	void register(ActorRef iotManager, String groupId, ActorRef group) {
+		groupsFor(iotManager).put(groupId, group);
+	}
+
+	// Only this incarnation of the group, a newer one may have been registered since
+	void remove(ActorRef iotManager, String groupId, ActorRef group) {
+		ConcurrentMap<String, ActorRef> byGroupId = groups.get(iotManager);
+		if (byGroupId != null) {
+			byGroupId.remove(groupId, group);
+		}
+	}
+
+	// The IoTManager stopped, views handed out before stay empty
+	void release(ActorRef iotManager) {
+		ConcurrentMap<String, ActorRef> byGroupId = groups.remove(iotManager);
+		if (byGroupId != null) {
+			byGroupId.clear();
+		}
+	}
+}
@@ -1,54 +1,111 @@
 package com.akkasamples.iottempmanager;
 
-import akka.actor.AbstractActor;
+import com.akkasamples.iottempmanager.metrics.IoTMetrics;
+
 import akka.actor.ActorRef;
 import akka.actor.Props;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import scala.Option;
 
-public class IoTManager extends AbstractActor {
+/**
+ * Entry point of the device hierarchy. The groups are partitioned over a fixed number of
+ * DeviceManager shards by the hash of their groupId, so every message for a group is
+ * forwarded to the one shard owning it and the shards route in parallel.
+ */
+public class IoTManager extends TimedActor {
 	private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
-	private ActorRef deviceManagerActor;
+	private ActorRef[] deviceManagerActors;
+
+	public IoTManager() {
+		super(IoTMetrics.IOT_MANAGER);
+	}
 
 	public static Props props() {
-		return Props.create(IoTManager.class);
+		return Props.create(IoTManager.class).withMailbox("iot.mailbox.iot-manager").withDispatcher(DeviceManager.DISPATCHER);
+	}
+
+	/**
+	 * Index of the shard owning the group, stable for a given number of shards.
+	 */
+	public static int shardOf(String groupId, int shards) {
+		int h = groupId.hashCode() * 0x9E3779B9;
+		return Math.floorMod(h ^ (h >>> 16), shards);
 	}
 
 	@Override
 	public void preStart() throws Exception {
-		log.info("IoTManager.preStart()");
-		deviceManagerActor = getContext().actorOf(DeviceManager.props(), "device-manager");
+		int shards = getContext().getSystem().settings().config().getInt("iot.device-manager.shards");
+		if (shards <= 0) {
+			shards = Runtime.getRuntime().availableProcessors();
+		}
+		log.info("IoTManager.preStart(): {} DeviceManager shards", shards);
+		deviceManagerActors = new ActorRef[shards];
+		for (int i = 0; i < shards; i++) {
+			deviceManagerActors[i] = getContext().actorOf(DeviceManager.props(), "device-manager-" + i);
+		}
 	}
 	
 	@Override
 	public void postStop() throws Exception {
 		log.info("IoTManager.postStop()");
-//		getContext().stop(deviceManagerActor);
+		GroupRegistry.get(getContext().getSystem()).release(getSelf());
+	}
+
+	// Stops the shards but keeps the groups of this IoTManager in the registry, unlike the
+	// default that calls postStop. The routes hold a view of them, the new shards publish
+	// into it again and the stopping ones take out only their own groups.
+	@Override
+	public void preRestart(Throwable reason, Option<Object> message) throws Exception {
+		log.info("IoTManager.preRestart()");
+		for (ActorRef child : getContext().getChildren()) {
+			getContext().stop(child);
+		}
+	}
+
+	private ActorRef deviceManagerFor(String groupId) {
+		return deviceManagerActors[shardOf(groupId, deviceManagerActors.length)];
 	}
 
 	@Override
 	public Receive createReceive() {
 		return receiveBuilder()
 				.match(DeviceManager.RequestRegisterDevice.class, r -> {
-					deviceManagerActor.forward(r, getContext());
-				})
-				.match(DeviceGroup.RequestDeviceList.class, r -> {
-					deviceManagerActor.forward(r, getContext());
+					deviceManagerFor(r.groupId).forward(r, getContext());
 				})
 				.match(DeviceManager.RecordTemperature.class, r -> {
-					deviceManagerActor.forward(r, getContext());
+					deviceManagerFor(r.groupId).forward(r, getContext());
 				})
-				.match(DeviceManager.ReadDeviceTemperature.class, r -> {
-					deviceManagerActor.forward(r, getContext());
+				.match(DeviceManager.RecordTemperatures.class, r -> {
+					deviceManagerFor(r.groupId).forward(r, getContext());
 				})
-				.match(DeviceGroup.RequestAllTemperatures.class, r -> {
-					deviceManagerActor.forward(r, getContext());
+				.match(DeviceManager.ReadDeviceTemperature.class, r -> {
+					if (r.trace != null) {
+						r.trace.started(TraceContext.IOT_MANAGER);
+						r.trace.enqueued(TraceContext.DEVICE_MANAGER);
+					}
+					deviceManagerFor(r.groupId).forward(r, getContext());
 				})
 				.match(DeviceManager.RequestDeviceList.class, r -> {
-					deviceManagerActor.forward(r, getContext());
+					deviceManagerFor(r.groupId).forward(r, getContext());
 				})
 				.match(DeviceManager.ReadDeviceGroupTemperature.class, r -> {
-					deviceManagerActor.forward(r, getContext());
+					deviceManagerFor(r.groupId).forward(r, getContext());
+				})
+				.match(DeviceManager.ReadDeviceGroupStats.class, r -> {
+					deviceManagerFor(r.groupId).forward(r, getContext());
+				})
+				.match(DeviceManager.ReadTopTemperatures.class, r -> {
+					deviceManagerFor(r.groupId).forward(r, getContext());
+				})
+				.match(DeviceManager.ReadTemperatureRange.class, r -> {
+					deviceManagerFor(r.groupId).forward(r, getContext());
+				})
+				.match(DeviceManager.ReadDeviceTemperatureHistory.class, r -> {
+					deviceManagerFor(r.groupId).forward(r, getContext());
+				})
+				.match(DeviceManager.SubscribeDeviceGroupFeed.class, r -> {
+					deviceManagerFor(r.groupId).forward(r, getContext());
 				})
 				.build();
 	}
@@ -0,0 +1,166 @@
+package com.akkasamples.iottempmanager;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.akkasamples.iottempmanager.journal.TemperatureJournal;
+
+import akka.actor.ActorRef;
+
+/**
+ * Feeds a replayed journal back into the groups of a DeviceManager, in batches of up to
+ * BATCH_SIZE rows per group so recovery costs one message per batch instead of one per
+ * record.
+ *
+ * Registrations go to the group as RestoreDevices, together with the last reading that
+ * followed them before the batch is sent, which is how a snapshot lists its devices.
+ * Those devices are only started once they are used. Any other reading is sent as
+ * RecordTemperatures after the restore batch holding its device, so it reaches the Device
+ * and its history as it did originally.
+ */
+final class JournalRecovery implements TemperatureJournal.Replay {
+	static final int BATCH_SIZE = 1024;
+
+	private final Function<String, ActorRef> groupFor;
+	private final ActorRef self;
+	private final Map<String, Batch> batchByGroup = new HashMap<>();
+	// indexed by deviceNo
+	private String[] deviceIds = new String[1024];
+	private Batch[] batches = new Batch[1024];
+	// row of the device in the restore batch of its group, valid while restoreGenerations matches
+	private int[] restoreRows = new int[1024];
+	private int[] restoreGenerations = new int[1024];
+	private long readings;
+
+	JournalRecovery(Function<String, ActorRef> groupFor, ActorRef self) {
+		this.groupFor = groupFor;
+		this.self = self;
+	}
+
+	@Override
+	public void onRegister(int deviceNo, String groupId, String deviceId) {
+		if (deviceNo >= deviceIds.length) {
+			int capacity = Math.max(deviceNo + 1, deviceIds.length * 2);
+			deviceIds = Arrays.copyOf(deviceIds, capacity);
+			batches = Arrays.copyOf(batches, capacity);
+			restoreRows = Arrays.copyOf(restoreRows, capacity);
+			restoreGenerations = Arrays.copyOf(restoreGenerations, capacity);
+		}
+		Batch batch = batchByGroup.get(groupId);
+		if (batch == null) {
+			batch = new Batch(groupId, groupFor.apply(groupId));
+			batchByGroup.put(groupId, batch);
+		}
+		if (batch.restore.size == BATCH_SIZE) {
+			batch.sendRestore(self);
+		}
+		deviceIds[deviceNo] = deviceId;
+		batches[deviceNo] = batch;
+		restoreRows[deviceNo] = batch.restore.size;
+		restoreGenerations[deviceNo] = batch.restoreGeneration;
+		batch.restore.add(deviceId, Double.NaN, 0L);
+	}
+
+	@Override
+	public void onTemperature(int deviceNo, long timestamp, double temperature) {
+		Batch batch = batches[deviceNo];
+		if (restoreGenerations[deviceNo] == batch.restoreGeneration && batch.restore.size > 0) {
+			// the device is not restored yet, it starts with this reading
+			batch.restore.temperatures[restoreRows[deviceNo]] = temperature;
+			batch.restore.timestamps[restoreRows[deviceNo]] = timestamp;
+		} else {
+			batch.readings.add(deviceIds[deviceNo], temperature, timestamp);
+			if (batch.readings.size == BATCH_SIZE) {
+				batch.sendReadings(self);
+			}
+		}
+		readings++;
+	}
+
+	/**
+	 * Sends the partly filled batches, called once the journal is replayed.
+	 */
+	void finish() {
+		for (Batch batch : batchByGroup.values()) {
+			batch.sendRestore(self);
+			batch.sendReadings(self);
+		}
+	}
+
+	int groups() {
+		return batchByGroup.size();
+	}
+
+	long readings() {
+		return readings;
+	}
+
+	private static final class Batch {
+		final String groupId;
+		final ActorRef group;
+		final Rows restore = new Rows();
+		final Rows readings = new Rows();
+		// bumped whenever the restore rows are sent
+		int restoreGeneration = 1;
+
+		Batch(String groupId, ActorRef group) {
+			this.groupId = groupId;
+			this.group = group;
+		}
+
+		void sendRestore(ActorRef self) {
+			if (restore.size == 0) {
+				return;
+			}
+			group.tell(new DeviceGroup.RestoreDevices(restore.copyOfDeviceIds(), restore.copyOfTemperatures(), restore.copyOfTimestamps()), self);
+			restore.size = 0;
+			restoreGeneration++;
+		}
+
+		// readings of restored devices must not overtake their restore
+		void sendReadings(ActorRef self) {
+			if (readings.size == 0) {
+				return;
+			}
+			sendRestore(self);
+			group.tell(new DeviceManager.RecordTemperatures(0L, groupId, readings.copyOfDeviceIds(), readings.copyOfTemperatures(), readings.copyOfTimestamps()), self);
+			readings.size = 0;
+		}
+	}
+
+	// Grown on demand, most groups of a large journal never fill a whole batch. Messages get
+	// their own copy of the rows, the arrays are reused.
+	private static final class Rows {
+		String[] deviceIds = new String[16];
+		double[] temperatures = new double[16];
+		long[] timestamps = new long[16];
+		int size;
+
+		void add(String deviceId, double temperature, long timestamp) {
+			if (size == deviceIds.length) {
+				int capacity = Math.min(BATCH_SIZE, size * 2);
+				deviceIds = Arrays.copyOf(deviceIds, capacity);
+				temperatures = Arrays.copyOf(temperatures, capacity);
+				timestamps = Arrays.copyOf(timestamps, capacity);
+			}
+			deviceIds[size] = deviceId;
+			temperatures[size] = temperature;
+			timestamps[size] = timestamp;
+			size++;
+		}
+
+		String[] copyOfDeviceIds() {
+			return Arrays.copyOf(deviceIds, size);
+		}
+
+		double[] copyOfTemperatures() {
+			return Arrays.copyOf(temperatures, size);
+		}
+
+		long[] copyOfTimestamps() {
+			return Arrays.copyOf(timestamps, size);
+		}
+	}
+}
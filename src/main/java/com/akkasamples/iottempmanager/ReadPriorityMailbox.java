@@ -0,0 +1,115 @@
+package com.akkasamples.iottempmanager;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.typesafe.config.Config;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Terminated;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedMessageQueueSemantics;
+import scala.Option;
+
+/**
+ * Mailbox that hands reads and Terminated to the actor ahead of the writes queued before
+ * them, so a read waits for the reads in front of it and not for a write backlog. After
+ * iot.mailbox.max-reads-in-a-row of them in a row one write goes next, writes keep moving
+ * while reads pour in. Enabled per tier like:
+ *
+ * <pre>
+ * iot.mailbox.device-group.underlying-mailbox-type = "com.akkasamples.iottempmanager.ReadPriorityMailbox"
+ * </pre>
+ *
+ * A read may overtake the writes and registrations queued before it and not see them. Both
+ * queues stay in order.
+ */
+public class ReadPriorityMailbox implements MailboxType, ProducesMessageQueue<ReadPriorityMailbox.ReadPriorityQueue> {
+	// what the Device, DeviceGroup and DeviceManager answer without changing anything
+	static final Set<Class<?>> PRIORITY = new HashSet<>(Arrays.asList(
+			Device.ReadTemperature.class,
+			Device.ReadTemperatureHistory.class,
+			DeviceManager.ReadDeviceTemperature.class,
+			DeviceManager.ReadDeviceTemperatureHistory.class,
+			DeviceManager.ReadDeviceGroupTemperature.class,
+			DeviceManager.ReadDeviceGroupStats.class,
+			DeviceManager.ReadTopTemperatures.class,
+			DeviceManager.ReadTemperatureRange.class,
+			DeviceManager.RequestDeviceList.class,
+			DeviceGroup.RequestAllTemperatures.class,
+			DeviceGroup.RequestDeviceList.class,
+			Terminated.class));
+
+	private final int maxReadsInARow;
+
+	public ReadPriorityMailbox(ActorSystem.Settings settings, Config config) {
+		this.maxReadsInARow = settings.config().getInt("iot.mailbox.max-reads-in-a-row");
+		if (maxReadsInARow < 1) {
+			throw new IllegalArgumentException("iot.mailbox.max-reads-in-a-row must be at least 1: " + maxReadsInARow);
+		}
+	}
+
+	@Override
+	public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+		return new ReadPriorityQueue(maxReadsInARow);
+	}
+
+	public static final class ReadPriorityQueue implements MessageQueue, UnboundedMessageQueueSemantics {
+		private final int maxReadsInARow;
+		private final ConcurrentLinkedQueue<Envelope> reads = new ConcurrentLinkedQueue<>();
+		private final ConcurrentLinkedQueue<Envelope> writes = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger size = new AtomicInteger();
+		// only the actor dequeues, one at a time
+		private int readsInARow;
+
+		ReadPriorityQueue(int maxReadsInARow) {
+			this.maxReadsInARow = maxReadsInARow;
+		}
+
+		@Override
+		public void enqueue(ActorRef receiver, Envelope handle) {
+			(PRIORITY.contains(handle.message().getClass()) ? reads : writes).add(handle);
+			size.incrementAndGet();
+		}
+
+		// a write once maxReadsInARow reads went first, a read after that when none waits
+		@Override
+		public Envelope dequeue() {
+			Envelope envelope = readsInARow < maxReadsInARow ? reads.poll() : null;
+			if (envelope != null) {
+				readsInARow++;
+			} else if ((envelope = writes.poll()) != null) {
+				readsInARow = 0;
+			} else if ((envelope = reads.poll()) == null) {
+				return null;
+			}
+			size.decrementAndGet();
+			return envelope;
+		}
+
+		@Override
+		public int numberOfMessages() {
+			return size.get();
+		}
+
+		@Override
+		public boolean hasMessages() {
+			return !reads.isEmpty() || !writes.isEmpty();
+		}
+
+		@Override
+		public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+			Envelope envelope;
+			while ((envelope = dequeue()) != null) {
+				deadLetters.enqueue(owner, envelope);
+			}
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package com.akkasamples.iottempmanager;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import akka.actor.ActorSystem;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+
+/**
+ * Per-message logging of one actor, the lines written for every reading, read or query.
+ * They are logged at DEBUG, and callers check {@link #isEnabled()} before boxing or
+ * formatting anything, so they cost nothing at the default INFO level. With
+ * iot.logging.trace-sample-rate = N > 0 one in N messages of the actor is logged at INFO
+ * instead, a trace that can stay on in production.
+ *
+ * Not thread safe, every actor keeps its own.
+ */
+final class SampledTrace {
+	private final LoggingAdapter log;
+	private final int sampleRate;
+	private final int level;
+	private int countdown;
+
+	SampledTrace(LoggingAdapter log, int sampleRate) {
+		this.log = log;
+		this.sampleRate = sampleRate;
+		this.level = sampleRate > 0 ? Logging.InfoLevel() : Logging.DebugLevel();
+		// a random phase, so that actors started together do not all log their first message
+		this.countdown = sampleRate > 0 ? ThreadLocalRandom.current().nextInt(sampleRate) + 1 : 0;
+	}
+
+	static SampledTrace create(ActorSystem system, LoggingAdapter log) {
+		return new SampledTrace(log, system.settings().config().getInt("iot.logging.trace-sample-rate"));
+	}
+
+	/**
+	 * Whether the current message is logged, counts it when sampling.
+	 */
+	boolean isEnabled() {
+		if (sampleRate > 0) {
+			if (--countdown > 0) {
+				return false;
+			}
+			countdown = sampleRate;
+		}
+		return log.isEnabled(level);
+	}
+
+	void log(String template, Object arg1, Object arg2) {
+		log.log(level, template, arg1, arg2);
+	}
+
+	void log(String template, Object arg1, Object arg2, Object arg3) {
+		log.log(level, template, arg1, arg2, arg3);
+	}
+
+	void log(String template, Object arg1, Object arg2, Object arg3, Object arg4) {
+		log.log(level, template, arg1, arg2, arg3, arg4);
+	}
+}
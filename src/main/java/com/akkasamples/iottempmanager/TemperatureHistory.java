@@ -0,0 +1,82 @@
+package com.akkasamples.iottempmanager;
+
+import java.util.Arrays;
+
+/**
+ * Last samples of a device as (timestamp, temperature) pairs in two primitive ring
+ * buffers, so a sample costs 16 bytes and no object. The buffers are allocated with the
+ * first sample and never grow, once full the oldest sample is overwritten. A history parked
+ * for a passivated device is trimmed to its samples until the next one comes in.
+ */
+final class TemperatureHistory {
+	private final int capacity;
+	private long[] timestamps;
+	private double[] temperatures;
+	// next slot to write
+	private int head;
+	private int size;
+
+	TemperatureHistory(int capacity) {
+		this.capacity = capacity;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void add(long timestamp, double temperature) {
+		if (capacity == 0) {
+			return;
+		}
+		if (timestamps == null) {
+			timestamps = new long[capacity];
+			temperatures = new double[capacity];
+		} else if (timestamps.length < capacity) {
+			timestamps = Arrays.copyOf(timestamps, capacity);
+			temperatures = Arrays.copyOf(temperatures, capacity);
+		}
+		timestamps[head] = timestamp;
+		temperatures[head] = temperature;
+		head = (head + 1) % capacity;
+		if (size < capacity) {
+			size++;
+		}
+	}
+
+	/**
+	 * Drops the unused part of the buffers. Until they are full the samples are in the first
+	 * size slots and head is size, so the ring stays intact.
+	 */
+	void trim() {
+		if (timestamps != null && size < timestamps.length) {
+			timestamps = Arrays.copyOf(timestamps, size);
+			temperatures = Arrays.copyOf(temperatures, size);
+		}
+	}
+
+	/**
+	 * Samples with from <= timestamp <= to, oldest first.
+	 */
+	Device.RespondTemperatureHistory range(long requestId, long from, long to) {
+		int oldest = size < capacity ? 0 : head;
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			long timestamp = timestamps[(oldest + i) % capacity];
+			if (timestamp >= from && timestamp <= to) {
+				count++;
+			}
+		}
+		long[] rangeTimestamps = new long[count];
+		double[] rangeTemperatures = new double[count];
+		int next = 0;
+		for (int i = 0; i < size && next < count; i++) {
+			int slot = (oldest + i) % capacity;
+			if (timestamps[slot] >= from && timestamps[slot] <= to) {
+				rangeTimestamps[next] = timestamps[slot];
+				rangeTemperatures[next] = temperatures[slot];
+				next++;
+			}
+		}
+		return new Device.RespondTemperatureHistory(requestId, rangeTimestamps, rangeTemperatures);
+	}
+}
@@ -0,0 +1,407 @@
+package com.akkasamples.iottempmanager;
+
+import java.util.Arrays;
+
+/**
+ * Rows of a DeviceTable ordered by (temperature, deviceId), kept as a treap over primitive
+ * columns indexed by row. The hottest or coldest k rows and the rows within a temperature
+ * range are walked in O(log n + k) instead of sorting the whole group.
+ *
+ * A reading only marks its row as changed, the changed rows move in the treap when the next
+ * query reconciles the index with the table: O(log n) each, or a rebuild in O(n log n) once
+ * a quarter of the rows changed. Writes stay O(1) while nobody asks, a group read often pays
+ * for the readings since the previous query only. Deterministic priorities from a xorshift
+ * sequence keep the expected depth logarithmic whatever order the readings come in.
+ *
+ * The treap keeps its own copy of the keys it is ordered by. Not thread safe, it is owned by
+ * the table of a single DeviceGroup actor.
+ */
+final class TemperatureIndex {
+	private static final int NIL = -1;
+
+	private int[] left;
+	private int[] right;
+	private int[] priorities;
+	// key of the row in the treap, null deviceId while the row is not in it
+	private double[] temperatures;
+	private String[] deviceIds;
+	private int root = NIL;
+	private int size;
+	private int seed = 0x2545F491;
+
+	// rows changed since the last reconcile
+	private boolean[] changed;
+	private int[] pending;
+	private int pendingSize;
+
+	TemperatureIndex(int capacity) {
+		left = new int[capacity];
+		right = new int[capacity];
+		priorities = new int[capacity];
+		temperatures = new double[capacity];
+		deviceIds = new String[capacity];
+		changed = new boolean[capacity];
+		pending = new int[16];
+	}
+
+	void grow(int capacity) {
+		left = Arrays.copyOf(left, capacity);
+		right = Arrays.copyOf(right, capacity);
+		priorities = Arrays.copyOf(priorities, capacity);
+		temperatures = Arrays.copyOf(temperatures, capacity);
+		deviceIds = Arrays.copyOf(deviceIds, capacity);
+		changed = Arrays.copyOf(changed, capacity);
+	}
+
+	/**
+	 * The reading of the row changed or was cleared.
+	 */
+	void changed(int row) {
+		if (!changed[row]) {
+			changed[row] = true;
+			if (pendingSize == pending.length) {
+				if (pendingSize >= changed.length) {
+					// every row changed or moved, the reconcile rebuilds anyway
+					return;
+				}
+				pending = Arrays.copyOf(pending, Math.min(pendingSize * 2, changed.length));
+			}
+			pending[pendingSize++] = row;
+		}
+	}
+
+	/**
+	 * The device of the row left the table, the row is about to be reused.
+	 */
+	void removed(int row) {
+		if (deviceIds[row] != null) {
+			remove(row);
+		}
+		// a stale entry of pending is skipped by the reconcile
+		changed[row] = false;
+	}
+
+	/**
+	 * Row to of the table now holds what was at row from, to was removed before.
+	 */
+	void moved(int from, int to) {
+		if (deviceIds[from] != null) {
+			double temperature = temperatures[from];
+			String deviceId = deviceIds[from];
+			remove(from);
+			insert(to, temperature, deviceId);
+		}
+		if (changed[from]) {
+			changed[from] = false;
+			changed(to);
+		}
+	}
+
+	/**
+	 * Brings the treap in line with the columns of the table, a NaN temperature is a row
+	 * without reading.
+	 */
+	void reconcile(double[] tableTemperatures, String[] tableDeviceIds, int rows) {
+		if (pendingSize == 0) {
+			return;
+		}
+		if (pendingSize > rows / 4) {
+			rebuild(tableTemperatures, tableDeviceIds, rows);
+			return;
+		}
+		for (int i = 0; i < pendingSize; i++) {
+			int row = pending[i];
+			if (!changed[row]) {
+				continue;
+			}
+			changed[row] = false;
+			double temperature = tableTemperatures[row];
+			if (deviceIds[row] != null) {
+				if (temperature == temperatures[row]) {
+					continue;
+				}
+				remove(row);
+			}
+			if (!Double.isNaN(temperature)) {
+				insert(row, temperature, tableDeviceIds[row]);
+			}
+		}
+		pendingSize = 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * The n rows with the highest temperatures, hottest first.
+	 */
+	int[] highest(int n) {
+		return walk(n, true);
+	}
+
+	/**
+	 * The n rows with the lowest temperatures, coldest first.
+	 */
+	int[] lowest(int n) {
+		return walk(n, false);
+	}
+
+	/**
+	 * Rows with min <= temperature <= max, coldest first.
+	 */
+	int[] between(double min, double max) {
+		Rows rows = new Rows(16);
+		collect(root, min, max, rows);
+		return rows.toArray();
+	}
+
+	private int[] walk(int n, boolean descending) {
+		Rows rows = new Rows(Math.min(n, size));
+		// the path to the next row, as deep as the treap
+		int[] path = new int[32];
+		int depth = 0;
+		int node = root;
+		while (rows.size < n && (node != NIL || depth > 0)) {
+			if (node != NIL) {
+				if (depth == path.length) {
+					path = Arrays.copyOf(path, depth * 2);
+				}
+				path[depth++] = node;
+				node = descending ? right[node] : left[node];
+			} else {
+				node = path[--depth];
+				rows.add(node);
+				node = descending ? left[node] : right[node];
+			}
+		}
+		return rows.toArray();
+	}
+
+	private void collect(int node, double min, double max, Rows rows) {
+		while (node != NIL) {
+			double t = temperatures[node];
+			if (t >= min) {
+				collect(left[node], min, max, rows);
+			}
+			if (t > max) {
+				return;
+			}
+			if (t >= min) {
+				rows.add(node);
+			}
+			node = right[node];
+		}
+	}
+
+	// Sorts the rows with a reading and builds the treap over them in one pass
+	private void rebuild(double[] tableTemperatures, String[] tableDeviceIds, int rows) {
+		Arrays.fill(deviceIds, null);
+		// the upper 32 of the temperature's bits, flipped to sort like Double.compare, then the row
+		long[] keys = new long[rows];
+		size = 0;
+		for (int row = 0; row < rows; row++) {
+			changed[row] = false;
+			double temperature = tableTemperatures[row];
+			if (!Double.isNaN(temperature)) {
+				temperatures[row] = temperature;
+				deviceIds[row] = tableDeviceIds[row];
+				long bits = Double.doubleToLongBits(temperature);
+				bits ^= (bits >> 63) & Long.MAX_VALUE;
+				keys[size++] = (bits & 0xFFFFFFFF00000000L) | row;
+			}
+		}
+		pendingSize = 0;
+		Arrays.sort(keys, 0, size);
+		int[] sorted = new int[size];
+		for (int i = 0; i < size; i++) {
+			sorted[i] = (int) keys[i];
+		}
+		// a key holds only part of the temperature, rows sharing one are compared in full
+		int[] scratch = null;
+		for (int start = 0, end; start < size; start = end) {
+			end = start + 1;
+			while (end < size && keys[end] >>> 32 == keys[start] >>> 32) {
+				end++;
+			}
+			if (end - start > 1) {
+				if (scratch == null) {
+					scratch = new int[size];
+				}
+				sort(sorted, scratch, start, end);
+			}
+		}
+		// the right spine of the treap built so far, priorities decreasing from its root
+		int[] spine = new int[32];
+		int depth = 0;
+		for (int i = 0; i < size; i++) {
+			int row = sorted[i];
+			priorities[row] = nextPriority();
+			right[row] = NIL;
+			int below = NIL;
+			while (depth > 0 && priorities[spine[depth - 1]] < priorities[row]) {
+				below = spine[--depth];
+			}
+			left[row] = below;
+			if (depth > 0) {
+				right[spine[depth - 1]] = row;
+			}
+			if (depth == spine.length) {
+				spine = Arrays.copyOf(spine, depth * 2);
+			}
+			spine[depth++] = row;
+		}
+		root = depth == 0 ? NIL : spine[0];
+	}
+
+	// Stable merge sort of rows[from, to) by compare, insertion sort for short ranges
+	private void sort(int[] rows, int[] scratch, int from, int to) {
+		if (to - from <= 16) {
+			for (int i = from + 1; i < to; i++) {
+				int row = rows[i];
+				int j = i - 1;
+				while (j >= from && compare(rows[j], row) > 0) {
+					rows[j + 1] = rows[j];
+					j--;
+				}
+				rows[j + 1] = row;
+			}
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		sort(rows, scratch, from, mid);
+		sort(rows, scratch, mid, to);
+		if (compare(rows[mid - 1], rows[mid]) <= 0) {
+			return;
+		}
+		System.arraycopy(rows, from, scratch, from, to - from);
+		for (int i = from, l = from, r = mid; i < to; i++) {
+			rows[i] = r == to || l < mid && compare(scratch[l], scratch[r]) <= 0 ? scratch[l++] : scratch[r++];
+		}
+	}
+
+	private void insert(int row, double temperature, String deviceId) {
+		left[row] = NIL;
+		right[row] = NIL;
+		priorities[row] = nextPriority();
+		temperatures[row] = temperature;
+		deviceIds[row] = deviceId;
+		root = insert(root, row);
+		size++;
+	}
+
+	private void remove(int row) {
+		root = remove(root, row);
+		deviceIds[row] = null;
+		size--;
+	}
+
+	private int insert(int node, int row) {
+		if (node == NIL) {
+			return row;
+		}
+		if (priorities[row] > priorities[node]) {
+			split(node, row);
+			return row;
+		}
+		if (compare(row, node) < 0) {
+			left[node] = insert(left[node], row);
+		} else {
+			right[node] = insert(right[node], row);
+		}
+		return node;
+	}
+
+	// Splits the subtree at node around the key of row into the children of row
+	private void split(int node, int row) {
+		int lessTail = NIL;
+		int greaterTail = NIL;
+		left[row] = NIL;
+		right[row] = NIL;
+		while (node != NIL) {
+			if (compare(node, row) < 0) {
+				if (lessTail == NIL) {
+					left[row] = node;
+				} else {
+					right[lessTail] = node;
+				}
+				lessTail = node;
+				node = right[node];
+			} else {
+				if (greaterTail == NIL) {
+					right[row] = node;
+				} else {
+					left[greaterTail] = node;
+				}
+				greaterTail = node;
+				node = left[node];
+			}
+		}
+		if (lessTail != NIL) {
+			right[lessTail] = NIL;
+		}
+		if (greaterTail != NIL) {
+			left[greaterTail] = NIL;
+		}
+	}
+
+	private int remove(int node, int row) {
+		if (node == row) {
+			return merge(left[row], right[row]);
+		}
+		if (compare(row, node) < 0) {
+			left[node] = remove(left[node], row);
+		} else {
+			right[node] = remove(right[node], row);
+		}
+		return node;
+	}
+
+	// Joins two subtrees, every key of less below every key of greater
+	private int merge(int less, int greater) {
+		if (less == NIL) {
+			return greater;
+		}
+		if (greater == NIL) {
+			return less;
+		}
+		if (priorities[less] > priorities[greater]) {
+			right[less] = merge(right[less], greater);
+			return less;
+		}
+		left[greater] = merge(less, left[greater]);
+		return greater;
+	}
+
+	private int compare(int a, int b) {
+		int byTemperature = Double.compare(temperatures[a], temperatures[b]);
+		return byTemperature != 0 ? byTemperature : deviceIds[a].compareTo(deviceIds[b]);
+	}
+
+	private int nextPriority() {
+		seed ^= seed << 13;
+		seed ^= seed >>> 17;
+		seed ^= seed << 5;
+		return seed;
+	}
+
+	private static final class Rows {
+		int[] rows;
+		int size;
+
+		Rows(int capacity) {
+			rows = new int[Math.max(1, capacity)];
+		}
+
+		void add(int row) {
+			if (size == rows.length) {
+				rows = Arrays.copyOf(rows, size * 2);
+			}
+			rows[size++] = row;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(rows, size);
+		}
+	}
+}
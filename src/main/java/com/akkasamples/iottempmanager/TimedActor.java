@@ -0,0 +1,32 @@
+package com.akkasamples.iottempmanager;
+
+import com.akkasamples.iottempmanager.metrics.IoTMetrics;
+import com.akkasamples.iottempmanager.metrics.MessageLatencies;
+
+import akka.actor.AbstractActor;
+import scala.PartialFunction;
+import scala.runtime.BoxedUnit;
+
+/**
+ * An actor of one tier of the hierarchy whose messages are timed for
+ * iot_message_latency_seconds when iot.metrics.enabled is on.
+ */
+abstract class TimedActor extends AbstractActor {
+	// null unless iot.metrics.enabled
+	private final MessageLatencies latencies;
+
+	TimedActor(String tier) {
+		latencies = IoTMetrics.get(getContext().getSystem()).messageLatencies(tier);
+	}
+
+	@Override
+	public void aroundReceive(PartialFunction<Object, BoxedUnit> receive, Object msg) {
+		if (latencies == null) {
+			super.aroundReceive(receive, msg);
+			return;
+		}
+		long start = System.nanoTime();
+		super.aroundReceive(receive, msg);
+		latencies.record(msg, System.nanoTime() - start);
+	}
+}
@@ -0,0 +1,165 @@
+package com.akkasamples.iottempmanager;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.akkasamples.iottempmanager.metrics.IoTMetrics;
+
+/**
+ * Correlation id of a request and, when the request is traced, the time it reached and
+ * left every hop on its way to the Device. It travels inside the messages, every hop stamps
+ * it with System.nanoTime when the message was handed to the next hop (enqueued) and when
+ * the next hop started handling it (started), so a breakdown tells mailbox waits apart from
+ * handling time:
+ *
+ * <pre>
+ * route -&gt; IoTManager -&gt; DeviceManager -&gt; DeviceGroup -&gt; Device -&gt; (reply) route
+ * </pre>
+ *
+ * An untraced context only carries the requestId, its stamps are no-ops. The stamps are
+ * plain fields, message passing between the hops orders them.
+ */
+public final class TraceContext {
+	public static final int IOT_MANAGER = 0;
+	public static final int DEVICE_MANAGER = 1;
+	public static final int DEVICE_GROUP = 2;
+	public static final int DEVICE = 3;
+	static final String[] HOPS = { "iot-manager", "device-manager", "device-group", "device" };
+
+	// unique per JVM, a counter costs less than a shared Random and never repeats
+	private static final AtomicLong REQUEST_IDS = new AtomicLong();
+
+	public final long requestId;
+	// null when not traced
+	private final long[] enqueued;
+	private final long[] started;
+	private long created;
+	private long replied;
+	private long completed;
+
+	private TraceContext(long requestId, boolean traced) {
+		this.requestId = requestId;
+		this.enqueued = traced ? new long[HOPS.length] : null;
+		this.started = traced ? new long[HOPS.length] : null;
+		if (traced) {
+			created = System.nanoTime();
+		}
+	}
+
+	public static long nextRequestId() {
+		return REQUEST_IDS.incrementAndGet();
+	}
+
+	public static TraceContext untraced() {
+		return new TraceContext(nextRequestId(), false);
+	}
+
+	public static TraceContext traced() {
+		return new TraceContext(nextRequestId(), true);
+	}
+
+	public boolean isTraced() {
+		return enqueued != null;
+	}
+
+	/**
+	 * The message is handed to the hop.
+	 */
+	public void enqueued(int hop) {
+		if (enqueued != null) {
+			enqueued[hop] = System.nanoTime();
+		}
+	}
+
+	/**
+	 * The hop starts handling the message.
+	 */
+	public void started(int hop) {
+		if (started != null) {
+			started[hop] = System.nanoTime();
+		}
+	}
+
+	/**
+	 * The message is handed straight to the hop, the hops before it take no time.
+	 */
+	public void bypassed(int hop) {
+		if (enqueued != null) {
+			long now = System.nanoTime();
+			for (int skipped = 0; skipped < hop; skipped++) {
+				enqueued[skipped] = now;
+				started[skipped] = now;
+			}
+			enqueued[hop] = now;
+		}
+	}
+
+	/**
+	 * The Device sends its reply.
+	 */
+	public void replied() {
+		if (enqueued != null) {
+			replied = System.nanoTime();
+		}
+	}
+
+	/**
+	 * The reply is back where the request started.
+	 */
+	public void completed() {
+		if (enqueued != null) {
+			completed = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Whether the request went through every hop, a request for an unknown group or device
+	 * stops early.
+	 */
+	public boolean isComplete() {
+		return enqueued != null && completed != 0 && replied != 0;
+	}
+
+	long queueNanos(int hop) {
+		return started[hop] - enqueued[hop];
+	}
+
+	// until handed to the next hop, the Device until it replied
+	long handleNanos(int hop) {
+		return (hop == DEVICE ? replied : enqueued[hop + 1]) - started[hop];
+	}
+
+	long replyNanos() {
+		return completed - replied;
+	}
+
+	long totalNanos() {
+		return completed - created;
+	}
+
+	/**
+	 * The breakdown in microseconds, as served in the X-Trace response header:
+	 * {@code id=42, iot-manager;queue=12;handle=3, ..., device;queue=20;handle=4, reply;dur=35, total;dur=110}
+	 */
+	public String breakdown() {
+		StringBuilder out = new StringBuilder(160).append("id=").append(requestId);
+		for (int hop = 0; hop < HOPS.length; hop++) {
+			out.append(", ").append(HOPS[hop])
+					.append(";queue=").append(queueNanos(hop) / 1000)
+					.append(";handle=").append(handleNanos(hop) / 1000);
+		}
+		out.append(", reply;dur=").append(replyNanos() / 1000);
+		out.append(", total;dur=").append(totalNanos() / 1000);
+		return out.toString();
+	}
+
+	/**
+	 * Adds the hops of a complete trace to iot_hop_latency_seconds.
+	 */
+	public void recordInto(IoTMetrics metrics) {
+		for (int hop = 0; hop < HOPS.length; hop++) {
+			metrics.hop(HOPS[hop], "queue").recordNanos(queueNanos(hop));
+			metrics.hop(HOPS[hop], "handle").recordNanos(handleNanos(hop));
+		}
+		metrics.hop("reply", "transit").recordNanos(replyNanos());
+	}
+}
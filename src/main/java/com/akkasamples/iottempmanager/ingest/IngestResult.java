@@ -0,0 +1,24 @@
+package com.akkasamples.iottempmanager.ingest;
+
+/**
+ * Accepted and rejected row counts of an ingestion.
+ */
+public final class IngestResult {
+	public static final IngestResult EMPTY = new IngestResult(0L, 0L);
+
+	public final long accepted;
+	public final long rejected;
+
+	public IngestResult(long accepted, long rejected) {
+		this.accepted = accepted;
+		this.rejected = rejected;
+	}
+
+	public IngestResult plus(IngestResult other) {
+		return new IngestResult(accepted + other.accepted, rejected + other.rejected);
+	}
+
+	public String getResponse() {
+		return "accepted: " + accepted + "\nrejected: " + rejected + "\n";
+	}
+}
@@ -0,0 +1,125 @@
+package com.akkasamples.iottempmanager.ingest;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import akka.NotUsed;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Framing;
+import akka.util.ByteString;
+import akka.util.ByteStringBuilder;
+
+/**
+ * Binary frames of the TCP ingestion endpoint. Every frame starts with the big-endian
+ * length of the rest of the frame, all numbers are big-endian:
+ * <ul>
+ * <li>reading: {@code int length | short n | groupId (n bytes UTF-8) | short m | deviceId (m bytes UTF-8) | long timestamp | double temperature}</li>
+ * <li>ack: {@code int length (16) | long accepted | long rejected}</li>
+ * </ul>
+ * A timestamp of 0 stands for the time the frame is decoded. Readings flow from the client,
+ * the server answers every chunk it recorded with an ack.
+ */
+public final class TemperatureFrames {
+	public static final int LENGTH_FIELD_SIZE = 4;
+	public static final int DEFAULT_MAX_FRAME_LENGTH = 1024;
+	public static final int ACK_FRAME_SIZE = LENGTH_FIELD_SIZE + 16;
+
+	private TemperatureFrames() {
+	}
+
+	/**
+	 * Splits the byte stream into frames and decodes them. The stream fails if a frame is
+	 * longer than maxFrameLength, length field included.
+	 */
+	public static Flow<ByteString, TemperatureRow, NotUsed> readings(int maxFrameLength) {
+		return Framing.lengthField(LENGTH_FIELD_SIZE, 0, maxFrameLength, ByteOrder.BIG_ENDIAN)
+				.map(TemperatureFrames::decode);
+	}
+
+	/**
+	 * Decodes a complete frame, length field included. The numbers are read straight from
+	 * the frame bytes, only the two ids are copied out as Strings. Frames that do not add up
+	 * become {@link TemperatureRow#INVALID}.
+	 */
+	public static TemperatureRow decode(ByteString frame) {
+		// framing hands out compact frames, wrapping those does not copy
+		ByteBuffer buffer = frame.asByteBuffer();
+		int base = buffer.position();
+		int size = frame.size();
+		int groupIdOffset = LENGTH_FIELD_SIZE + 2;
+		if (size < groupIdOffset) {
+			return TemperatureRow.INVALID;
+		}
+		int groupIdLength = buffer.getShort(base + LENGTH_FIELD_SIZE) & 0xffff;
+		int deviceIdOffset = groupIdOffset + groupIdLength + 2;
+		if (size < deviceIdOffset) {
+			return TemperatureRow.INVALID;
+		}
+		int deviceIdLength = buffer.getShort(base + deviceIdOffset - 2) & 0xffff;
+		int timestampOffset = deviceIdOffset + deviceIdLength;
+		if (size != timestampOffset + 16 || groupIdLength == 0 || deviceIdLength == 0) {
+			return TemperatureRow.INVALID;
+		}
+		long timestamp = buffer.getLong(base + timestampOffset);
+		double temperature = buffer.getDouble(base + timestampOffset + 8);
+		if (!Double.isFinite(temperature)) {
+			return TemperatureRow.INVALID;
+		}
+		String groupId = frame.slice(groupIdOffset, groupIdOffset + groupIdLength).utf8String();
+		String deviceId = frame.slice(deviceIdOffset, deviceIdOffset + deviceIdLength).utf8String();
+		return new TemperatureRow(groupId, deviceId, temperature, timestamp == 0L ? System.currentTimeMillis() : timestamp);
+	}
+
+	/**
+	 * End of the frame starting at offset of data holding frames back to back, or -1 if the
+	 * frame is cut short.
+	 */
+	public static int frameEnd(ByteString data, int offset) {
+		if (data.size() - offset < LENGTH_FIELD_SIZE) {
+			return -1;
+		}
+		ByteBuffer buffer = data.asByteBuffer();
+		int length = buffer.getInt(buffer.position() + offset);
+		if (length < 0 || length > data.size() - offset - LENGTH_FIELD_SIZE) {
+			return -1;
+		}
+		return offset + LENGTH_FIELD_SIZE + length;
+	}
+
+	public static ByteString encode(String groupId, String deviceId, long timestamp, double temperature) {
+		byte[] group = groupId.getBytes(StandardCharsets.UTF_8);
+		byte[] device = deviceId.getBytes(StandardCharsets.UTF_8);
+		ByteStringBuilder builder = ByteString.createBuilder();
+		builder.putInt(2 + group.length + 2 + device.length + 16, ByteOrder.BIG_ENDIAN);
+		builder.putShort(group.length, ByteOrder.BIG_ENDIAN);
+		builder.putBytes(group);
+		builder.putShort(device.length, ByteOrder.BIG_ENDIAN);
+		builder.putBytes(device);
+		builder.putLong(timestamp, ByteOrder.BIG_ENDIAN);
+		builder.putDouble(temperature, ByteOrder.BIG_ENDIAN);
+		return builder.result();
+	}
+
+	public static ByteString ack(IngestResult result) {
+		ByteStringBuilder builder = ByteString.createBuilder();
+		builder.putInt(16, ByteOrder.BIG_ENDIAN);
+		builder.putLong(result.accepted, ByteOrder.BIG_ENDIAN);
+		builder.putLong(result.rejected, ByteOrder.BIG_ENDIAN);
+		return builder.result();
+	}
+
+	/**
+	 * Splits the server's answer into acks, for clients of the endpoint.
+	 */
+	public static Flow<ByteString, IngestResult, NotUsed> acks() {
+		return Framing.lengthField(LENGTH_FIELD_SIZE, 0, ACK_FRAME_SIZE, ByteOrder.BIG_ENDIAN)
+				.map(TemperatureFrames::decodeAck);
+	}
+
+	public static IngestResult decodeAck(ByteString frame) {
+		ByteBuffer buffer = frame.asByteBuffer();
+		int base = buffer.position();
+		return new IngestResult(buffer.getLong(base + LENGTH_FIELD_SIZE), buffer.getLong(base + LENGTH_FIELD_SIZE + 8));
+	}
+}
@@ -0,0 +1,126 @@
+package com.akkasamples.iottempmanager.ingest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.akkasamples.iottempmanager.DeviceManager;
+
+import akka.NotUsed;
+import akka.actor.ActorRef;
+import akka.pattern.PatternsCS;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Framing;
+import akka.stream.javadsl.FramingTruncation;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import akka.util.ByteString;
+import akka.util.Timeout;
+import scala.concurrent.duration.FiniteDuration;
+
+/**
+ * Streams readings into the device hierarchy in batches. Rows are grouped into chunks of
+ * up to batchSize (or whatever arrived within linger), each chunk is split per group into
+ * one DeviceManager.RecordTemperatures and at most parallelism chunks are in flight, so
+ * a slow DeviceGroup backpressures the producer instead of filling mailboxes.
+ */
+public class TemperatureIngestion {
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	public static final FiniteDuration DEFAULT_LINGER = new FiniteDuration(10, TimeUnit.MILLISECONDS);
+	public static final int DEFAULT_PARALLELISM = 4;
+	public static final int DEFAULT_MAX_LINE_LENGTH = 1024;
+
+	private static final ByteString NEWLINE = ByteString.fromString("\n");
+
+	private final ActorRef iotManager;
+	private final int batchSize;
+	private final FiniteDuration linger;
+	private final int parallelism;
+	private final Timeout timeout = new Timeout(5, TimeUnit.SECONDS);
+	private final AtomicLong requestIds = new AtomicLong();
+
+	public TemperatureIngestion(ActorRef iotManager) {
+		this(iotManager, DEFAULT_BATCH_SIZE, DEFAULT_LINGER, DEFAULT_PARALLELISM);
+	}
+
+	public TemperatureIngestion(ActorRef iotManager, int batchSize, FiniteDuration linger, int parallelism) {
+		this.iotManager = iotManager;
+		this.batchSize = batchSize;
+		this.linger = linger;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Newline delimited NDJSON or CSV body, see {@link TemperatureRowParser}. The stream fails
+	 * if a line is longer than maxLineLength.
+	 */
+	public Sink<ByteString, CompletionStage<IngestResult>> lines(int maxLineLength) {
+		return Flow.of(ByteString.class)
+				.via(Framing.delimiter(NEWLINE, maxLineLength, FramingTruncation.ALLOW))
+				.map(ByteString::utf8String)
+				.zipWithIndex()
+				.filter(line -> !TemperatureRowParser.isSkipped(line.first(), line.second() == 0L))
+				.map(line -> TemperatureRowParser.parse(line.first(), System.currentTimeMillis()))
+				.via(rows())
+				.toMat(Sink.fold(IngestResult.EMPTY, IngestResult::plus), Keep.right());
+	}
+
+	/**
+	 * Length-prefixed binary readings, see {@link TemperatureFrames}, answered with one ack
+	 * frame per recorded chunk. Meant to handle a TCP connection: the socket is only read as
+	 * fast as the chunks are recorded.
+	 */
+	public Flow<ByteString, ByteString, NotUsed> frames(int maxFrameLength) {
+		return TemperatureFrames.readings(maxFrameLength)
+				.via(rows())
+				.map(TemperatureFrames::ack);
+	}
+
+	public Flow<TemperatureRow, IngestResult, NotUsed> rows() {
+		return Flow.of(TemperatureRow.class)
+				.groupedWithin(batchSize, linger)
+				.mapAsyncUnordered(parallelism, this::record);
+	}
+
+	public CompletionStage<IngestResult> record(List<TemperatureRow> rows) {
+		Map<String, List<TemperatureRow>> rowsByGroup = new HashMap<>();
+		int invalid = 0;
+		for (TemperatureRow row : rows) {
+			if (row.isValid()) {
+				rowsByGroup.computeIfAbsent(row.groupId, g -> new ArrayList<>()).add(row);
+			} else {
+				invalid++;
+			}
+		}
+		CompletionStage<IngestResult> result = CompletableFuture.completedFuture(new IngestResult(0, invalid));
+		for (Map.Entry<String, List<TemperatureRow>> group : rowsByGroup.entrySet()) {
+			DeviceManager.RecordTemperatures batch = toBatch(group.getKey(), group.getValue());
+			CompletionStage<IngestResult> recorded = PatternsCS.ask(iotManager, batch, timeout)
+					.thenApply(o -> {
+						DeviceManager.TemperaturesRecorded reply = (DeviceManager.TemperaturesRecorded) o;
+						return new IngestResult(reply.accepted, reply.rejected);
+					})
+					.exceptionally(t -> new IngestResult(0, batch.size()));
+			result = result.thenCombine(recorded, IngestResult::plus);
+		}
+		return result;
+	}
+
+	private DeviceManager.RecordTemperatures toBatch(String groupId, List<TemperatureRow> rows) {
+		String[] deviceIds = new String[rows.size()];
+		double[] temperatures = new double[rows.size()];
+		long[] timestamps = new long[rows.size()];
+		for (int i = 0; i < rows.size(); i++) {
+			TemperatureRow row = rows.get(i);
+			deviceIds[i] = row.deviceId;
+			temperatures[i] = row.temperature;
+			timestamps[i] = row.timestamp;
+		}
+		return new DeviceManager.RecordTemperatures(requestIds.incrementAndGet(), groupId, deviceIds, temperatures, timestamps);
+	}
+}
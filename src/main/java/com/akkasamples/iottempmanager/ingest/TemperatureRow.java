@@ -0,0 +1,25 @@
+package com.akkasamples.iottempmanager.ingest;
+
+/**
+ * One reading of a bulk upload: (groupId, deviceId, temperature, timestamp).
+ */
+public final class TemperatureRow {
+	// Placeholder for lines that could not be parsed, streams do not carry nulls
+	public static final TemperatureRow INVALID = new TemperatureRow(null, null, Double.NaN, 0L);
+
+	public final String groupId;
+	public final String deviceId;
+	public final double temperature;
+	public final long timestamp;
+
+	public TemperatureRow(String groupId, String deviceId, double temperature, long timestamp) {
+		this.groupId = groupId;
+		this.deviceId = deviceId;
+		this.temperature = temperature;
+		this.timestamp = timestamp;
+	}
+
+	public boolean isValid() {
+		return this != INVALID;
+	}
+}
@@ -0,0 +1,134 @@
+package com.akkasamples.iottempmanager.ingest;
+
+/**
+ * Parses single lines of a bulk upload. Two formats are accepted, chosen per line:
+ * <ul>
+ * <li>NDJSON: {@code {"groupId":"g1","deviceId":"d1","temperature":21.5,"timestamp":1539800000000}}</li>
+ * <li>CSV: {@code g1,d1,21.5,1539800000000}</li>
+ * </ul>
+ * The timestamp (epoch millis) is optional in both. Lines that cannot be parsed become
+ * {@link TemperatureRow#INVALID}, blank lines and a CSV header first line are skipped.
+ */
+public final class TemperatureRowParser {
+
+	private TemperatureRowParser() {
+	}
+
+	private static final String HEADER = "groupId,deviceId,temperature";
+	private static final String HEADER_WITH_TIMESTAMP = HEADER + ",timestamp";
+
+	/**
+	 * Blank lines and, as the first line of the body only, the CSV header. A row for a group
+	 * whose name starts with groupId is data like any other.
+	 */
+	public static boolean isSkipped(String line, boolean firstLine) {
+		String trimmed = line.trim();
+		return trimmed.isEmpty() || firstLine && isHeader(trimmed);
+	}
+
+	private static boolean isHeader(String line) {
+		return line.equalsIgnoreCase(HEADER) || line.equalsIgnoreCase(HEADER_WITH_TIMESTAMP);
+	}
+
+	public static TemperatureRow parse(String line, long defaultTimestamp) {
+		String trimmed = line.trim();
+		try {
+			if (trimmed.startsWith("{")) {
+				return parseJson(trimmed, defaultTimestamp);
+			}
+			return parseCsv(trimmed, defaultTimestamp);
+		} catch (RuntimeException e) {
+			return TemperatureRow.INVALID;
+		}
+	}
+
+	private static TemperatureRow parseCsv(String line, long defaultTimestamp) {
+		int first = line.indexOf(',');
+		int second = first < 0 ? -1 : line.indexOf(',', first + 1);
+		if (second < 0) {
+			return TemperatureRow.INVALID;
+		}
+		int third = line.indexOf(',', second + 1);
+		String groupId = line.substring(0, first).trim();
+		String deviceId = line.substring(first + 1, second).trim();
+		double temperature = Double.parseDouble(line.substring(second + 1, third < 0 ? line.length() : third).trim());
+		long timestamp = third < 0 ? defaultTimestamp : Long.parseLong(line.substring(third + 1).trim());
+		return row(groupId, deviceId, temperature, timestamp);
+	}
+
+	private static TemperatureRow parseJson(String line, long defaultTimestamp) {
+		String groupId = null;
+		String deviceId = null;
+		double temperature = Double.NaN;
+		long timestamp = defaultTimestamp;
+		int end = line.lastIndexOf('}');
+		if (end < 0) {
+			return TemperatureRow.INVALID;
+		}
+		int pos = 1;
+		while (pos < end) {
+			pos = skipWhitespace(line, pos);
+			if (line.charAt(pos) == ',') {
+				pos++;
+				continue;
+			}
+			if (line.charAt(pos) == '}') {
+				break;
+			}
+			if (line.charAt(pos) != '"') {
+				return TemperatureRow.INVALID;
+			}
+			int keyEnd = line.indexOf('"', pos + 1);
+			String key = line.substring(pos + 1, keyEnd);
+			pos = skipWhitespace(line, keyEnd + 1);
+			if (line.charAt(pos) != ':') {
+				return TemperatureRow.INVALID;
+			}
+			pos = skipWhitespace(line, pos + 1);
+			String value;
+			if (line.charAt(pos) == '"') {
+				int valueEnd = line.indexOf('"', pos + 1);
+				value = line.substring(pos + 1, valueEnd);
+				pos = valueEnd + 1;
+			} else {
+				int valueEnd = pos;
+				while (valueEnd < end && line.charAt(valueEnd) != ',' && !Character.isWhitespace(line.charAt(valueEnd))) {
+					valueEnd++;
+				}
+				value = line.substring(pos, valueEnd);
+				pos = valueEnd;
+			}
+			switch (key) {
+			case "groupId":
+				groupId = value;
+				break;
+			case "deviceId":
+				deviceId = value;
+				break;
+			case "temperature":
+				temperature = Double.parseDouble(value);
+				break;
+			case "timestamp":
+				timestamp = Long.parseLong(value);
+				break;
+			default:
+				// unknown fields are ignored
+			}
+		}
+		return row(groupId, deviceId, temperature, timestamp);
+	}
+
+	private static TemperatureRow row(String groupId, String deviceId, double temperature, long timestamp) {
+		if (groupId == null || groupId.isEmpty() || deviceId == null || deviceId.isEmpty() || !Double.isFinite(temperature)) {
+			return TemperatureRow.INVALID;
+		}
+		return new TemperatureRow(groupId, deviceId, temperature, timestamp);
+	}
+
+	private static int skipWhitespace(String line, int pos) {
+		while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+			pos++;
+		}
+		return pos;
+	}
+}
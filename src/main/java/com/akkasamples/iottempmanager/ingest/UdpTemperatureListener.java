@@ -0,0 +1,296 @@
+package com.akkasamples.iottempmanager.ingest;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.akkasamples.iottempmanager.DeviceManager;
+import com.typesafe.config.Config;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.io.Udp;
+import akka.io.UdpMessage;
+import akka.io.UdpSO;
+import akka.pattern.PatternsCS;
+import akka.util.ByteString;
+import akka.util.Timeout;
+import scala.concurrent.duration.FiniteDuration;
+
+/**
+ * Receives readings as UDP datagrams, each holding one or more frames of the TCP endpoint
+ * (see {@link TemperatureFrames}) back to back, for sensors that cannot keep a connection.
+ *
+ * Readings are coalesced per group and sent to the IoTManager as one RecordTemperatures
+ * once a group has batch-size of them, the rest every flush-interval. At most max-in-flight
+ * batches wait for their group, readings beyond max-pending buffered ones are dropped. UDP
+ * has no backpressure, the counters in {@link Stats} are where lost readings show up.
+ *
+ * A socket that cannot be bound, a port already in use for one, is logged and stops the
+ * listener. Who asked with {@link AwaitBound} is answered {@link BindFailed}.
+ */
+public class UdpTemperatureListener extends AbstractActor {
+	public static final String DISPATCHER = "iot.udp-ingestion.dispatcher";
+	static final Timeout RECORD_TIMEOUT = new Timeout(5, TimeUnit.SECONDS);
+
+	private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+	private final ActorRef iotManager;
+	private final InetSocketAddress address;
+	private final Config settings;
+	private int batchSize;
+	private int maxInFlight;
+	private int maxPending;
+	private Cancellable flushTimer;
+	private ActorRef socket;
+	private InetSocketAddress localAddress;
+	// asked AwaitBound before the socket was bound
+	private final List<ActorRef> awaitingBound = new ArrayList<>();
+	// partly filled batches in the order their first reading arrived
+	private final Map<String, Batch> batches = new LinkedHashMap<>();
+	// full batches waiting for an in-flight slot, sent before any partly filled one
+	private final ArrayDeque<Batch> ready = new ArrayDeque<>();
+	private int pending;
+	private int inFlight;
+	private long requestIds;
+	private long datagrams;
+	private long readings;
+	private long malformed;
+	private long overflow;
+	private long recorded;
+	private long dropped;
+
+	public UdpTemperatureListener(ActorRef iotManager, InetSocketAddress address, Config settings) {
+		this.iotManager = iotManager;
+		this.address = address;
+		this.settings = settings;
+	}
+
+	/**
+	 * Listens on address with the iot.udp-ingestion settings, port 0 picks a free port.
+	 */
+	public static Props props(ActorRef iotManager, InetSocketAddress address) {
+		return Props.create(UdpTemperatureListener.class, () -> new UdpTemperatureListener(iotManager, address, null)).withDispatcher(DISPATCHER);
+	}
+
+	public static Props props(ActorRef iotManager, InetSocketAddress address, Config settings) {
+		return Props.create(UdpTemperatureListener.class, () -> new UdpTemperatureListener(iotManager, address, settings)).withDispatcher(DISPATCHER);
+	}
+
+	public static class GetStats {
+	}
+
+	public static class Stats {
+		// null until the socket is bound
+		public final InetSocketAddress localAddress;
+		public final long datagrams;
+		// decoded readings, each ends up recorded, dropped or overflowed
+		public final long readings;
+		// frames that could not be decoded, a datagram cut short counts once
+		public final long malformed;
+		// readings dropped because max-pending were buffered
+		public final long overflow;
+		public final long recorded;
+		// readings the groups rejected or did not answer for
+		public final long dropped;
+
+		public Stats(InetSocketAddress localAddress, long datagrams, long readings, long malformed, long overflow, long recorded, long dropped) {
+			this.localAddress = localAddress;
+			this.datagrams = datagrams;
+			this.readings = readings;
+			this.malformed = malformed;
+			this.overflow = overflow;
+			this.recorded = recorded;
+			this.dropped = dropped;
+		}
+
+		public String getResponse() {
+			return "datagrams: " + datagrams + "\nreadings: " + readings + "\nmalformed: " + malformed + "\noverflow: " + overflow
+					+ "\nrecorded: " + recorded + "\ndropped: " + dropped + "\n";
+		}
+	}
+
+	// Answered Bound once the socket is bound, BindFailed if it cannot be
+	public static class AwaitBound {
+	}
+
+	public static class Bound {
+		public final InetSocketAddress localAddress;
+
+		public Bound(InetSocketAddress localAddress) {
+			this.localAddress = localAddress;
+		}
+	}
+
+	public static class BindFailed {
+		public final InetSocketAddress address;
+
+		public BindFailed(InetSocketAddress address) {
+			this.address = address;
+		}
+	}
+
+	static class Flush {
+	}
+
+	@Override
+	public void preStart() throws Exception {
+		Config config = settings != null ? settings : getContext().getSystem().settings().config().getConfig("iot.udp-ingestion");
+		batchSize = config.getInt("batch-size");
+		maxInFlight = config.getInt("max-in-flight");
+		maxPending = config.getInt("max-pending");
+		FiniteDuration flushInterval = FiniteDuration.create(config.getDuration("flush-interval", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+		flushTimer = getContext().getSystem().scheduler().schedule(flushInterval, flushInterval, getSelf(), new Flush(), getContext().dispatcher(), ActorRef.noSender());
+		Udp.get(getContext().getSystem()).getManager().tell(
+				UdpMessage.bind(getSelf(), address, Collections.singletonList(UdpSO.receiveBufferSize(config.getBytes("receive-buffer-size").intValue()))),
+				getSelf());
+	}
+
+	@Override
+	public void postStop() throws Exception {
+		flushTimer.cancel();
+		if (socket != null) {
+			socket.tell(UdpMessage.unbind(), getSelf());
+		}
+		super.postStop();
+	}
+
+	@Override
+	public Receive createReceive() {
+		return receiveBuilder()
+				.match(Udp.Bound.class, r -> {
+					socket = getSender();
+					localAddress = r.localAddress();
+					log.info("UdpTemperatureListener.bound({})", localAddress);
+					awaitingBound.forEach(a -> a.tell(new Bound(localAddress), getSelf()));
+					awaitingBound.clear();
+				})
+				.match(Udp.CommandFailed.class, r -> {
+					// restarting would only bind again and fail the same way
+					log.error("UdpTemperatureListener.bind({}) failed, stopping", address);
+					awaitingBound.forEach(a -> a.tell(new BindFailed(address), getSelf()));
+					getContext().stop(getSelf());
+				})
+				.match(AwaitBound.class, r -> {
+					if (localAddress != null) {
+						getSender().tell(new Bound(localAddress), getSelf());
+					} else {
+						awaitingBound.add(getSender());
+					}
+				})
+				.match(Udp.Received.class, r -> onReceived(r.data()))
+				.match(DeviceManager.TemperaturesRecorded.class, this::onRecorded)
+				.match(Flush.class, r -> flush())
+				.match(GetStats.class, r -> getSender().tell(new Stats(localAddress, datagrams, readings, malformed, overflow, recorded, dropped), getSelf()))
+				.match(Udp.Unbound.class, r -> {})
+				.build();
+	}
+
+	private void onReceived(ByteString data) {
+		datagrams++;
+		int offset = 0;
+		while (offset < data.size()) {
+			int end = TemperatureFrames.frameEnd(data, offset);
+			if (end < 0) {
+				malformed++;
+				break;
+			}
+			TemperatureRow row = TemperatureFrames.decode(data.slice(offset, end));
+			if (!row.isValid()) {
+				malformed++;
+			} else {
+				readings++;
+				if (pending == maxPending) {
+					overflow++;
+				} else {
+					add(row);
+				}
+			}
+			offset = end;
+		}
+	}
+
+	private void add(TemperatureRow row) {
+		Batch batch = batches.get(row.groupId);
+		if (batch == null) {
+			batch = new Batch(row.groupId);
+			batches.put(row.groupId, batch);
+		}
+		batch.add(row.deviceId, row.temperature, row.timestamp);
+		pending++;
+		if (batch.size == batchSize) {
+			batches.remove(row.groupId);
+			if (inFlight < maxInFlight && ready.isEmpty()) {
+				send(batch);
+			} else {
+				ready.add(batch);
+			}
+		}
+	}
+
+	private void onRecorded(DeviceManager.TemperaturesRecorded r) {
+		inFlight--;
+		recorded += r.accepted;
+		dropped += r.rejected;
+		while (inFlight < maxInFlight && !ready.isEmpty()) {
+			send(ready.poll());
+		}
+	}
+
+	// Readings of a group go out in arrival order, full batches first
+	private void flush() {
+		while (inFlight < maxInFlight && !ready.isEmpty()) {
+			send(ready.poll());
+		}
+		Iterator<Batch> partial = batches.values().iterator();
+		while (inFlight < maxInFlight && ready.isEmpty() && partial.hasNext()) {
+			send(partial.next());
+			partial.remove();
+		}
+	}
+
+	private void send(Batch batch) {
+		DeviceManager.RecordTemperatures record = new DeviceManager.RecordTemperatures(++requestIds, batch.groupId,
+				Arrays.copyOf(batch.deviceIds, batch.size), Arrays.copyOf(batch.temperatures, batch.size), Arrays.copyOf(batch.timestamps, batch.size));
+		pending -= batch.size;
+		inFlight++;
+		PatternsCS.pipe(PatternsCS.ask(iotManager, record, RECORD_TIMEOUT)
+				.exceptionally(t -> new DeviceManager.TemperaturesRecorded(record.requestId, record.groupId, 0, record.size())), getContext().dispatcher())
+				.to(getSelf());
+	}
+
+	private final class Batch {
+		final String groupId;
+		String[] deviceIds = new String[16];
+		double[] temperatures = new double[16];
+		long[] timestamps = new long[16];
+		int size;
+
+		Batch(String groupId) {
+			this.groupId = groupId;
+		}
+
+		void add(String deviceId, double temperature, long timestamp) {
+			if (size == deviceIds.length) {
+				int capacity = Math.min(batchSize, size * 2);
+				deviceIds = Arrays.copyOf(deviceIds, capacity);
+				temperatures = Arrays.copyOf(temperatures, capacity);
+				timestamps = Arrays.copyOf(timestamps, capacity);
+			}
+			deviceIds[size] = deviceId;
+			temperatures[size] = temperature;
+			timestamps[size] = timestamp;
+			size++;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package com.akkasamples.iottempmanager.journal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Registry and latest readings of the devices of a journal up to the start of a segment,
+ * so opening the journal replays the snapshot and the segments from firstSegment on
+ * instead of the whole history. The snapshot is built from the groups on the thread of
+ * the owning DeviceManager, {@link #write()} can then run on any thread.
+ *
+ * <pre>
+ * int magic | int version | long firstSegment | int devices | int groups
+ * per group:  short length | groupId UTF-8 | int devices
+ * per device: int deviceNo | short length | deviceId UTF-8 | long timestamp | double temperature (NaN without reading)
+ * int crc32 of everything before
+ * </pre>
+ */
+public final class JournalSnapshot {
+	static final String FILE_NAME = "snapshot.bin";
+	private static final int MAGIC = 0x494F5453;
+	private static final int VERSION = 1;
+
+	private final Path directory;
+	private final long firstSegment;
+	private final int devices;
+	private final List<Group> groups = new ArrayList<>();
+
+	JournalSnapshot(Path directory, long firstSegment, int devices) {
+		this.directory = directory;
+		this.firstSegment = firstSegment;
+		this.devices = devices;
+	}
+
+	public long firstSegment() {
+		return firstSegment;
+	}
+
+	public int devices() {
+		return devices;
+	}
+
+	/**
+	 * Adds the devices of a group, the arrays are index aligned and owned by the snapshot.
+	 */
+	public void addGroup(String groupId, int[] deviceNos, String[] deviceIds, double[] temperatures, long[] timestamps) {
+		groups.add(new Group(groupId, deviceNos, deviceIds, temperatures, timestamps));
+	}
+
+	/**
+	 * Writes the snapshot next to a temporary file and moves it over the previous one once
+	 * it is on disk, a crash while writing leaves the previous snapshot in place.
+	 */
+	public void write() throws IOException {
+		Path file = directory.resolve(FILE_NAME);
+		Path temporary = directory.resolve(FILE_NAME + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(temporary.toFile())) {
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(out, 1 << 16), new CRC32());
+			DataOutputStream data = new DataOutputStream(checked);
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+			data.writeLong(firstSegment);
+			data.writeInt(devices);
+			data.writeInt(groups.size());
+			for (Group group : groups) {
+				writeId(data, group.groupId);
+				data.writeInt(group.deviceIds.length);
+				for (int i = 0; i < group.deviceIds.length; i++) {
+					data.writeInt(group.deviceNos[i]);
+					writeId(data, group.deviceIds[i]);
+					data.writeLong(group.timestamps[i]);
+					data.writeDouble(group.temperatures[i]);
+				}
+			}
+			data.writeInt((int) checked.getChecksum().getValue());
+			data.flush();
+			out.getFD().sync();
+		}
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Hands the devices of the snapshot in the directory to replay, a registration followed
+	 * by the latest reading if there is one. Returns null without a snapshot.
+	 */
+	static JournalSnapshot read(Path directory, TemperatureJournal.Replay replay) throws IOException {
+		Path file = directory.resolve(FILE_NAME);
+		if (!Files.exists(file)) {
+			return null;
+		}
+		byte[] bytes = Files.readAllBytes(file);
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length - 4);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		if (bytes.length < 28 || buffer.getInt(bytes.length - 4) != (int) crc.getValue() || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+			throw new IOException("Corrupt journal snapshot " + file);
+		}
+		JournalSnapshot snapshot = new JournalSnapshot(directory, buffer.getLong(), buffer.getInt());
+		int groups = buffer.getInt();
+		for (int g = 0; g < groups; g++) {
+			String groupId = readId(buffer, bytes);
+			int devices = buffer.getInt();
+			for (int d = 0; d < devices; d++) {
+				int deviceNo = buffer.getInt();
+				String deviceId = readId(buffer, bytes);
+				long timestamp = buffer.getLong();
+				double temperature = buffer.getDouble();
+				replay.onRegister(deviceNo, groupId, deviceId);
+				if (!Double.isNaN(temperature)) {
+					replay.onTemperature(deviceNo, timestamp, temperature);
+				}
+			}
+		}
+		return snapshot;
+	}
+
+	private static void writeId(DataOutputStream data, String id) throws IOException {
+		byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+		data.writeShort(bytes.length);
+		data.write(bytes);
+	}
+
+	private static String readId(ByteBuffer buffer, byte[] bytes) {
+		int length = buffer.getShort() & 0xFFFF;
+		String id = new String(bytes, buffer.position(), length, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return id;
+	}
+
+	private static final class Group {
+		final String groupId;
+		final int[] deviceNos;
+		final String[] deviceIds;
+		final double[] temperatures;
+		final long[] timestamps;
+
+		Group(String groupId, int[] deviceNos, String[] deviceIds, double[] temperatures, long[] timestamps) {
+			this.groupId = groupId;
+			this.deviceNos = deviceNos;
+			this.deviceIds = deviceIds;
+			this.temperatures = temperatures;
+			this.timestamps = timestamps;
+		}
+	}
+}
@@ -0,0 +1,365 @@
+package com.akkasamples.iottempmanager.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of device registrations and temperature readings, written to memory
+ * mapped segment files of a fixed size. Appending is a copy into the mapping, the OS writes
+ * the pages back on its own and {@link #flush()} forces them to disk, so callers decide
+ * how many records share one fsync.
+ *
+ * Devices get a number when they are registered, so a temperature record is a fixed 32
+ * bytes:
+ *
+ * <pre>
+ * int type | int deviceNo | long timestamp | long temperature bits | int checksum | int 0
+ * </pre>
+ *
+ * A registration record carries the ids once:
+ *
+ * <pre>
+ * int type | int deviceNo | short groupId length | short deviceId length | int crc32 | groupId, deviceId UTF-8, padded to 8
+ * </pre>
+ *
+ * Opening a journal replays its {@link JournalSnapshot}, if there is one, and the segments
+ * written after it. A segment ends at the first zero type word, a record that
+ * fails its checksum is the torn tail of a crash and is wiped together with everything
+ * behind it before new records are appended.
+ *
+ * Not thread safe, a journal is owned by a single DeviceManager.
+ */
+public final class TemperatureJournal implements Closeable {
+	static final int REGISTER = 0x494F5401;
+	static final int TEMPERATURE = 0x494F5402;
+	static final int TEMPERATURE_RECORD_SIZE = 32;
+	static final int REGISTER_HEADER_SIZE = 16;
+	private static final String SEGMENT_SUFFIX = ".wal";
+
+	/**
+	 * Receives the records of a journal in the order they were appended.
+	 */
+	public interface Replay {
+		void onRegister(int deviceNo, String groupId, String deviceId);
+
+		void onTemperature(int deviceNo, long timestamp, double temperature);
+	}
+
+	private final Path directory;
+	private final int segmentSize;
+	// groupId -> deviceId -> deviceNo
+	private final Map<String, Map<String, Integer>> deviceNumbers = new HashMap<>();
+	private int nextDeviceNo;
+	private long segmentIndex;
+	private FileChannel channel;
+	private MappedByteBuffer segment;
+	private boolean dirty;
+	private long replayedRecords;
+
+	private TemperatureJournal(Path directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Opens the journal in the directory, creating it if needed, and hands every record
+	 * already in it to replay before returning.
+	 */
+	public static TemperatureJournal open(Path directory, int segmentSize, Replay replay) throws IOException {
+		TemperatureJournal journal = new TemperatureJournal(directory, segmentSize);
+		journal.recover(replay);
+		return journal;
+	}
+
+	/**
+	 * Number of the device or -1 if it was never registered.
+	 */
+	public int deviceNumber(String groupId, String deviceId) {
+		Map<String, Integer> devices = deviceNumbers.get(groupId);
+		Integer deviceNo = devices == null ? null : devices.get(deviceId);
+		return deviceNo == null ? -1 : deviceNo;
+	}
+
+	/**
+	 * Appends a registration unless the device is known, returns its number.
+	 */
+	public int register(String groupId, String deviceId) {
+		int deviceNo = deviceNumber(groupId, deviceId);
+		if (deviceNo >= 0) {
+			return deviceNo;
+		}
+		byte[] group = groupId.getBytes(StandardCharsets.UTF_8);
+		byte[] device = deviceId.getBytes(StandardCharsets.UTF_8);
+		if (group.length > 0xFFFF || device.length > 0xFFFF) {
+			throw new IllegalArgumentException(String.format("Ids longer than %d bytes cannot be journaled: %s/%s", 0xFFFF, groupId, deviceId));
+		}
+		deviceNo = nextDeviceNo++;
+		int size = registerRecordSize(group.length + device.length);
+		ensureCapacity(size);
+		int start = segment.position();
+		segment.putInt(start + 4, deviceNo);
+		segment.putShort(start + 8, (short) group.length);
+		segment.putShort(start + 10, (short) device.length);
+		segment.putInt(start + 12, registerChecksum(deviceNo, group, device));
+		segment.position(start + REGISTER_HEADER_SIZE);
+		segment.put(group);
+		segment.put(device);
+		// the type word goes last, so a record cut short by a crashing process is never typed
+		segment.putInt(start, REGISTER);
+		segment.position(start + size);
+		deviceNumbers.computeIfAbsent(groupId, g -> new HashMap<>()).put(deviceId, deviceNo);
+		dirty = true;
+		return deviceNo;
+	}
+
+	public void append(int deviceNo, long timestamp, double temperature) {
+		ensureCapacity(TEMPERATURE_RECORD_SIZE);
+		int start = segment.position();
+		long bits = Double.doubleToRawLongBits(temperature);
+		segment.putInt(start + 4, deviceNo);
+		segment.putLong(start + 8, timestamp);
+		segment.putLong(start + 16, bits);
+		segment.putInt(start + 24, temperatureChecksum(deviceNo, timestamp, bits));
+		segment.putInt(start, TEMPERATURE);
+		segment.position(start + TEMPERATURE_RECORD_SIZE);
+		dirty = true;
+	}
+
+	/**
+	 * Forces the records appended since the last flush to disk.
+	 */
+	public void flush() {
+		if (dirty) {
+			segment.force();
+			dirty = false;
+		}
+	}
+
+	public int devices() {
+		return nextDeviceNo;
+	}
+
+	/**
+	 * Starts a snapshot of everything appended so far: later appends go to a new segment and
+	 * the caller adds the current state of every group to the returned snapshot.
+	 */
+	public JournalSnapshot startSnapshot() {
+		if (segment.position() > 0) {
+			try {
+				segment.force();
+				channel.close();
+				segmentIndex++;
+				openSegment(segmentFile(segmentIndex), segmentSize);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return new JournalSnapshot(directory, segmentIndex, nextDeviceNo);
+	}
+
+	/**
+	 * Drops the segments covered by a snapshot once it is written.
+	 */
+	public void snapshotWritten(JournalSnapshot snapshot) throws IOException {
+		deleteSegmentsBefore(snapshot.firstSegment());
+	}
+
+	/**
+	 * Records handed to the replay when the journal was opened.
+	 */
+	public long replayedRecords() {
+		return replayedRecords;
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		channel.close();
+	}
+
+	private void recover(Replay replay) throws IOException {
+		Files.createDirectories(directory);
+		JournalSnapshot snapshot = JournalSnapshot.read(directory, new Replay() {
+			@Override
+			public void onRegister(int deviceNo, String groupId, String deviceId) {
+				deviceNumbers.computeIfAbsent(groupId, g -> new HashMap<>()).put(deviceId, deviceNo);
+				replay.onRegister(deviceNo, groupId, deviceId);
+				replayedRecords++;
+			}
+
+			@Override
+			public void onTemperature(int deviceNo, long timestamp, double temperature) {
+				replay.onTemperature(deviceNo, timestamp, temperature);
+				replayedRecords++;
+			}
+		});
+		long firstSegment = 0;
+		if (snapshot != null) {
+			nextDeviceNo = snapshot.devices();
+			firstSegment = snapshot.firstSegment();
+			// left behind when the process stopped between writing a snapshot and dropping them
+			deleteSegmentsBefore(firstSegment);
+		}
+		List<Path> segments = segments();
+		for (int i = 0; i < segments.size(); i++) {
+			boolean last = i == segments.size() - 1;
+			openSegment(segments.get(i), -1);
+			int end = replaySegment(replay);
+			if (last) {
+				segmentIndex = indexOf(segments.get(i));
+				segment.position(end);
+			} else {
+				channel.close();
+			}
+		}
+		if (segments.isEmpty()) {
+			segmentIndex = firstSegment;
+			openSegment(segmentFile(segmentIndex), segmentSize);
+		}
+	}
+
+	private void deleteSegmentsBefore(long index) throws IOException {
+		for (Path file : segments()) {
+			if (indexOf(file) < index) {
+				Files.delete(file);
+			}
+		}
+	}
+
+	private int replaySegment(Replay replay) {
+		MappedByteBuffer buffer = segment;
+		int position = 0;
+		int limit = buffer.limit();
+		while (position + 4 <= limit) {
+			int type = buffer.getInt(position);
+			if (type == TEMPERATURE && position + TEMPERATURE_RECORD_SIZE <= limit) {
+				int deviceNo = buffer.getInt(position + 4);
+				long timestamp = buffer.getLong(position + 8);
+				long bits = buffer.getLong(position + 16);
+				if (buffer.getInt(position + 24) != temperatureChecksum(deviceNo, timestamp, bits) || deviceNo < 0 || deviceNo >= nextDeviceNo) {
+					return wipeTail(position);
+				}
+				replay.onTemperature(deviceNo, timestamp, Double.longBitsToDouble(bits));
+				position += TEMPERATURE_RECORD_SIZE;
+			} else if (type == REGISTER && position + REGISTER_HEADER_SIZE <= limit) {
+				int deviceNo = buffer.getInt(position + 4);
+				int groupLength = buffer.getShort(position + 8) & 0xFFFF;
+				int deviceLength = buffer.getShort(position + 10) & 0xFFFF;
+				int size = registerRecordSize(groupLength + deviceLength);
+				if (position + size > limit || deviceNo != nextDeviceNo) {
+					return wipeTail(position);
+				}
+				byte[] group = new byte[groupLength];
+				byte[] device = new byte[deviceLength];
+				buffer.position(position + REGISTER_HEADER_SIZE);
+				buffer.get(group);
+				buffer.get(device);
+				if (buffer.getInt(position + 12) != registerChecksum(deviceNo, group, device)) {
+					return wipeTail(position);
+				}
+				String groupId = new String(group, StandardCharsets.UTF_8);
+				String deviceId = new String(device, StandardCharsets.UTF_8);
+				deviceNumbers.computeIfAbsent(groupId, g -> new HashMap<>()).put(deviceId, deviceNo);
+				nextDeviceNo++;
+				replay.onRegister(deviceNo, groupId, deviceId);
+				position += size;
+			} else if (type == 0) {
+				return position;
+			} else {
+				return wipeTail(position);
+			}
+			replayedRecords++;
+		}
+		return position;
+	}
+
+	// Only reached after a crash in the middle of an append
+	private int wipeTail(int position) {
+		for (int i = position; i < segment.limit(); i++) {
+			segment.put(i, (byte) 0);
+		}
+		segment.force();
+		return position;
+	}
+
+	private void ensureCapacity(int size) {
+		if (segment.remaining() >= size) {
+			return;
+		}
+		if (size > segmentSize) {
+			throw new IllegalArgumentException(String.format("Record of %d bytes does not fit a segment of %d bytes", size, segmentSize));
+		}
+		try {
+			segment.force();
+			channel.close();
+			segmentIndex++;
+			openSegment(segmentFile(segmentIndex), segmentSize);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// length -1 maps an existing segment at its current size, mapping past the end grows the file
+	private void openSegment(Path file, long length) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, length >= 0 ? length : channel.size());
+		dirty = false;
+	}
+
+	private List<Path> segments() throws IOException {
+		List<Path> segments = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				segments.add(file);
+			}
+		}
+		// zero padded names sort in append order
+		Collections.sort(segments);
+		return segments;
+	}
+
+	private Path segmentFile(long index) {
+		return directory.resolve(String.format("%020d%s", index, SEGMENT_SUFFIX));
+	}
+
+	private static long indexOf(Path segment) {
+		String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	static int registerRecordSize(int idBytes) {
+		return (REGISTER_HEADER_SIZE + idBytes + 7) & ~7;
+	}
+
+	static int temperatureChecksum(int deviceNo, long timestamp, long bits) {
+		long h = (deviceNo + 1) * 0x9E3779B97F4A7C15L;
+		h = (h ^ timestamp) * 0xC2B2AE3D27D4EB4FL;
+		h = (h ^ bits) * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	// Covers every field of the header, update(int) alone would take the low byte only
+	static int registerChecksum(int deviceNo, byte[] group, byte[] device) {
+		CRC32 crc = new CRC32();
+		crc.update(new byte[] {
+				(byte) (deviceNo >>> 24), (byte) (deviceNo >>> 16), (byte) (deviceNo >>> 8), (byte) deviceNo,
+				(byte) (group.length >>> 8), (byte) group.length, (byte) (device.length >>> 8), (byte) device.length });
+		crc.update(group);
+		crc.update(device);
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,68 @@
+package com.akkasamples.iottempmanager.main;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control of the write routes. A write is turned away once maxInFlight writes are
+ * waiting for their acknowledgement, or once the mailboxes it has to pass hold maxQueued
+ * messages, so that overload ends in a 503 the client can retry instead of mailboxes that
+ * grow until the heap is gone.
+ */
+final class IngestionLimiter {
+	private final int maxInFlight;
+	private final long maxQueued;
+	// iot_mailbox_depth of the tiers a write passes
+	private final LongAdder[] depths;
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/**
+	 * maxQueued = 0 ignores the mailbox depths.
+	 */
+	IngestionLimiter(int maxInFlight, long maxQueued, LongAdder... depths) {
+		this.maxInFlight = maxInFlight;
+		this.maxQueued = maxQueued;
+		this.depths = depths;
+	}
+
+	static IngestionLimiter unlimited() {
+		return new IngestionLimiter(Integer.MAX_VALUE, 0L);
+	}
+
+	/**
+	 * Whether a write that is not waited for may be sent.
+	 */
+	boolean admit() {
+		if (maxQueued == 0L) {
+			return true;
+		}
+		long queued = 0L;
+		for (LongAdder depth : depths) {
+			queued += depth.sum();
+		}
+		return queued < maxQueued;
+	}
+
+	/**
+	 * Takes an in-flight slot for an acknowledged write, to be given back with
+	 * {@link #release()} once it is answered.
+	 */
+	boolean tryAcquire() {
+		if (!admit()) {
+			return false;
+		}
+		if (inFlight.incrementAndGet() > maxInFlight) {
+			inFlight.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	void release() {
+		inFlight.decrementAndGet();
+	}
+
+	int inFlight() {
+		return inFlight.get();
+	}
+}
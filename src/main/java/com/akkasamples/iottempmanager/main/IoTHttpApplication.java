@@ -1,14 +1,30 @@
 package com.akkasamples.iottempmanager.main;
 
+import static akka.http.javadsl.server.PathMatchers.segment;
+
 import java.io.IOException;
-import java.util.Random;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+import com.akkasamples.iottempmanager.DeviceGroup;
 import com.akkasamples.iottempmanager.DeviceManager;
 import com.akkasamples.iottempmanager.DeviceManager.DeviceList;
+import com.akkasamples.iottempmanager.GroupRegistry;
 import com.akkasamples.iottempmanager.IoTManager;
-import com.sun.javafx.tools.packager.Log;
+import com.akkasamples.iottempmanager.TraceContext;
+import com.akkasamples.iottempmanager.ingest.IngestResult;
+import com.akkasamples.iottempmanager.ingest.TemperatureIngestion;
+import com.akkasamples.iottempmanager.ingest.UdpTemperatureListener;
+import com.akkasamples.iottempmanager.metrics.IoTMetrics;
+import com.akkasamples.iottempmanager.metrics.Latency;
+import com.typesafe.config.Config;
 
 import akka.NotUsed;
 import akka.actor.ActorRef;
@@ -19,36 +35,108 @@ import akka.http.javadsl.ConnectHttp;
 import akka.http.javadsl.Http;
 import akka.http.javadsl.ServerBinding;
 import akka.http.javadsl.marshalling.Marshaller;
+import akka.http.javadsl.marshalling.sse.EventStreamMarshalling;
 import akka.http.javadsl.model.HttpRequest;
 import akka.http.javadsl.model.HttpResponse;
 import akka.http.javadsl.model.RequestEntity;
+import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.model.headers.RawHeader;
+import akka.http.javadsl.model.headers.RetryAfter;
 import akka.http.javadsl.server.AllDirectives;
 import akka.http.javadsl.server.Route;
 import akka.http.javadsl.unmarshalling.StringUnmarshallers;
 import akka.pattern.Patterns;
 import akka.pattern.PatternsCS;
 import akka.stream.ActorMaterializer;
+import akka.stream.ActorMaterializerSettings;
 import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Tcp;
 import akka.util.Timeout;
 import scala.concurrent.Await;
 import scala.concurrent.Future;
+import scala.concurrent.duration.Duration;
 import scala.concurrent.duration.FiniteDuration;
 
 public class IoTHttpApplication extends AllDirectives {
 	public static LoggingAdapter log;
+	// served by GET /ingest/udp when running
+	public static final String UDP_LISTENER_NAME = "udp-ingestion";
+	// HTTP connections and routes, and the TCP ingestion streams, each on their own threads
+	public static final String HTTP_DISPATCHER = "iot.dispatchers.http";
+	public static final String INGESTION_DISPATCHER = "iot.dispatchers.ingestion";
+	public static final String TRACE_HEADER = "X-Trace";
+
+	private final boolean tracingEnabled;
+	private final int traceSampleRate;
+	// POST /temperature and POST /device answer once the group applied the write
+	private final boolean acknowledgedWrites;
+	private final Timeout ackTimeout;
+	private final IngestionLimiter limiter;
+	private final long retryAfterSeconds;
+	// null unless iot.device-manager.direct-routing
+	private final GroupRegistry registry;
+	// acknowledged writes skip the shards as well, only without the journal
+	private final boolean directWrites;
+
+	/**
+	 * Routes without tracing that answer writes as soon as they are sent.
+	 */
+	public IoTHttpApplication() {
+		this.tracingEnabled = false;
+		this.traceSampleRate = 0;
+		this.acknowledgedWrites = false;
+		this.ackTimeout = null;
+		this.limiter = IngestionLimiter.unlimited();
+		this.retryAfterSeconds = 1L;
+		this.registry = null;
+		this.directWrites = false;
+	}
+
+	/**
+	 * Routes configured by the iot.tracing and iot.ingestion settings of the system.
+	 */
+	public IoTHttpApplication(ActorSystem system) {
+		Config config = system.settings().config();
+		this.tracingEnabled = config.getBoolean("iot.tracing.enabled");
+		this.traceSampleRate = config.getInt("iot.tracing.sample-rate");
+		this.acknowledgedWrites = config.getBoolean("iot.ingestion.acknowledged");
+		this.ackTimeout = new Timeout(config.getDuration("iot.ingestion.ack-timeout", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+		IoTMetrics metrics = IoTMetrics.get(system);
+		this.limiter = new IngestionLimiter(config.getInt("iot.ingestion.max-in-flight"), config.getLong("iot.ingestion.max-queued"),
+				metrics.mailboxDepth(IoTMetrics.IOT_MANAGER), metrics.mailboxDepth(IoTMetrics.DEVICE_MANAGER), metrics.mailboxDepth(IoTMetrics.DEVICE_GROUP));
+		this.retryAfterSeconds = Math.max(1L, config.getDuration("iot.ingestion.retry-after", TimeUnit.SECONDS));
+		boolean directRouting = config.getBoolean("iot.device-manager.direct-routing");
+		this.registry = directRouting ? GroupRegistry.get(system) : null;
+		this.directWrites = directRouting && acknowledgedWrites && !config.getBoolean("iot.journal.enabled");
+	}
 
 	public static void main(String[] args) throws IOException {
 		// boot up server using the route as defined below
 	    ActorSystem system = ActorSystem.create("iotApplication");
 	    ActorRef iotManager = system.actorOf(IoTManager.props());
-	    log = Logging.getLogger(system, system);
-	    final Http http = Http.get(system);
-	    final ActorMaterializer materializer = ActorMaterializer.create(system);
-	  //In order to access all directives we need an instance where the routes are define.
-	    IoTHttpApplication app = new IoTHttpApplication();
-	    final Flow<HttpRequest, HttpResponse, NotUsed> routeFlow = app.createRoute(iotManager).flow(system, materializer);
-	    final CompletionStage<ServerBinding> binding = http.bindAndHandle(routeFlow,
-	        ConnectHttp.toHost("localhost", 8080), materializer);
+	    final ActorMaterializer materializer = ActorMaterializer.create(ActorMaterializerSettings.create(system).withDispatcher(HTTP_DISPATCHER), system);
+	    final ActorMaterializer ingestionMaterializer = ActorMaterializer.create(ActorMaterializerSettings.create(system).withDispatcher(INGESTION_DISPATCHER), system);
+	    final CompletionStage<ServerBinding> binding = bind(system, materializer, iotManager, "localhost", 8080);
+	    final Config tcp = system.settings().config().getConfig("iot.tcp-ingestion");
+	    final CompletionStage<Tcp.ServerBinding> tcpBinding = tcp.getBoolean("enabled")
+	    		? bindTcp(system, ingestionMaterializer, iotManager, "localhost", tcp.getInt("port"), (int) tcp.getBytes("max-frame-length").longValue())
+	    		: CompletableFuture.completedFuture(null);
+
+	    final Config udp = system.settings().config().getConfig("iot.udp-ingestion");
+	    if (udp.getBoolean("enabled")) {
+	    	ActorRef listener = system.actorOf(UdpTemperatureListener.props(iotManager, new InetSocketAddress("localhost", udp.getInt("port"))), UDP_LISTENER_NAME);
+	    	Object bound = PatternsCS.ask(listener, new UdpTemperatureListener.AwaitBound(), 5000).toCompletableFuture()
+	    			.exceptionally(t -> t).join();
+	    	if (!(bound instanceof UdpTemperatureListener.Bound)) {
+	    		System.err.println("UDP ingestion could not bind port " + udp.getInt("port") + ", shutting down");
+	    		binding
+	    			.thenCompose(ServerBinding::unbind)
+	    			.thenCompose(unbound -> tcpBinding.thenCompose(b -> b == null ? CompletableFuture.completedFuture(null) : b.unbind()))
+	    			.thenAccept(unbound -> system.terminate());
+	    		return;
+	    	}
+	    }
 
 	    System.out.println("Server online at http://localhost:8080/\nPress RETURN to stop...");
 	    int byteRead;
@@ -59,57 +147,304 @@ public class IoTHttpApplication extends AllDirectives {
 
 	    binding
 	        .thenCompose(ServerBinding::unbind) // trigger unbinding from the port
+	        .thenCompose(unbound -> tcpBinding.thenCompose(b -> b == null ? CompletableFuture.completedFuture(null) : b.unbind()))
 	        .thenAccept(unbound -> system.terminate()); // and shutdown when done
 
 	}
 	
-	private Route createRoute(ActorRef iotManager) {
-		Random random = new Random();
+	/**
+	 * Binds the IoT routes for the given IoTManager on host:port, port 0 picks a free port.
+	 */
+	public static CompletionStage<ServerBinding> bind(ActorSystem system, ActorMaterializer materializer, ActorRef iotManager, String host, int port) {
+		log = Logging.getLogger(system, system);
+		final Http http = Http.get(system);
+		//In order to access all directives we need an instance where the routes are define.
+		IoTHttpApplication app = new IoTHttpApplication(system);
+		final Flow<HttpRequest, HttpResponse, NotUsed> routeFlow = app.createRoute(iotManager).flow(system, materializer);
+		return http.bindAndHandle(routeFlow, ConnectHttp.toHost(host, port), materializer);
+	}
+
+	/**
+	 * Binds the binary TCP ingestion endpoint for the given IoTManager on host:port, port 0
+	 * picks a free port. Every connection streams frames into the groups, see TemperatureFrames.
+	 */
+	public static CompletionStage<Tcp.ServerBinding> bindTcp(ActorSystem system, ActorMaterializer materializer, ActorRef iotManager, String host, int port, int maxFrameLength) {
+		TemperatureIngestion ingestion = new TemperatureIngestion(iotManager);
+		// half-close keeps sending acks after the client is done writing
+		return Tcp.get(system).bind(host, port, 100, Collections.emptyList(), true, Duration.Inf())
+				.to(Sink.foreach(connection -> connection.handleWith(ingestion.frames(maxFrameLength), materializer)))
+				.run(materializer);
+	}
+
+	// Records iot_route_latency_seconds of the matched route, per HTTP method
+	private Route timed(String name, Supplier<Route> inner) {
+		return extractActorSystem(system -> {
+			IoTMetrics metrics = IoTMetrics.get(system);
+			if (!metrics.isEnabled()) {
+				return inner.get();
+			}
+			return extractMethod(method -> {
+				Latency latency = metrics.route(name, method.name());
+				long start = System.nanoTime();
+				return mapResponse(response -> {
+					latency.recordNanos(System.nanoTime() - start);
+					return response;
+				}, inner);
+			});
+		});
+	}
+
+	// Traces requests sent with an X-Trace header and one in sample-rate of the others, call
+	// it per request
+	private Route withTrace(Function<TraceContext, Route> inner) {
+		if (!tracingEnabled) {
+			return inner.apply(TraceContext.untraced());
+		}
+		return optionalHeaderValueByName(TRACE_HEADER, header -> {
+			boolean traced = header.isPresent() || (traceSampleRate > 0 && ThreadLocalRandom.current().nextInt(traceSampleRate) == 0);
+			return inner.apply(traced ? TraceContext.traced() : TraceContext.untraced());
+		});
+	}
+
+	// Answers the breakdown of a traced request in the X-Trace header and adds it to the metrics
+	private Route traceHeader(TraceContext trace, Supplier<Route> inner) {
+		if (!trace.isComplete()) {
+			return inner.get();
+		}
+		return extractActorSystem(system -> {
+			trace.recordInto(IoTMetrics.get(system));
+			return respondWithHeader(RawHeader.create(TRACE_HEADER, trace.breakdown()), inner);
+		});
+	}
+
+	// Sends a write to the IoTManager or the group. Acknowledged, the route completes with
+	// onReply once the group answered, otherwise right away with sent. Writes over the limits
+	// get a 503.
+	private Route write(ActorRef target, Object message, Function<Object, Route> onReply, Supplier<Route> sent) {
+		if (!acknowledgedWrites) {
+			if (!limiter.admit()) {
+				return overloaded();
+			}
+			target.tell(message, ActorRef.noSender());
+			return sent.get();
+		}
+		if (!limiter.tryAcquire()) {
+			return overloaded();
+		}
+		CompletionStage<Object> reply = PatternsCS.ask(target, message, ackTimeout)
+				.whenComplete((o, t) -> limiter.release());
+		// not answered within ack-timeout is overload as well
+		return onComplete(reply, r -> r.isSuccess() ? onReply.apply(r.get()) : overloaded());
+	}
+
+	private Route unknownGroup(String groupId) {
+		return complete(StatusCodes.NOT_FOUND, "Unknown device group " + groupId);
+	}
+
+	private Route ranked(String groupId, Object reply) {
+		return reply instanceof DeviceManager.DeviceGroupNotFound
+				? unknownGroup(groupId)
+				: complete(groupId + "\n" + ((DeviceManager.RankedTemperatures) reply).getResponse());
+	}
+
+	private Route overloaded() {
+		return respondWithHeader(RetryAfter.create(retryAfterSeconds), () ->
+				complete(StatusCodes.SERVICE_UNAVAILABLE, "Overloaded, retry later"));
+	}
+
+	// Where a write for the group goes, the shard journals it unless directWrites
+	private ActorRef writeTarget(Map<String, ActorRef> groups, ActorRef iotManager, String groupId) {
+		ActorRef group = directWrites ? groups.get(groupId) : null;
+		return group != null ? group : iotManager;
+	}
+
+	public Route createRoute(ActorRef iotManager) {
+		TemperatureIngestion ingestion = new TemperatureIngestion(iotManager);
+		// the running groups of this IoTManager, empty without direct routing
+		Map<String, ActorRef> groups = registry != null ? registry.groupsOf(iotManager) : Collections.emptyMap();
 	    return route(
-	        path("device", () -> route(
+	        path("device", () -> timed("device", () -> route(
 	        	post(() -> 
 		        	parameter(StringUnmarshallers.STRING, "groupId", groupId ->
 		            	parameter(StringUnmarshallers.STRING, "deviceId", deviceId -> {
-		            		Log.info(String.format("registerNewDevice(GroupId=%s, DeviceId=%s)", groupId, deviceId));
-		            		iotManager.tell(new DeviceManager.RequestRegisterDevice(groupId, deviceId), ActorRef.noSender());
-		            		return complete("Post-Device-Registration-Response");
+		            		log.debug("registerNewDevice(GroupId={}, DeviceId={})", groupId, deviceId);
+		            		return write(writeTarget(groups, iotManager, groupId), new DeviceManager.RequestRegisterDevice(groupId, deviceId),
+		            				registered -> complete("Post-Device-Registration-Response"),
+		            				() -> complete("Post-Device-Registration-Response"));
 		            	})
 		        	))
+	        ))),
+	        path(segment("temperature").slash("batch"), () -> timed("temperature/batch", () ->
+	        	post(() ->
+	        		withoutSizeLimit(() ->
+	        			extractMaterializer(materializer ->
+	        				extractDataBytes(data -> {
+	        					CompletionStage<IngestResult> result = data.runWith(ingestion.lines(TemperatureIngestion.DEFAULT_MAX_LINE_LENGTH), materializer);
+	        					return onComplete(result, r -> r.isSuccess()
+	        							? complete(r.get().getResponse())
+	        							: complete(StatusCodes.BAD_REQUEST, "Batch rejected: " + r.failed().get().getMessage()));
+	        				})
+	        			)
+	        		)
+	        	)
+	        )),
+	        path(segment("ingest").slash("udp"), () -> timed("ingest/udp", () ->
+	        	get(() ->
+	        		extractActorSystem(system -> {
+	        			CompletionStage<Object> stats = PatternsCS.ask(system.actorSelection("/user/" + UDP_LISTENER_NAME), new UdpTemperatureListener.GetStats(), 500);
+	        			return onComplete(stats, r -> r.isSuccess()
+	        					? complete(((UdpTemperatureListener.Stats) r.get()).getResponse())
+	        					: complete(StatusCodes.NOT_FOUND, "UDP ingestion is not running"));
+	        		})
+	        	)
+	        )),
+	        path(segment("temperature").slash("stats"), () -> timed("temperature/stats", () ->
+	        	get(() ->
+	        		parameter(StringUnmarshallers.STRING, "groupId", groupId -> {
+	        			CompletionStage<Object> stats = PatternsCS.ask(groups.getOrDefault(groupId, iotManager), new DeviceManager.ReadDeviceGroupStats(TraceContext.nextRequestId(), groupId), 500);
+	        			return onSuccess(stats, (o) -> o instanceof DeviceManager.DeviceGroupNotFound ? unknownGroup(groupId) : complete(groupId + "\n" + ((DeviceManager.DeviceGroupStats) o).getResponse()));
+	        		})
+	        	)
+	        )),
+	        path(segment("temperature").slash("top"), () -> timed("temperature/top", () ->
+	        	get(() ->
+	        		parameter(StringUnmarshallers.STRING, "groupId", groupId ->
+	        			parameterOptional(StringUnmarshallers.INTEGER, "n", n ->
+	        				parameterOptional(StringUnmarshallers.STRING, "order", order -> {
+	        					// hottest first unless order=asc
+	        					String direction = order.orElse("desc");
+	        					if (n.orElse(10) < 1 || !(direction.equals("desc") || direction.equals("asc"))) {
+	        						return complete(StatusCodes.BAD_REQUEST, "n must be positive and order asc or desc");
+	        					}
+	        					DeviceManager.ReadTopTemperatures read = new DeviceManager.ReadTopTemperatures(TraceContext.nextRequestId(), groupId, n.orElse(10), direction.equals("desc"));
+	        					CompletionStage<Object> top = PatternsCS.ask(groups.getOrDefault(groupId, iotManager), read, 500);
+	        					return onSuccess(top, (o) -> ranked(groupId, o));
+	        				})
+	        			)
+	        		)
+	        	)
+	        )),
+	        path(segment("temperature").slash("range"), () -> timed("temperature/range", () ->
+	        	get(() ->
+	        		parameter(StringUnmarshallers.STRING, "groupId", groupId ->
+	        			parameter(StringUnmarshallers.DOUBLE, "min", min ->
+	        				parameter(StringUnmarshallers.DOUBLE, "max", max -> {
+	        					// both bounds inclusive, coldest first
+	        					DeviceManager.ReadTemperatureRange read = new DeviceManager.ReadTemperatureRange(TraceContext.nextRequestId(), groupId, min, max);
+	        					CompletionStage<Object> range = PatternsCS.ask(groups.getOrDefault(groupId, iotManager), read, 500);
+	        					return onSuccess(range, (o) -> ranked(groupId, o));
+	        				})
+	        			)
+	        		)
+	        	)
+	        )),
+	        path(segment("temperature").slash("stream"), () -> timed("temperature/stream", () ->
+	        	get(() ->
+	        		parameter(StringUnmarshallers.STRING, "groupId", groupId -> {
+	        			CompletionStage<DeviceManager.DeviceGroupFeed> feed = PatternsCS.ask(groups.getOrDefault(groupId, iotManager), new DeviceManager.SubscribeDeviceGroupFeed(TraceContext.nextRequestId(), groupId), 500).thenApply(DeviceManager.DeviceGroupFeed.class::cast);
+	        			// a WebSocket upgrade gets text frames, any other request server-sent events
+	        			return onSuccess(feed, f -> route(
+	        					handleWebSocketMessages(TemperatureFeed.webSocket(f.updates)),
+	        					completeOK(TemperatureFeed.serverSentEvents(f.updates), EventStreamMarshalling.toEventStream())));
+	        		})
+	        	)
 	        )),
-	        path("temperature", () -> route(
+	        path(segment("temperature").slash("history"), () -> timed("temperature/history", () ->
+	        	get(() ->
+	        		parameter(StringUnmarshallers.STRING, "groupId", groupId ->
+	        			parameter(StringUnmarshallers.STRING, "deviceId", deviceId ->
+	        				parameterOptional(StringUnmarshallers.LONG, "from", from ->
+	        					parameterOptional(StringUnmarshallers.LONG, "to", to ->
+	        						parameterOptional(StringUnmarshallers.BOOLEAN, "stats", withStats -> {
+	        							// from and to are inclusive epoch millis, a missing bound leaves that side open
+	        							DeviceManager.ReadDeviceTemperatureHistory read = new DeviceManager.ReadDeviceTemperatureHistory(TraceContext.nextRequestId(), groupId, deviceId, from.orElse(Long.MIN_VALUE), to.orElse(Long.MAX_VALUE));
+	        							CompletionStage<DeviceManager.DeviceTemperatureHistory> history = PatternsCS.ask(groups.getOrDefault(groupId, iotManager), read, 500).thenApply(DeviceManager.DeviceTemperatureHistory.class::cast);
+	        							return onSuccess(history, (h) -> complete(h.deviceId + "\n" + h.getResponse(withStats.orElse(false))));
+	        						})
+	        					)
+	        				)
+	        			)
+	        		)
+	        	)
+	        )),
+	        path("temperature", () -> timed("temperature", () -> route(
 	        	get(() -> 
 	        		parameter(StringUnmarshallers.STRING, "groupId", groupId ->
 		            	parameter(StringUnmarshallers.STRING, "deviceId", deviceId -> {
-		            		log.info(String.format("requestDeviceTemperature: GroupId = %s DeviceId = %s", groupId, deviceId));
-		        			CompletionStage<DeviceManager.DeviceTemperature> list = PatternsCS.ask(iotManager, new DeviceManager.ReadDeviceTemperature(random.nextLong(), groupId, deviceId), 500).thenApply(DeviceManager.DeviceTemperature.class::cast);
-		        			return onSuccess(list, (dl) -> complete(dl.deviceId + " " + dl.temperature));
+		            		log.debug("requestDeviceTemperature: GroupId = {} DeviceId = {}", groupId, deviceId);
+		            		return withTrace(trace -> {
+		            			ActorRef group = groups.get(groupId);
+		            			if (group != null) {
+		            				trace.bypassed(TraceContext.DEVICE_GROUP);
+		            			} else {
+		            				trace.enqueued(TraceContext.IOT_MANAGER);
+		            			}
+		            			CompletionStage<DeviceManager.DeviceTemperature> list = PatternsCS.ask(group != null ? group : iotManager, new DeviceManager.ReadDeviceTemperature(trace, groupId, deviceId), 500)
+		            					.thenApply(o -> {
+		            						trace.completed();
+		            						return (DeviceManager.DeviceTemperature) o;
+		            					});
+		            			return onSuccess(list, (dl) -> traceHeader(trace, () -> complete(dl.deviceId + " " + dl.temperature)));
+		            		});
 		            	})
 	        	)),
 	        	get(() -> 
-	        		parameter(StringUnmarshallers.STRING, "groupId", groupId -> {
-	        			log.info(String.format("requestDeviceGroupTemperature: GroupId = %s ", groupId));
-	        			CompletionStage<DeviceManager.DeviceGroupTemperature> list = PatternsCS.ask(iotManager, new DeviceManager.ReadDeviceGroupTemperature(random.nextLong(), groupId), 500).thenApply(DeviceManager.DeviceGroupTemperature.class::cast);
-	        			return onSuccess(list, (dl) -> complete(dl.groupId + "\n" + dl.getResponse()));
-		            })
+	        		parameter(StringUnmarshallers.STRING, "groupId", groupId ->
+	        			parameterOptional(StringUnmarshallers.BOOLEAN, "fresh", fresh -> {
+		        			log.debug("requestDeviceGroupTemperature: GroupId = {} Fresh = {}", groupId, fresh.orElse(false));
+		        			// a fresh read asks every device and may take up to the 3 second collection timeout
+		        			long timeout = fresh.orElse(false) ? 4000 : 500;
+		        			long requestId = TraceContext.nextRequestId();
+		        			ActorRef group = groups.get(groupId);
+		        			// the group answers in its own protocol, converted here as the shard would
+		        			CompletionStage<DeviceManager.DeviceGroupTemperature> list = group != null
+		        					? PatternsCS.ask(group, new DeviceGroup.RequestAllTemperatures(requestId, fresh.orElse(false)), timeout)
+		        							.thenApply(o -> new DeviceManager.DeviceGroupTemperature(requestId, groupId, ((DeviceGroup.RespondAllTemperatures) o).readings))
+		        					: PatternsCS.ask(iotManager, new DeviceManager.ReadDeviceGroupTemperature(requestId, groupId, fresh.orElse(false)), timeout).thenApply(DeviceManager.DeviceGroupTemperature.class::cast);
+		        			return onSuccess(list, (dl) -> complete(dl.groupId + "\n" + dl.getResponse()));
+	        			})
+		            )
         		),
 	        	post(() -> 
         			parameter(StringUnmarshallers.STRING, "groupId", groupId ->
         				parameter(StringUnmarshallers.STRING, "deviceId", deviceId ->
         					parameter(StringUnmarshallers.DOUBLE, "temperature", temperature -> {
-        						iotManager.tell(new DeviceManager.RecordTemperature(random.nextLong(), groupId, deviceId, temperature), ActorRef.noSender());
-        						return complete("Recording completed");
+        						if (!Double.isFinite(temperature)) {
+        							return complete(StatusCodes.BAD_REQUEST, "temperature must be a finite number");
+        						}
+        						if (!acknowledgedWrites) {
+        							// nobody to take the group's reply, always through the shard
+        							return write(iotManager, new DeviceManager.RecordTemperature(TraceContext.nextRequestId(), groupId, deviceId, temperature),
+        									null, () -> complete("Recording completed"));
+        						}
+        						// a batch of one is answered by the group with the rows it applied
+        						DeviceManager.RecordTemperatures record = new DeviceManager.RecordTemperatures(TraceContext.nextRequestId(), groupId,
+        								new String[] { deviceId }, new double[] { temperature }, new long[] { System.currentTimeMillis() });
+        						return write(writeTarget(groups, iotManager, groupId), record, recorded -> ((DeviceManager.TemperaturesRecorded) recorded).accepted == 1
+        								? complete("Recording completed")
+        								: complete(StatusCodes.NOT_FOUND, "Unknown device " + groupId + "/" + deviceId), null);
         				}))
         		))
-	        )),
-	        path("devicegroup", () -> route(
+	        ))),
+	        path("devicegroup", () -> timed("devicegroup", () -> route(
 		        	get(() -> 
 		        		parameter(StringUnmarshallers.STRING, "groupId", groupId ->{
-		        			log.info(String.format("requestDeviceGroupDeviceList: GroupId = %s", groupId));
-		        			CompletionStage<DeviceManager.DeviceList> list = PatternsCS.ask(iotManager, new DeviceManager.RequestDeviceList(random.nextLong(), groupId), 500).thenApply(DeviceManager.DeviceList.class::cast);
+		        			log.debug("requestDeviceGroupDeviceList: GroupId = {}", groupId);
+		        			long requestId = TraceContext.nextRequestId();
+		        			ActorRef group = groups.get(groupId);
+		        			CompletionStage<DeviceManager.DeviceList> list = group != null
+		        					? PatternsCS.ask(group, new DeviceGroup.RequestDeviceList(requestId), 500)
+		        							.thenApply(o -> new DeviceList(requestId, groupId, ((DeviceGroup.RespondDeviceList) o).devices))
+		        					: PatternsCS.ask(iotManager, new DeviceManager.RequestDeviceList(requestId, groupId), 500).thenApply(DeviceManager.DeviceList.class::cast);
 		        			return onSuccess(list, (dl) -> complete(dl.getResponse()));
 			            })
 		        	)
-		        ))
+		        ))),
+	        path("metrics", () ->
+	        	get(() ->
+	        		extractActorSystem(system -> complete(IoTMetrics.get(system).scrape()))
+	        	)
+	        )
 	        );
 	  }
 
@@ -0,0 +1,70 @@
+package com.akkasamples.iottempmanager.main;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.akkasamples.iottempmanager.DeviceManager.TemperatureUpdate;
+
+import akka.NotUsed;
+import akka.http.javadsl.model.sse.ServerSentEvent;
+import akka.http.javadsl.model.ws.Message;
+import akka.http.javadsl.model.ws.TextMessage;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import scala.concurrent.duration.FiniteDuration;
+
+/**
+ * Shapes the live updates of a group for one subscriber. Updates are conflated to the
+ * latest per device while the subscriber is not pulling, so a slow client receives fewer,
+ * newer values and never backpressures the group feed it is attached to.
+ */
+public final class TemperatureFeed {
+	static final FiniteDuration KEEP_ALIVE = new FiniteDuration(15, TimeUnit.SECONDS);
+
+	private TemperatureFeed() {
+	}
+
+	/**
+	 * Latest update of every device that changed since the subscriber last pulled, in the
+	 * order the devices first changed.
+	 */
+	public static Source<Collection<TemperatureUpdate>, NotUsed> conflated(Source<TemperatureUpdate[], NotUsed> updates) {
+		return updates.conflateWithSeed(write -> {
+			Map<String, TemperatureUpdate> latest = new LinkedHashMap<>();
+			return put(latest, write);
+		}, TemperatureFeed::put).map(Map::values);
+	}
+
+	private static Map<String, TemperatureUpdate> put(Map<String, TemperatureUpdate> latest, TemperatureUpdate[] write) {
+		for (TemperatureUpdate update : write) {
+			latest.put(update.deviceId, update);
+		}
+		return latest;
+	}
+
+	public static Source<ServerSentEvent, NotUsed> serverSentEvents(Source<TemperatureUpdate[], NotUsed> updates) {
+		return conflated(updates)
+				.mapConcat(latest -> latest)
+				.map(update -> ServerSentEvent.create(format(update), "temperature"))
+				.keepAlive(KEEP_ALIVE, ServerSentEvent::heartbeat);
+	}
+
+	/**
+	 * Pushes the updates as text frames, frames sent by the client are ignored and closing
+	 * either side ends the subscription.
+	 */
+	public static Flow<Message, Message, NotUsed> webSocket(Source<TemperatureUpdate[], NotUsed> updates) {
+		Source<Message, NotUsed> frames = conflated(updates)
+				.mapConcat(latest -> latest)
+				.map(update -> (Message) TextMessage.create(format(update)));
+		return Flow.fromSinkAndSourceCoupled(Sink.ignore(), frames);
+	}
+
+	// Same "deviceId temperature" shape as GET /temperature, plus the reading timestamp
+	static String format(TemperatureUpdate update) {
+		return update.deviceId + " " + update.temperature + " " + update.timestamp;
+	}
+}
@@ -0,0 +1,110 @@
+package com.akkasamples.iottempmanager.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.typesafe.config.Config;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import scala.Option;
+
+/**
+ * Mailbox that counts the messages queued for all actors of a tier into
+ * {@link IoTMetrics#mailboxDepth(String)}. The queue itself comes from the mailbox type
+ * named by underlying-mailbox-type, configured like:
+ *
+ * <pre>
+ * device {
+ *   mailbox-type = "com.akkasamples.iottempmanager.metrics.InstrumentedMailbox"
+ *   underlying-mailbox-type = "akka.dispatch.UnboundedMailbox"
+ *   tier = "device"
+ * }
+ * </pre>
+ *
+ * An underlying queue that folds some messages into ones already queued implements
+ * {@link FoldingQueue}, a folded message does not count.
+ */
+public class InstrumentedMailbox implements MailboxType {
+	private final MailboxType underlying;
+	private final String tier;
+
+	public InstrumentedMailbox(ActorSystem.Settings settings, Config config) throws ReflectiveOperationException {
+		this.tier = config.getString("tier");
+		this.underlying = (MailboxType) Class.forName(config.getString("underlying-mailbox-type"))
+				.getConstructor(ActorSystem.Settings.class, Config.class)
+				.newInstance(settings, config);
+	}
+
+	/**
+	 * A queue that may fold an enqueued message into one it already holds.
+	 */
+	public interface FoldingQueue extends MessageQueue {
+		/**
+		 * Enqueues the message, false when it was folded into a queued one.
+		 */
+		boolean add(ActorRef receiver, Envelope handle);
+	}
+
+	@Override
+	public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+		MessageQueue queue = underlying.create(owner, system);
+		return new CountingMessageQueue(queue, system.isDefined() ? IoTMetrics.get(system.get()).mailboxDepth(tier) : new LongAdder());
+	}
+
+	static final class CountingMessageQueue implements MessageQueue {
+		private final MessageQueue queue;
+		private final LongAdder depth;
+
+		CountingMessageQueue(MessageQueue queue, LongAdder depth) {
+			this.queue = queue;
+			this.depth = depth;
+		}
+
+		// counted first, so that a quick dequeue never takes the depth below zero
+		@Override
+		public void enqueue(ActorRef receiver, Envelope handle) {
+			depth.increment();
+			try {
+				if (queue instanceof FoldingQueue) {
+					if (!((FoldingQueue) queue).add(receiver, handle)) {
+						depth.decrement();
+					}
+				} else {
+					queue.enqueue(receiver, handle);
+				}
+			} catch (RuntimeException e) {
+				depth.decrement();
+				throw e;
+			}
+		}
+
+		@Override
+		public Envelope dequeue() {
+			Envelope envelope = queue.dequeue();
+			if (envelope != null) {
+				depth.decrement();
+			}
+			return envelope;
+		}
+
+		@Override
+		public int numberOfMessages() {
+			return queue.numberOfMessages();
+		}
+
+		@Override
+		public boolean hasMessages() {
+			return queue.hasMessages();
+		}
+
+		// whatever is left goes to dead letters
+		@Override
+		public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+			depth.add(-queue.numberOfMessages());
+			queue.cleanUp(owner, deadLetters);
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package com.akkasamples.iottempmanager.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+
+/**
+ * Instrumentation of the routes and actor tiers of one actor system, rendered by
+ * {@link #scrape()} in the Prometheus text format for GET /metrics.
+ *
+ * Everything recorded on the hot path is a LongAdder or an HdrHistogram Recorder found in a
+ * ConcurrentHashMap by a key the caller already holds, so recording takes no lock and
+ * allocates nothing once a key has been seen. Timing is skipped when iot.metrics.enabled is
+ * off, the counters keep counting.
+ */
+public final class IoTMetrics implements Extension {
+	public static final String IOT_MANAGER = "iot-manager";
+	public static final String DEVICE_MANAGER = "device-manager";
+	public static final String DEVICE_GROUP = "device-group";
+	public static final String DEVICE = "device";
+
+	static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999, 1.0 };
+
+	private static final Id ID = new Id();
+
+	private final boolean enabled;
+	private final ConcurrentMap<String, MessageLatencies> messages = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, LongAdder> mailboxDepths = new ConcurrentHashMap<>();
+	// route, then HTTP method
+	private final ConcurrentMap<String, ConcurrentMap<String, Latency>> routes = new ConcurrentHashMap<>();
+	// hop, then queue or handle
+	private final ConcurrentMap<String, ConcurrentMap<String, Latency>> hops = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, LongAdder> groupReadings = new ConcurrentHashMap<>();
+	private final LongAdder queries = new LongAdder();
+	private final LongAdder queryTimeouts = new LongAdder();
+	private final LongAdder partialResults = new LongAdder();
+
+	IoTMetrics(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public static IoTMetrics get(ActorSystem system) {
+		return ID.get(system);
+	}
+
+	static class Id extends AbstractExtensionId<IoTMetrics> implements ExtensionIdProvider {
+		@Override
+		public Id lookup() {
+			return ID;
+		}
+
+		@Override
+		public IoTMetrics createExtension(ExtendedActorSystem system) {
+			return new IoTMetrics(system.settings().config().getBoolean("iot.metrics.enabled"));
+		}
+	}
+
+	/**
+	 * Whether latencies are measured, callers skip reading the clock otherwise.
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Handling times of the messages of an actor tier, null when metrics are disabled.
+	 */
+	public MessageLatencies messageLatencies(String tier) {
+		return enabled ? messages.computeIfAbsent(tier, MessageLatencies::new) : null;
+	}
+
+	public LongAdder mailboxDepth(String tier) {
+		return mailboxDepths.computeIfAbsent(tier, t -> new LongAdder());
+	}
+
+	public Latency route(String route, String method) {
+		return latency(routes, route, method);
+	}
+
+	/**
+	 * Time traced requests spent queued for or handled by a hop, see TraceContext.
+	 */
+	public Latency hop(String hop, String phase) {
+		return latency(hops, hop, phase);
+	}
+
+	private static Latency latency(ConcurrentMap<String, ConcurrentMap<String, Latency>> latencies, String key, String subKey) {
+		ConcurrentMap<String, Latency> bySubKey = latencies.get(key);
+		if (bySubKey == null) {
+			bySubKey = latencies.computeIfAbsent(key, k -> new ConcurrentHashMap<>());
+		}
+		Latency latency = bySubKey.get(subKey);
+		if (latency == null) {
+			latency = bySubKey.computeIfAbsent(subKey, k -> new Latency());
+		}
+		return latency;
+	}
+
+	/**
+	 * Readings recorded by the group, the group holds on to the counter while it runs.
+	 */
+	public LongAdder groupReadings(String groupId) {
+		return groupReadings.computeIfAbsent(groupId, g -> new LongAdder());
+	}
+
+	public void removeGroup(String groupId, LongAdder readings) {
+		groupReadings.remove(groupId, readings);
+	}
+
+	public void queryCompleted(boolean timedOut, boolean partial) {
+		queries.increment();
+		if (timedOut) {
+			queryTimeouts.increment();
+		}
+		if (partial) {
+			partialResults.increment();
+		}
+	}
+
+	public String scrape() {
+		StringBuilder out = new StringBuilder(4096);
+		header(out, "iot_route_latency_seconds", "summary", "Time from a request entering a route until its response is ready.");
+		for (Map.Entry<String, ConcurrentMap<String, Latency>> route : new TreeMap<>(routes).entrySet()) {
+			for (Map.Entry<String, Latency> method : new TreeMap<>(route.getValue()).entrySet()) {
+				summary(out, "iot_route_latency_seconds", "route=\"" + escape(route.getKey()) + "\",method=\"" + escape(method.getKey()) + "\"", method.getValue().total());
+			}
+		}
+		header(out, "iot_hop_latency_seconds", "summary", "Time traced requests spent queued for and handled by each hop on the way to a Device.");
+		for (Map.Entry<String, ConcurrentMap<String, Latency>> hop : new TreeMap<>(hops).entrySet()) {
+			for (Map.Entry<String, Latency> phase : new TreeMap<>(hop.getValue()).entrySet()) {
+				summary(out, "iot_hop_latency_seconds", "hop=\"" + hop.getKey() + "\",phase=\"" + phase.getKey() + "\"", phase.getValue().total());
+			}
+		}
+		header(out, "iot_message_latency_seconds", "summary", "Time an actor spent handling a message, per actor tier and message type.");
+		for (MessageLatencies tier : new TreeMap<>(messages).values()) {
+			Map<String, Latency> byName = new TreeMap<>();
+			tier.byType.forEach((type, latency) -> byName.put(MessageLatencies.messageName(type), latency));
+			for (Map.Entry<String, Latency> message : byName.entrySet()) {
+				summary(out, "iot_message_latency_seconds", "tier=\"" + tier.tier + "\",message=\"" + message.getKey() + "\"", message.getValue().total());
+			}
+		}
+		header(out, "iot_mailbox_depth", "gauge", "Messages queued in the mailboxes of all actors of a tier.");
+		for (Map.Entry<String, LongAdder> tier : new TreeMap<>(mailboxDepths).entrySet()) {
+			sample(out, "iot_mailbox_depth", "tier=\"" + tier.getKey() + "\"", tier.getValue().sum());
+		}
+		header(out, "iot_group_queries_total", "counter", "Group temperature queries answered by a DeviceGroupQuery.");
+		sample(out, "iot_group_queries_total", null, queries.sum());
+		header(out, "iot_group_query_timeouts_total", "counter", "Group temperature queries that hit their collection timeout.");
+		sample(out, "iot_group_query_timeouts_total", null, queryTimeouts.sum());
+		header(out, "iot_group_query_partial_total", "counter", "Group temperature queries answered with a timed out or stopped device.");
+		sample(out, "iot_group_query_partial_total", null, partialResults.sum());
+		header(out, "iot_group_readings_total", "counter", "Readings recorded per group.");
+		for (Map.Entry<String, LongAdder> group : new TreeMap<>(groupReadings).entrySet()) {
+			sample(out, "iot_group_readings_total", "group=\"" + escape(group.getKey()) + "\"", group.getValue().sum());
+		}
+		return out.toString();
+	}
+
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder out, String name, String labels, double value) {
+		out.append(name);
+		if (labels != null) {
+			out.append('{').append(labels).append('}');
+		}
+		out.append(' ').append(value).append('\n');
+	}
+
+	// microseconds recorded, seconds exported
+	private static void summary(StringBuilder out, String name, String labels, Histogram histogram) {
+		for (double quantile : QUANTILES) {
+			sample(out, name, labels + ",quantile=\"" + quantile + "\"", histogram.getValueAtPercentile(quantile * 100.0) / 1e6);
+		}
+		long count = histogram.getTotalCount();
+		sample(out, name + "_sum", labels, count == 0 ? 0.0 : histogram.getMean() * count / 1e6);
+		sample(out, name + "_count", labels, count);
+	}
+
+	static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
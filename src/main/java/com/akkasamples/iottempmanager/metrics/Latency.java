@@ -0,0 +1,33 @@
+package com.akkasamples.iottempmanager.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Latency distribution in microseconds. Recording goes into an HdrHistogram Recorder, which
+ * is wait-free and does not allocate, and readers fold the recorded interval into a
+ * histogram of everything since start.
+ */
+public final class Latency {
+	// longer latencies are recorded as this
+	static final long MAX_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+	private final Recorder recorder = new Recorder(1, MAX_MICROS, 2);
+	private final Histogram total = new Histogram(1, MAX_MICROS, 2);
+	private Histogram interval;
+
+	public void recordNanos(long nanos) {
+		recorder.recordValue(Math.min(MAX_MICROS, Math.max(0L, nanos / 1000)));
+	}
+
+	/**
+	 * Everything recorded so far, the returned histogram is only valid until the next call.
+	 */
+	synchronized Histogram total() {
+		interval = recorder.getIntervalHistogram(interval);
+		total.add(interval);
+		return total;
+	}
+}
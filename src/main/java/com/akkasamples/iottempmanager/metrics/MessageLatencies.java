@@ -0,0 +1,30 @@
+package com.akkasamples.iottempmanager.metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Handling time of the messages of one actor tier, per message class.
+ */
+public final class MessageLatencies {
+	final String tier;
+	final ConcurrentMap<Class<?>, Latency> byType = new ConcurrentHashMap<>();
+
+	MessageLatencies(String tier) {
+		this.tier = tier;
+	}
+
+	public void record(Object message, long nanos) {
+		Latency latency = byType.get(message.getClass());
+		if (latency == null) {
+			latency = byType.computeIfAbsent(message.getClass(), type -> new Latency());
+		}
+		latency.recordNanos(nanos);
+	}
+
+	// DeviceManager$RecordTemperature becomes DeviceManager.RecordTemperature
+	static String messageName(Class<?> type) {
+		String name = type.getName();
+		return name.substring(name.lastIndexOf('.') + 1).replace('$', '.');
+	}
+}
@@ -0,0 +1,136 @@
+package com.akkasamples.iottempmanager;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.akkasamples.iottempmanager.DeviceGroup.TemperatureAvailable;
+import com.akkasamples.iottempmanager.DeviceGroup.TemperatureNotAvailable;
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+
+public class TestCompactDeviceGroup {
+	private static ActorSystem system;
+
+	@BeforeClass
+	public static void beforeTest() {
+		system = ActorSystem.create("test");
+	}
+
+	@AfterClass
+	public static void teardown() {
+		TestKit.shutdownActorSystem(system);
+		system = null;
+	}
+
+	private static ActorRef groupWith(TestKit probe, String... deviceIds) {
+		ActorRef group = system.actorOf(CompactDeviceGroup.props("group"));
+		for (String deviceId : deviceIds) {
+			group.tell(new DeviceManager.RequestRegisterDevice("group", deviceId), probe.getRef());
+			probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		}
+		return group;
+	}
+
+	@Test
+	public void testRegisterAndListDevices() {
+		TestKit probe = new TestKit(system);
+		ActorRef group = groupWith(probe, "device1", "device2", "device1");
+		group.tell(new DeviceManager.RequestRegisterDevice("group2", "device3"), probe.getRef());
+		probe.expectNoMessage();
+		group.tell(new DeviceGroup.RequestDeviceList(1L), probe.getRef());
+		DeviceGroup.RespondDeviceList list = probe.expectMsgClass(DeviceGroup.RespondDeviceList.class);
+		assertEquals(1L, list.requestId);
+		assertEquals(Stream.of("device1", "device2").collect(Collectors.toSet()), list.devices);
+	}
+
+	@Test
+	public void testRecordAndReadTemperature() {
+		TestKit probe = new TestKit(system);
+		ActorRef group = groupWith(probe, "device1", "device2");
+		group.tell(new DeviceManager.ReadDeviceTemperature(1L, "group", "device1"), probe.getRef());
+		assertEquals(Double.valueOf(-1.00), Double.valueOf(probe.expectMsgClass(DeviceManager.DeviceTemperature.class).temperature));
+
+		group.tell(new DeviceManager.RecordTemperature(2L, "group", "device1", 21.5, 10L), probe.getRef());
+		assertEquals(Double.valueOf(21.5), Double.valueOf(probe.expectMsgClass(DeviceManager.DeviceTemperature.class).temperature));
+		group.tell(new DeviceManager.RecordTemperatures(3L, "group", new String[] { "device2", "device3" }, new double[] { 18.0, 30.0 }, new long[] { 20L, 20L }), probe.getRef());
+		DeviceManager.TemperaturesRecorded recorded = probe.expectMsgClass(DeviceManager.TemperaturesRecorded.class);
+		assertEquals(1, recorded.accepted);
+		assertEquals(1, recorded.rejected);
+
+		group.tell(new DeviceManager.ReadDeviceTemperature(4L, "group", "device2"), probe.getRef());
+		DeviceManager.DeviceTemperature read = probe.expectMsgClass(DeviceManager.DeviceTemperature.class);
+		assertEquals(4L, read.requestId);
+		assertEquals(Double.valueOf(18.0), Double.valueOf(read.temperature));
+		group.tell(new DeviceManager.ReadDeviceTemperature(5L, "group", "device3"), probe.getRef());
+		probe.expectNoMessage();
+	}
+
+	@Test
+	public void testAllTemperaturesFromTheTable() {
+		TestKit probe = new TestKit(system);
+		ActorRef group = groupWith(probe, "device1", "device2");
+		group.tell(new DeviceManager.RecordTemperatures(1L, "group", new String[] { "device1" }, new double[] { 10.0 }, new long[] { 1L }), probe.getRef());
+		probe.expectMsgClass(DeviceManager.TemperaturesRecorded.class);
+		group.tell(new DeviceGroup.RequestAllTemperatures(2L, true), probe.getRef());
+		DeviceGroup.RespondAllTemperatures all = probe.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+		assertEquals(2L, all.requestId);
+		assertEquals(Double.valueOf(10.0), ((TemperatureAvailable) all.readings.get("device1")).temperature);
+		assertEquals(TemperatureNotAvailable.class, all.readings.get("device2").getClass());
+
+		group.tell(new DeviceManager.ReadDeviceGroupStats(3L, "group"), probe.getRef());
+		DeviceManager.DeviceGroupStats stats = probe.expectMsgClass(DeviceManager.DeviceGroupStats.class);
+		assertEquals(2, stats.devices);
+		assertEquals(1, stats.readings);
+		assertEquals(0, stats.running);
+	}
+
+	@Test
+	public void testHistoryIsTheLatestReading() {
+		TestKit probe = new TestKit(system);
+		ActorRef group = groupWith(probe, "device1");
+		group.tell(new DeviceManager.RecordTemperatures(1L, "group", new String[] { "device1", "device1" }, new double[] { 10.0, 11.0 }, new long[] { 5L, 6L }), probe.getRef());
+		probe.expectMsgClass(DeviceManager.TemperaturesRecorded.class);
+		group.tell(new DeviceManager.ReadDeviceTemperatureHistory(2L, "group", "device1", 0L, 10L), probe.getRef());
+		DeviceManager.DeviceTemperatureHistory history = probe.expectMsgClass(DeviceManager.DeviceTemperatureHistory.class);
+		assertArrayEquals(new long[] { 6L }, history.timestamps);
+		group.tell(new DeviceManager.ReadDeviceTemperatureHistory(3L, "group", "device1", 0L, 5L), probe.getRef());
+		assertEquals(0, probe.expectMsgClass(DeviceManager.DeviceTemperatureHistory.class).timestamps.length);
+	}
+
+	@Test
+	public void testSelectedByConfiguration() {
+		ActorSystem compact = ActorSystem.create("compact", ConfigFactory.parseString("iot.device-group.mode = compact").withFallback(ConfigFactory.load()));
+		try {
+			TestKit probe = new TestKit(compact);
+			ActorRef iotManager = compact.actorOf(IoTManager.props());
+			iotManager.tell(new DeviceManager.RequestRegisterDevice("group", "device1"), probe.getRef());
+			probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+			iotManager.tell(new DeviceManager.RecordTemperature(1L, "group", "device1", 19.0, 1L), probe.getRef());
+			probe.expectNoMessage();
+			TraceContext trace = TraceContext.traced();
+			trace.enqueued(TraceContext.IOT_MANAGER);
+			iotManager.tell(new DeviceManager.ReadDeviceTemperature(trace, "group", "device1"), probe.getRef());
+			assertEquals(Double.valueOf(19.0), Double.valueOf(probe.expectMsgClass(DeviceManager.DeviceTemperature.class).temperature));
+			trace.completed();
+			assertTrue(trace.isComplete());
+			iotManager.tell(new DeviceManager.ReadDeviceGroupStats(2L, "group"), probe.getRef());
+			DeviceManager.DeviceGroupStats stats = probe.expectMsgClass(DeviceManager.DeviceGroupStats.class);
+			// a DeviceGroup would run the device since its registration
+			assertEquals(0, stats.running);
+			assertEquals(1, stats.readings);
+		} finally {
+			TestKit.shutdownActorSystem(compact);
+		}
+	}
+}
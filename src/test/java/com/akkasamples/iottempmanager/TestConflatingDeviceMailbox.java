@@ -0,0 +1,84 @@
+package com.akkasamples.iottempmanager;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Optional;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.akkasamples.iottempmanager.metrics.IoTMetrics;
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.testkit.javadsl.TestKit;
+
+public class TestConflatingDeviceMailbox {
+	private static ActorSystem system;
+
+	@BeforeClass
+	public static void beforeTest() {
+		system = ActorSystem.create("conflating", ConfigFactory.parseString(
+				"iot.mailbox.device.underlying-mailbox-type = \"com.akkasamples.iottempmanager.ConflatingDeviceMailbox\"\n"
+				+ "iot.device.history-size = 3").withFallback(ConfigFactory.load()));
+	}
+
+	@AfterClass
+	public static void teardown() {
+		TestKit.shutdownActorSystem(system);
+		system = null;
+	}
+
+	@Test
+	public void testWritesFoldIntoTheLastQueuedWrite() {
+		TestKit probe = new TestKit(system);
+		ConflatingDeviceMailbox.ConflatingQueue queue = new ConflatingDeviceMailbox.ConflatingQueue(3);
+		assertTrue(queue.add(null, new Envelope(new Device.RecordTemperature(1L, 1.0, 1000L), probe.getRef())));
+		assertFalse(queue.add(null, new Envelope(new Device.RecordTemperatures(2L, new double[] { 2.0, 3.0 }, new long[] { 2000L, 3000L }), probe.getRef())));
+		assertFalse(queue.add(null, new Envelope(new Device.RecordTemperature(4L, 4.0, 4000L), probe.getRef())));
+		assertTrue(queue.add(null, new Envelope(new Device.ReadTemperature(5L), probe.getRef())));
+		// behind the read, not folded into the writes before it
+		assertTrue(queue.add(null, new Envelope(new Device.RecordTemperature(6L, 6.0, 6000L), probe.getRef())));
+		assertEquals(3, queue.numberOfMessages());
+
+		Device.ConflatedTemperatures folded = (Device.ConflatedTemperatures) queue.dequeue().message();
+		assertEquals(3, folded.writes);
+		assertEquals(4.0, folded.latestTemperature, 0.0);
+		assertEquals(2, folded.acks.size());
+		assertArrayEquals(new long[] { 2000L, 3000L, 4000L }, folded.readings.range(0L, Long.MIN_VALUE, Long.MAX_VALUE).timestamps);
+		assertEquals(Device.ReadTemperature.class, queue.dequeue().message().getClass());
+		assertEquals(Device.RecordTemperature.class, queue.dequeue().message().getClass());
+		assertNull(queue.dequeue());
+		assertFalse(queue.hasMessages());
+	}
+
+	@Test
+	public void testEveryFoldedWriteIsAcknowledged() {
+		TestKit probe = new TestKit(system);
+		ActorRef deviceActor = system.actorOf(Device.props("group", "device", 3));
+		for (int i = 1; i <= 100; i++) {
+			deviceActor.tell(new Device.RecordTemperature(i, i * 1.0, i * 1000L), probe.getRef());
+		}
+		deviceActor.tell(new Device.ReadTemperature(101L), probe.getRef());
+		long acknowledged = 0;
+		for (int i = 1; i <= 100; i++) {
+			Device.TemperatureRecorded recorded = probe.expectMsgClass(Device.TemperatureRecorded.class);
+			assertEquals(i, recorded.requestId);
+			acknowledged++;
+		}
+		assertEquals(100, acknowledged);
+		Device.RespondTemperature read = probe.expectMsgClass(Device.RespondTemperature.class);
+		assertEquals(Optional.of(100.0), read.temperature);
+		deviceActor.tell(new Device.ReadTemperatureHistory(102L, Long.MIN_VALUE, Long.MAX_VALUE), probe.getRef());
+		assertArrayEquals(new long[] { 98000L, 99000L, 100000L }, probe.expectMsgClass(Device.RespondTemperatureHistory.class).timestamps);
+		// folded writes leave the mailbox depth of the tier at zero
+		assertEquals(0L, IoTMetrics.get(system).mailboxDepth(IoTMetrics.DEVICE).sum());
+	}
+}
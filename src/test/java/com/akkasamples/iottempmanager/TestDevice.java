@@ -1,5 +1,6 @@
 package com.akkasamples.iottempmanager;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 import java.util.Optional;
@@ -60,4 +61,45 @@ public class TestDevice {
 		assertEquals(Double.valueOf(1.00), responseTemp.temperature.orElse(-1.00));
 	}
 
+	@Test
+	public void testReadTemperatureHistoryRange() {
+		TestKit probe = new TestKit(system);
+		ActorRef deviceActor = system.actorOf(Device.props("group", "device", 8));
+		for (int i = 1; i <= 5; i++) {
+			deviceActor.tell(new Device.RecordTemperature(i, i * 1.0, i * 1000L), probe.getRef());
+			probe.expectMsgClass(Device.TemperatureRecorded.class);
+		}
+		deviceActor.tell(new Device.ReadTemperatureHistory(42L, 2000L, 4000L), probe.getRef());
+		Device.RespondTemperatureHistory response = probe.expectMsgClass(Device.RespondTemperatureHistory.class);
+		assertEquals(42L, response.requestId);
+		assertArrayEquals(new long[] { 2000L, 3000L, 4000L }, response.timestamps);
+		assertArrayEquals(new double[] { 2.0, 3.0, 4.0 }, response.temperatures, 0.0);
+	}
+
+	@Test
+	public void testTemperatureHistoryKeepsLatestSamples() {
+		TestKit probe = new TestKit(system);
+		ActorRef deviceActor = system.actorOf(Device.props("group", "device", 3));
+		for (int i = 1; i <= 5; i++) {
+			deviceActor.tell(new Device.RecordTemperature(i, i * 1.0, i * 1000L), probe.getRef());
+			probe.expectMsgClass(Device.TemperatureRecorded.class);
+		}
+		deviceActor.tell(new Device.ReadTemperatureHistory(42L, Long.MIN_VALUE, Long.MAX_VALUE), probe.getRef());
+		Device.RespondTemperatureHistory response = probe.expectMsgClass(Device.RespondTemperatureHistory.class);
+		assertArrayEquals(new long[] { 3000L, 4000L, 5000L }, response.timestamps);
+		assertArrayEquals(new double[] { 3.0, 4.0, 5.0 }, response.temperatures, 0.0);
+	}
+
+	@Test
+	public void testRecordTemperaturesIsNotAnswered() {
+		TestKit probe = new TestKit(system);
+		ActorRef deviceActor = system.actorOf(Device.props("group", "device", 8));
+		deviceActor.tell(new Device.RecordTemperatures(1L, new double[] { 1.0, 2.0 }, new long[] { 1000L, 2000L }), probe.getRef());
+		probe.expectNoMessage();
+		deviceActor.tell(new Device.ReadTemperature(42L), probe.getRef());
+		assertEquals(Double.valueOf(2.0), probe.expectMsgClass(Device.RespondTemperature.class).temperature.orElse(-1.00));
+		deviceActor.tell(new Device.ReadTemperatureHistory(43L, Long.MIN_VALUE, Long.MAX_VALUE), probe.getRef());
+		assertArrayEquals(new long[] { 1000L, 2000L }, probe.expectMsgClass(Device.RespondTemperatureHistory.class).timestamps);
+	}
+
 }
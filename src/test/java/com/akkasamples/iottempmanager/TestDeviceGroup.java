@@ -1,7 +1,10 @@
 package com.akkasamples.iottempmanager;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -11,9 +14,12 @@ import org.junit.Test;
 
 import com.akkasamples.iottempmanager.DeviceGroup.TemperatureAvailable;
 import com.akkasamples.iottempmanager.DeviceGroup.TemperatureNotAvailable;
+import com.typesafe.config.ConfigFactory;
 
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
+import akka.stream.ActorMaterializer;
+import akka.stream.javadsl.Sink;
 import akka.testkit.javadsl.TestKit;
 
 public class TestDeviceGroup {
@@ -175,7 +181,172 @@ public class TestDeviceGroup {
 		assertEquals(((TemperatureAvailable)t.readings.get("device1")).temperature, Double.valueOf(10.00));
 		assertEquals(TemperatureNotAvailable.class, t.readings.get("device2").getClass());
 	}
+
+	@Test
+	public void testRecordDeviceTemperatures() {
+		TestKit probe = new TestKit(system);
+		ActorRef deviceGroupActor = system.actorOf(DeviceGroup.props("group"));
+		deviceGroupActor.tell(new DeviceManager.RequestRegisterDevice("group", "device1"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		deviceGroupActor.tell(new DeviceManager.RequestRegisterDevice("group", "device2"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+		deviceGroupActor.tell(new DeviceManager.RecordTemperatures(10L, "group",
+				new String[] { "device1", "device3", "device2" },
+				new double[] { 1.00, 3.00, 2.00 },
+				new long[] { 1L, 3L, 2L }), probe.getRef());
+		DeviceManager.TemperaturesRecorded recorded = probe.expectMsgClass(DeviceManager.TemperaturesRecorded.class);
+		assertEquals(10L, recorded.requestId);
+		assertEquals(2, recorded.accepted);
+		assertEquals(1, recorded.rejected);
+
+		deviceGroupActor.tell(new DeviceManager.ReadDeviceTemperature(11L, "group", "device2"), probe.getRef());
+		DeviceManager.DeviceTemperature temp = probe.expectMsgClass(DeviceManager.DeviceTemperature.class);
+		assertEquals(Double.valueOf(2.00), Double.valueOf(temp.temperature));
+	}
+
+	@Test
+	public void testReadFreshDeviceGroupTemperatures() {
+		TestKit probe = new TestKit(system);
+		ActorRef deviceGroupActor = system.actorOf(DeviceGroup.props("group"));
+		deviceGroupActor.tell(new DeviceManager.RequestRegisterDevice("group", "device1"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		deviceGroupActor.tell(new DeviceManager.RequestRegisterDevice("group", "device2"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		deviceGroupActor.tell(new DeviceManager.RecordTemperature(10L, "group", "device1", 10.00), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceTemperature.class);
+
+		deviceGroupActor.tell(new DeviceGroup.RequestAllTemperatures(11L, true), probe.getRef());
+		DeviceGroup.RespondAllTemperatures t = probe.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+		assertEquals(11L, t.requestId);
+		assertEquals(((TemperatureAvailable)t.readings.get("device1")).temperature, Double.valueOf(10.00));
+		assertEquals(TemperatureNotAvailable.class, t.readings.get("device2").getClass());
+	}
+
+	@Test
+	public void testReadDeviceGroupStats() {
+		TestKit probe = new TestKit(system);
+		ActorRef deviceGroupActor = system.actorOf(DeviceGroup.props("group"));
+		for (String deviceId : new String[] { "device1", "device2", "device3" }) {
+			deviceGroupActor.tell(new DeviceManager.RequestRegisterDevice("group", deviceId), probe.getRef());
+			probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		}
+		deviceGroupActor.tell(new DeviceManager.RecordTemperatures(10L, "group",
+				new String[] { "device1", "device2", "device1" },
+				new double[] { 1.00, 4.00, 2.00 },
+				new long[] { 1L, 2L, 3L }), probe.getRef());
+		probe.expectMsgClass(DeviceManager.TemperaturesRecorded.class);
+
+		deviceGroupActor.tell(new DeviceManager.ReadDeviceGroupStats(11L, "group"), probe.getRef());
+		DeviceManager.DeviceGroupStats stats = probe.expectMsgClass(DeviceManager.DeviceGroupStats.class);
+		assertEquals(11L, stats.requestId);
+		assertEquals(3, stats.devices);
+		assertEquals(2, stats.readings);
+		assertEquals(1, stats.withoutReading);
+		assertEquals(Double.valueOf(2.00), Double.valueOf(stats.min));
+		assertEquals(Double.valueOf(4.00), Double.valueOf(stats.max));
+		assertEquals(Double.valueOf(3.00), Double.valueOf(stats.mean));
+
+		// not finite readings are rejected and leave the aggregates alone
+		deviceGroupActor.tell(new DeviceManager.RecordTemperatures(12L, "group",
+				new String[] { "device3", "device3", "device1" },
+				new double[] { Double.NaN, Double.NaN, Double.POSITIVE_INFINITY },
+				new long[] { 4L, 5L, 6L }), probe.getRef());
+		assertEquals(3, probe.expectMsgClass(DeviceManager.TemperaturesRecorded.class).rejected);
+		deviceGroupActor.tell(new DeviceManager.ReadDeviceGroupStats(13L, "group"), probe.getRef());
+		stats = probe.expectMsgClass(DeviceManager.DeviceGroupStats.class);
+		assertEquals(2, stats.readings);
+		assertEquals(1, stats.withoutReading);
+		assertEquals(Double.valueOf(3.00), Double.valueOf(stats.mean));
+	}
+
+	@Test
+	public void testTemperatureFeed() throws Exception {
+		TestKit probe = new TestKit(system);
+		ActorRef deviceGroupActor = system.actorOf(DeviceGroup.props("group"));
+		deviceGroupActor.tell(new DeviceManager.RequestRegisterDevice("group", "device1"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		deviceGroupActor.tell(new DeviceManager.SubscribeDeviceGroupFeed(10L, "group"), probe.getRef());
+		DeviceManager.DeviceGroupFeed feed = probe.expectMsgClass(DeviceManager.DeviceGroupFeed.class);
+		assertEquals(10L, feed.requestId);
+
+		CompletableFuture<DeviceManager.TemperatureUpdate[]> first = feed.updates.runWith(Sink.head(), ActorMaterializer.create(system)).toCompletableFuture();
+		// the subscriber attaches asynchronously and only sees updates recorded after that
+		for (long i = 0; !first.isDone() && i < 20; i++) {
+			deviceGroupActor.tell(new DeviceManager.RecordTemperatures(i, "group", new String[] { "device1" }, new double[] { 21.5 }, new long[] { i }), probe.getRef());
+			probe.expectMsgClass(DeviceManager.TemperaturesRecorded.class);
+			Thread.sleep(50);
+		}
+		DeviceManager.TemperatureUpdate[] write = first.get(3, TimeUnit.SECONDS);
+		assertEquals(1, write.length);
+		assertEquals("device1", write[0].deviceId);
+		assertEquals(Double.valueOf(21.5), Double.valueOf(write[0].temperature));
+	}
+
+	@Test
+	public void testIdleDevicePassivatesAndRevives() {
+		ActorSystem passivating = ActorSystem.create("passivating", ConfigFactory.parseString("iot.device.passivate-after = 200ms").withFallback(ConfigFactory.load()));
+		try {
+			TestKit probe = new TestKit(passivating);
+			ActorRef deviceGroupActor = passivating.actorOf(DeviceGroup.props("group"));
+			deviceGroupActor.tell(new DeviceManager.RequestRegisterDevice("group", "device1"), probe.getRef());
+			probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+			deviceGroupActor.tell(new DeviceManager.RecordTemperatures(1L, "group",
+					new String[] { "device1", "device1" }, new double[] { 20.0, 21.0 }, new long[] { 10L, 20L }), probe.getRef());
+			probe.expectMsgClass(DeviceManager.TemperaturesRecorded.class);
+
+			probe.awaitAssert(() -> {
+				deviceGroupActor.tell(new DeviceManager.ReadDeviceGroupStats(2L, "group"), probe.getRef());
+				DeviceManager.DeviceGroupStats stats = probe.expectMsgClass(DeviceManager.DeviceGroupStats.class);
+				assertEquals(1, stats.devices);
+				assertEquals(0, stats.running);
+				return null;
+			});
+
+			// the next message starts the device again with the history it handed off
+			deviceGroupActor.tell(new DeviceManager.ReadDeviceTemperatureHistory(3L, "group", "device1", 0L, Long.MAX_VALUE), probe.getRef());
+			DeviceManager.DeviceTemperatureHistory history = probe.expectMsgClass(DeviceManager.DeviceTemperatureHistory.class);
+			assertArrayEquals(new long[] { 10L, 20L }, history.timestamps);
+			deviceGroupActor.tell(new DeviceManager.ReadDeviceTemperature(4L, "group", "device1"), probe.getRef());
+			assertEquals(Double.valueOf(21.0), Double.valueOf(probe.expectMsgClass(DeviceManager.DeviceTemperature.class).temperature));
+			deviceGroupActor.tell(new DeviceManager.ReadDeviceGroupStats(5L, "group"), probe.getRef());
+			assertEquals(1, probe.expectMsgClass(DeviceManager.DeviceGroupStats.class).running);
+			// the history was trimmed while parked and grows back
+			deviceGroupActor.tell(new DeviceManager.RecordTemperatures(6L, "group",
+					new String[] { "device1" }, new double[] { 22.0 }, new long[] { 30L }), probe.getRef());
+			probe.expectMsgClass(DeviceManager.TemperaturesRecorded.class);
+			deviceGroupActor.tell(new DeviceManager.ReadDeviceTemperatureHistory(7L, "group", "device1", 0L, Long.MAX_VALUE), probe.getRef());
+			assertArrayEquals(new long[] { 10L, 20L, 30L }, probe.expectMsgClass(DeviceManager.DeviceTemperatureHistory.class).timestamps);
+		} finally {
+			TestKit.shutdownActorSystem(passivating);
+		}
+	}
 	
+	@Test
+	public void testTopAndRangeFromTheIndex() {
+		TestKit probe = new TestKit(system);
+		ActorRef deviceGroupActor = system.actorOf(DeviceGroup.props("group"));
+		for (String deviceId : new String[] { "device1", "device2", "device3", "device4" }) {
+			deviceGroupActor.tell(new DeviceManager.RequestRegisterDevice("group", deviceId), probe.getRef());
+			probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		}
+		deviceGroupActor.tell(new DeviceManager.RecordTemperatures(1L, "group",
+				new String[] { "device1", "device2", "device3" }, new double[] { 21.0, 18.0, 24.0 }, new long[] { 1L, 2L, 3L }), probe.getRef());
+		probe.expectMsgClass(DeviceManager.TemperaturesRecorded.class);
+
+		deviceGroupActor.tell(new DeviceManager.ReadTopTemperatures(2L, "group", 2, true), probe.getRef());
+		DeviceManager.RankedTemperatures hottest = probe.expectMsgClass(DeviceManager.RankedTemperatures.class);
+		assertArrayEquals(new String[] { "device3", "device1" }, hottest.deviceIds);
+		assertArrayEquals(new double[] { 24.0, 21.0 }, hottest.temperatures, 0.0);
+		// device4 has no reading and is left out
+		deviceGroupActor.tell(new DeviceManager.ReadTopTemperatures(3L, "group", 10, false), probe.getRef());
+		assertArrayEquals(new String[] { "device2", "device1", "device3" }, probe.expectMsgClass(DeviceManager.RankedTemperatures.class).deviceIds);
+		deviceGroupActor.tell(new DeviceManager.ReadTemperatureRange(4L, "group", 18.0, 21.0), probe.getRef());
+		DeviceManager.RankedTemperatures range = probe.expectMsgClass(DeviceManager.RankedTemperatures.class);
+		assertEquals(4L, range.requestId);
+		assertEquals("device2: 18.0\ndevice1: 21.0\n", range.getResponse());
+	}
+
 //	@Test
 //	public void testListActiveDevicesAfterOneShutsDown() {
 //		TestKit probe = new TestKit(system);
@@ -0,0 +1,118 @@
+package com.akkasamples.iottempmanager;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.akkasamples.iottempmanager.DeviceGroup.DeviceTerminated;
+import com.akkasamples.iottempmanager.DeviceGroup.DeviceTimedout;
+import com.akkasamples.iottempmanager.DeviceGroup.TemperatureAvailable;
+import com.akkasamples.iottempmanager.DeviceGroup.TemperatureNotAvailable;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import scala.concurrent.duration.FiniteDuration;
+
+public class TestDeviceGroupQuery {
+	private static ActorSystem system;
+
+	@BeforeClass
+	public static void beforeTest() {
+		system = ActorSystem.create("test");
+	}
+
+	@AfterClass
+	public static void teardown() {
+		TestKit.shutdownActorSystem(system);
+		system = null;
+	}
+
+	@Test
+	public void testCollectTemperatures() {
+		TestKit requester = new TestKit(system);
+		TestKit device1 = new TestKit(system);
+		TestKit device2 = new TestKit(system);
+		system.actorOf(DeviceGroupQuery.props(new ActorRef[] { device1.getRef(), device2.getRef() }, new String[] { "device1", "device2" },
+				42L, requester.getRef(), new FiniteDuration(3, TimeUnit.SECONDS)));
+
+		Device.ReadTemperature read1 = device1.expectMsgClass(Device.ReadTemperature.class);
+		Device.ReadTemperature read2 = device2.expectMsgClass(Device.ReadTemperature.class);
+		device2.reply(new Device.RespondTemperature(read2.requestId, Optional.empty()));
+		device1.reply(new Device.RespondTemperature(read1.requestId, Optional.of(1.00)));
+
+		DeviceGroup.RespondAllTemperatures response = requester.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+		assertEquals(42L, response.requestId);
+		assertEquals(2, response.readings.size());
+		assertEquals(Double.valueOf(1.00), ((TemperatureAvailable) response.readings.get("device1")).temperature);
+		assertEquals(TemperatureNotAvailable.class, response.readings.get("device2").getClass());
+	}
+
+	@Test
+	public void testIgnoreDuplicateAndForeignReplies() {
+		TestKit requester = new TestKit(system);
+		TestKit device1 = new TestKit(system);
+		TestKit device2 = new TestKit(system);
+		system.actorOf(DeviceGroupQuery.props(new ActorRef[] { device1.getRef(), device2.getRef() }, new String[] { "device1", "device2" },
+				42L, requester.getRef(), new FiniteDuration(3, TimeUnit.SECONDS)));
+
+		Device.ReadTemperature read1 = device1.expectMsgClass(Device.ReadTemperature.class);
+		Device.ReadTemperature read2 = device2.expectMsgClass(Device.ReadTemperature.class);
+		device1.reply(new Device.RespondTemperature(read1.requestId, Optional.of(1.00)));
+		device1.reply(new Device.RespondTemperature(read1.requestId, Optional.of(5.00)));
+		// device1 answering for the slot of device2 must not complete the query
+		device1.reply(new Device.RespondTemperature(read2.requestId, Optional.of(5.00)));
+		requester.expectNoMessage();
+
+		device2.reply(new Device.RespondTemperature(read2.requestId, Optional.of(2.00)));
+		DeviceGroup.RespondAllTemperatures response = requester.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+		assertEquals(Double.valueOf(1.00), ((TemperatureAvailable) response.readings.get("device1")).temperature);
+		assertEquals(Double.valueOf(2.00), ((TemperatureAvailable) response.readings.get("device2")).temperature);
+	}
+
+	@Test
+	public void testStoppedDevice() {
+		TestKit requester = new TestKit(system);
+		TestKit device1 = new TestKit(system);
+		TestKit device2 = new TestKit(system);
+		ActorRef query = system.actorOf(DeviceGroupQuery.props(new ActorRef[] { device1.getRef(), device2.getRef() }, new String[] { "device1", "device2" },
+				42L, requester.getRef(), new FiniteDuration(3, TimeUnit.SECONDS)));
+
+		Device.ReadTemperature read1 = device1.expectMsgClass(Device.ReadTemperature.class);
+		device1.reply(new Device.RespondTemperature(read1.requestId, Optional.of(1.00)));
+		query.tell(new DeviceGroupQuery.DeviceStopped(device2.getRef()), ActorRef.noSender());
+
+		DeviceGroup.RespondAllTemperatures response = requester.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+		assertEquals(TemperatureAvailable.class, response.readings.get("device1").getClass());
+		assertEquals(DeviceTerminated.class, response.readings.get("device2").getClass());
+	}
+
+	@Test
+	public void testTimeout() {
+		TestKit requester = new TestKit(system);
+		TestKit device1 = new TestKit(system);
+		TestKit device2 = new TestKit(system);
+		system.actorOf(DeviceGroupQuery.props(new ActorRef[] { device1.getRef(), device2.getRef() }, new String[] { "device1", "device2" },
+				42L, requester.getRef(), new FiniteDuration(200, TimeUnit.MILLISECONDS)));
+
+		Device.ReadTemperature read1 = device1.expectMsgClass(Device.ReadTemperature.class);
+		device1.reply(new Device.RespondTemperature(read1.requestId, Optional.of(1.00)));
+
+		DeviceGroup.RespondAllTemperatures response = requester.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+		assertEquals(TemperatureAvailable.class, response.readings.get("device1").getClass());
+		assertEquals(DeviceTimedout.class, response.readings.get("device2").getClass());
+	}
+
+	@Test
+	public void testEmptyGroup() {
+		TestKit requester = new TestKit(system);
+		system.actorOf(DeviceGroupQuery.props(new ActorRef[0], new String[0], 42L, requester.getRef(), new FiniteDuration(3, TimeUnit.SECONDS)));
+		DeviceGroup.RespondAllTemperatures response = requester.expectMsgClass(DeviceGroup.RespondAllTemperatures.class);
+		assertEquals(0, response.readings.size());
+	}
+}
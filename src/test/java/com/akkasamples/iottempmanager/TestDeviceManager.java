@@ -1,24 +1,37 @@
 package com.akkasamples.iottempmanager;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.util.HashSet;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import com.akkasamples.iottempmanager.DeviceGroup.TemperatureAvailable;
 import com.akkasamples.iottempmanager.DeviceGroup.TemperatureNotAvailable;
 
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
+import akka.actor.Status;
 import akka.testkit.javadsl.TestKit;
 
 public class TestDeviceManager {
 
 	private static ActorSystem system;
+
+	@Rule
+	public TemporaryFolder journalFolder = new TemporaryFolder();
 	
 	@BeforeClass
 	public static void beforeTest() {
@@ -110,6 +123,20 @@ public class TestDeviceManager {
 		probe.expectNoMessage();
 	}
 
+	@Test
+	public void testGroupReadsOfAnUnknownGroupAreAnswered() {
+		TestKit probe = new TestKit(system);
+		ActorRef deviceManagerActor = system.actorOf(DeviceManager.props());
+		deviceManagerActor.tell(new DeviceManager.ReadDeviceGroupStats(1L, "unknown"), probe.getRef());
+		assertEquals(1L, probe.expectMsgClass(DeviceManager.DeviceGroupNotFound.class).requestId);
+		deviceManagerActor.tell(new DeviceManager.ReadTopTemperatures(2L, "unknown", 10, true), probe.getRef());
+		assertEquals(2L, probe.expectMsgClass(DeviceManager.DeviceGroupNotFound.class).requestId);
+		deviceManagerActor.tell(new DeviceManager.ReadTemperatureRange(3L, "unknown", 0.0, 100.0), probe.getRef());
+		DeviceManager.DeviceGroupNotFound notFound = probe.expectMsgClass(DeviceManager.DeviceGroupNotFound.class);
+		assertEquals(3L, notFound.requestId);
+		assertEquals("unknown", notFound.groupId);
+	}
+
 	@Test
 	public void testReadValidEmptyDeviceTemperature() {
 		TestKit probe = new TestKit(system);
@@ -143,6 +170,42 @@ public class TestDeviceManager {
 	}
 	
 
+	@Test
+	public void testBatchedReadingsKeepTheirOrder() {
+		ActorSystem batching = ActorSystem.create("batching", ConfigFactory.parseString("iot.device-manager.batching.max-size = 2").withFallback(ConfigFactory.load()));
+		try {
+			TestKit probe = new TestKit(batching);
+			ActorRef iotManager = batching.actorOf(IoTManager.props());
+			iotManager.tell(new DeviceManager.RequestRegisterDevice("group", "device1"), probe.getRef());
+			probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+			iotManager.tell(new DeviceManager.RequestRegisterDevice("group", "device2"), probe.getRef());
+			probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+			// a full batch, then one the read sends ahead of itself
+			for (int i = 1; i <= 3; i++) {
+				iotManager.tell(new DeviceManager.RecordTemperature(i, "group", "device1", i * 1.0, i * 1000L), probe.getRef());
+			}
+			iotManager.tell(new DeviceManager.RecordTemperature(4L, "group", "device2", 4.0, 4000L), probe.getRef());
+			iotManager.tell(new DeviceManager.ReadDeviceTemperatureHistory(5L, "group", "device1", Long.MIN_VALUE, Long.MAX_VALUE), probe.getRef());
+			DeviceManager.DeviceTemperatureHistory history = probe.expectMsgClass(DeviceManager.DeviceTemperatureHistory.class);
+			assertEquals(3, history.timestamps.length);
+			assertEquals(3000L, history.timestamps[2]);
+			iotManager.tell(new DeviceManager.ReadDeviceTemperature(6L, "group", "device2"), probe.getRef());
+			assertEquals(Double.valueOf(4.0), Double.valueOf(probe.expectMsgClass(DeviceManager.DeviceTemperature.class).temperature));
+
+			// a batch short of max-size goes out with the flush the shard sent itself, asked
+			// of the group directly nothing else flushes it
+			iotManager.tell(new DeviceManager.RecordTemperature(7L, "group", "device2", 7.0, 7000L), probe.getRef());
+			ActorRef group = GroupRegistry.get(batching).groupsOf(iotManager).get("group");
+			probe.awaitAssert(() -> {
+				group.tell(new DeviceManager.ReadDeviceGroupStats(8L, "group"), probe.getRef());
+				assertEquals(Double.valueOf(7.0), Double.valueOf(probe.expectMsgClass(DeviceManager.DeviceGroupStats.class).max));
+				return null;
+			});
+		} finally {
+			TestKit.shutdownActorSystem(batching);
+		}
+	}
+
 	@Test
 	public void testReadDeviceGroupTemperatures() {
 		TestKit probe = new TestKit(system);
@@ -171,4 +234,102 @@ public class TestDeviceManager {
 		assertEquals(((TemperatureAvailable)t.readings.get("device1")).temperature, Double.valueOf(10.00));
 		assertEquals(TemperatureNotAvailable.class, t.readings.get("device2").getClass());
 	}
+
+	@Test
+	public void testManyReadsInFlight() {
+		TestKit probe = new TestKit(system);
+		ActorRef deviceManagerActor = system.actorOf(DeviceManager.props());
+		int devices = 20;
+		for (int d = 0; d < devices; d++) {
+			deviceManagerActor.tell(new DeviceManager.RequestRegisterDevice("group", "device" + d), probe.getRef());
+			probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		}
+
+		int reads = 1000;
+		for (long i = 0; i < reads; i++) {
+			deviceManagerActor.tell(new DeviceManager.ReadDeviceTemperature(i, "group", "device" + (i % devices)), probe.getRef());
+		}
+		// the devices are local and idle, none of the reads may time out while the others wait
+		Set<Long> requestIds = new HashSet<>();
+		int failures = 0;
+		for (int i = 0; i < reads; i++) {
+			Object reply = probe.expectMsgAnyClassOf(DeviceManager.DeviceTemperature.class, Status.Failure.class);
+			if (reply instanceof DeviceManager.DeviceTemperature) {
+				long requestId = ((DeviceManager.DeviceTemperature) reply).requestId;
+				assertTrue(requestId >= 0 && requestId < reads);
+				requestIds.add(requestId);
+			} else {
+				failures++;
+			}
+		}
+		assertEquals(0, failures);
+		assertEquals(reads, requestIds.size());
+	}
+
+	private Config journaled() {
+		return ConfigFactory.parseString("iot.journal.enabled = on")
+				.withValue("iot.journal.directory", ConfigValueFactory.fromAnyRef(journalFolder.getRoot().getAbsolutePath()))
+				.withFallback(ConfigFactory.load());
+	}
+
+	@Test
+	public void testRecoverFromJournal() {
+		Config config = journaled();
+		ActorSystem first = ActorSystem.create("journaled", config);
+		TestKit probe = new TestKit(first);
+		ActorRef deviceManagerActor = first.actorOf(DeviceManager.props(), "device-manager-0");
+		deviceManagerActor.tell(new DeviceManager.RequestRegisterDevice("group", "device1"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		deviceManagerActor.tell(new DeviceManager.RequestRegisterDevice("group", "device2"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		deviceManagerActor.tell(new DeviceManager.RecordTemperatures(1L, "group", new String[] { "device1", "device2" }, new double[] { 1.0, 2.0 }, new long[] { 1000L, 1000L }), probe.getRef());
+		probe.expectMsgClass(DeviceManager.TemperaturesRecorded.class);
+		deviceManagerActor.tell(new DeviceManager.RecordTemperatures(2L, "group", new String[] { "device2" }, new double[] { 3.0 }, new long[] { 2000L }), probe.getRef());
+		probe.expectMsgClass(DeviceManager.TemperaturesRecorded.class);
+		TestKit.shutdownActorSystem(first);
+
+		ActorSystem second = ActorSystem.create("journaled", config);
+		try {
+			probe = new TestKit(second);
+			deviceManagerActor = second.actorOf(DeviceManager.props(), "device-manager-0");
+			deviceManagerActor.tell(new DeviceManager.ReadDeviceGroupTemperature(3L, "group"), probe.getRef());
+			DeviceManager.DeviceGroupTemperature response = probe.expectMsgClass(DeviceManager.DeviceGroupTemperature.class);
+			assertEquals(2, response.readings.size());
+			assertEquals(Double.valueOf(1.0), ((TemperatureAvailable) response.readings.get("device1")).temperature);
+			assertEquals(Double.valueOf(3.0), ((TemperatureAvailable) response.readings.get("device2")).temperature);
+		} finally {
+			TestKit.shutdownActorSystem(second);
+		}
+	}
+
+	@Test
+	public void testRecoverFromSnapshot() {
+		Config config = journaled();
+		ActorSystem first = ActorSystem.create("journaled", config);
+		TestKit probe = new TestKit(first);
+		ActorRef deviceManagerActor = first.actorOf(DeviceManager.props(), "device-manager-0");
+		deviceManagerActor.tell(new DeviceManager.RequestRegisterDevice("group", "device1"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		deviceManagerActor.tell(new DeviceManager.RequestRegisterDevice("group", "device2"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		deviceManagerActor.tell(new DeviceManager.RecordTemperatures(1L, "group", new String[] { "device1" }, new double[] { 1.0 }, new long[] { 1000L }), probe.getRef());
+		probe.expectMsgClass(DeviceManager.TemperaturesRecorded.class);
+		deviceManagerActor.tell(new DeviceManager.TakeSnapshot(), probe.getRef());
+		assertEquals(2, probe.expectMsgClass(DeviceManager.SnapshotTaken.class).devices);
+		deviceManagerActor.tell(new DeviceManager.RecordTemperatures(2L, "group", new String[] { "device2" }, new double[] { 2.0 }, new long[] { 2000L }), probe.getRef());
+		probe.expectMsgClass(DeviceManager.TemperaturesRecorded.class);
+		TestKit.shutdownActorSystem(first);
+
+		ActorSystem second = ActorSystem.create("journaled", config);
+		try {
+			probe = new TestKit(second);
+			deviceManagerActor = second.actorOf(DeviceManager.props(), "device-manager-0");
+			deviceManagerActor.tell(new DeviceManager.ReadDeviceGroupTemperature(3L, "group"), probe.getRef());
+			DeviceManager.DeviceGroupTemperature response = probe.expectMsgClass(DeviceManager.DeviceGroupTemperature.class);
+			assertEquals(Double.valueOf(1.0), ((TemperatureAvailable) response.readings.get("device1")).temperature);
+			assertEquals(Double.valueOf(2.0), ((TemperatureAvailable) response.readings.get("device2")).temperature);
+		} finally {
+			TestKit.shutdownActorSystem(second);
+		}
+	}
 }
@@ -0,0 +1,187 @@
+package com.akkasamples.iottempmanager;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class TestDeviceTable {
+
+	@Test
+	public void testAddAndIndexOf() {
+		DeviceTable table = new DeviceTable(2);
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, table.add("device" + i));
+		}
+		assertEquals(1000, table.size());
+		assertEquals(17, table.add("device17"));
+		assertEquals(1000, table.size());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals("device" + i, table.deviceId(table.indexOf("device" + i)));
+		}
+		assertEquals(-1, table.indexOf("unknown"));
+		assertFalse(table.hasReading(0));
+	}
+
+	@Test
+	public void testRemoveKeepsIndexConsistent() {
+		DeviceTable table = new DeviceTable();
+		Map<String, Double> expected = new HashMap<>();
+		Random random = new Random(42);
+		for (int i = 0; i < 20000; i++) {
+			String deviceId = "device" + random.nextInt(500);
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(deviceId) != null, table.remove(deviceId));
+			} else {
+				double temperature = random.nextInt(100);
+				table.record(table.add(deviceId), temperature, i);
+				expected.put(deviceId, temperature);
+			}
+		}
+		assertEquals(expected.size(), table.size());
+		for (Map.Entry<String, Double> device : expected.entrySet()) {
+			int row = table.indexOf(device.getKey());
+			assertTrue(row >= 0);
+			assertEquals(device.getValue(), table.temperature(row), 0.0);
+		}
+		assertEquals(expected.values().stream().mapToDouble(Double::doubleValue).min().getAsDouble(), table.min(), 0.0);
+		assertEquals(expected.values().stream().mapToDouble(Double::doubleValue).max().getAsDouble(), table.max(), 0.0);
+		assertEquals(expected.values().stream().mapToDouble(Double::doubleValue).average().getAsDouble(), table.mean(), 1e-9);
+	}
+
+	@Test
+	public void testAggregates() {
+		DeviceTable table = new DeviceTable();
+		int device1 = table.add("device1");
+		int device2 = table.add("device2");
+		table.add("device3");
+		assertTrue(Double.isNaN(table.min()));
+		assertTrue(Double.isNaN(table.mean()));
+		assertEquals(3, table.withoutReading());
+
+		table.record(device1, 10.0, 1L);
+		table.record(device2, 20.0, 2L);
+		assertEquals(2, table.readings());
+		assertEquals(1, table.withoutReading());
+		assertEquals(10.0, table.min(), 0.0);
+		assertEquals(20.0, table.max(), 0.0);
+		assertEquals(15.0, table.mean(), 0.0);
+
+		// the minimum moves away, so it has to be recomputed
+		table.record(device1, 30.0, 3L);
+		assertEquals(20.0, table.min(), 0.0);
+		assertEquals(30.0, table.max(), 0.0);
+		assertEquals(25.0, table.mean(), 0.0);
+		assertEquals(3L, table.timestamp(device1));
+
+		table.remove("device1");
+		assertEquals(1, table.readings());
+		assertEquals(20.0, table.min(), 0.0);
+		assertEquals(20.0, table.max(), 0.0);
+		assertEquals(20.0, table.temperature(table.indexOf("device2")), 0.0);
+	}
+
+	@Test
+	public void testNonFiniteTemperaturesAreRejected() {
+		DeviceTable table = new DeviceTable();
+		int device1 = table.add("device1");
+		int device2 = table.add("device2");
+		assertTrue(table.record(device1, 20.0, 1L));
+		assertFalse(table.record(device1, Double.NaN, 2L));
+		assertFalse(table.record(device2, Double.NaN, 2L));
+		assertFalse(table.record(device2, Double.POSITIVE_INFINITY, 3L));
+		assertFalse(table.record(device1, Double.NEGATIVE_INFINITY, 3L));
+		// nothing changed, NaN still marks device2 as without reading
+		assertEquals(1, table.readings());
+		assertEquals(1, table.withoutReading());
+		assertFalse(table.hasReading(device2));
+		assertEquals(20.0, table.temperature(device1), 0.0);
+		assertEquals(1L, table.timestamp(device1));
+		assertEquals(20.0, table.mean(), 0.0);
+		assertEquals(20.0, table.min(), 0.0);
+		assertEquals(20.0, table.max(), 0.0);
+	}
+
+	@Test
+	public void testTopAndRange() {
+		DeviceTable table = new DeviceTable();
+		table.record(table.add("device1"), 20.0, 1L);
+		table.record(table.add("device2"), 25.0, 2L);
+		table.record(table.add("device3"), 15.0, 3L);
+		table.add("device4");
+		table.record(table.add("device5"), 20.0, 5L);
+
+		assertArrayEquals(new String[] { "device2", "device5" }, table.deviceIds(table.top(2, true)));
+		assertArrayEquals(new String[] { "device3", "device1", "device5", "device2" }, table.deviceIds(table.top(10, false)));
+		assertArrayEquals(new String[] { "device1", "device5", "device2" }, table.deviceIds(table.between(20.0, 25.0)));
+		assertEquals(0, table.between(30.0, 40.0).length);
+
+		// a reading moves the device, removing it takes it out, device5 moves into its row
+		table.record(table.indexOf("device3"), 30.0, 6L);
+		table.remove("device2");
+		assertArrayEquals(new String[] { "device3", "device5", "device1" }, table.deviceIds(table.top(10, true)));
+		assertArrayEquals(new double[] { 30.0, 20.0 }, table.temperatures(table.top(2, true)), 0.0);
+	}
+
+	@Test
+	public void testIndexMatchesSorting() {
+		DeviceTable table = new DeviceTable(2);
+		Map<String, Double> expected = new HashMap<>();
+		Random random = new Random(7);
+		for (int i = 0; i < 20000; i++) {
+			String deviceId = "device" + random.nextInt(300);
+			if (random.nextInt(4) == 0) {
+				table.remove(deviceId);
+				expected.remove(deviceId);
+			} else {
+				double temperature = random.nextInt(50);
+				table.record(table.add(deviceId), temperature, i);
+				expected.put(deviceId, temperature);
+			}
+			// a few changes move in the index, many rebuild it
+			if (i % 25 == 0 || (i > 10000 && i % 1000 == 0)) {
+				assertSorted(table, expected);
+			}
+		}
+		assertSorted(table, expected);
+	}
+
+	@Test
+	public void testRebuildOrdersCloseAndSignedTemperatures() {
+		DeviceTable table = new DeviceTable(2);
+		Map<String, Double> expected = new HashMap<>();
+		double[] temperatures = { 21.5, Math.nextUp(21.5), Math.nextDown(21.5), -21.5, Math.nextUp(-21.5), 0.0, -0.0,
+				-Double.MAX_VALUE, Double.MAX_VALUE, Double.MIN_VALUE, -Double.MIN_VALUE, 1e-300, -1e300 };
+		for (int i = 0; i < 300; i++) {
+			String deviceId = "device" + (i * 7919 % 300);
+			double temperature = temperatures[i % temperatures.length];
+			table.record(table.add(deviceId), temperature, i);
+			expected.put(deviceId, temperature);
+		}
+		// every row changed, the first query rebuilds the index
+		assertSorted(table, expected);
+	}
+
+	private static void assertSorted(DeviceTable table, Map<String, Double> expected) {
+		List<String> ascending = expected.entrySet().stream()
+				.sorted(Map.Entry.<String, Double>comparingByValue().thenComparing(Map.Entry.comparingByKey()))
+				.map(Map.Entry::getKey).collect(Collectors.toList());
+		assertEquals(ascending, Arrays.asList(table.deviceIds(table.top(Integer.MAX_VALUE, false))));
+		List<String> descending = new ArrayList<>(ascending);
+		Collections.reverse(descending);
+		assertEquals(descending.subList(0, Math.min(5, descending.size())), Arrays.asList(table.deviceIds(table.top(5, true))));
+		List<String> inRange = ascending.stream().filter(d -> expected.get(d) >= 10.0 && expected.get(d) <= 20.0).collect(Collectors.toList());
+		assertEquals(inRange, Arrays.asList(table.deviceIds(table.between(10.0, 20.0))));
+	}
+}
@@ -0,0 +1,110 @@
+package com.akkasamples.iottempmanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+
+public class TestGroupRegistry {
+	private static ActorSystem system;
+
+	@BeforeClass
+	public static void beforeTest() {
+		system = ActorSystem.create("test");
+	}
+
+	@AfterClass
+	public static void teardown() {
+		TestKit.shutdownActorSystem(system);
+		system = null;
+	}
+
+	@Test
+	public void testGroupsArePublishedPerIoTManager() {
+		TestKit probe = new TestKit(system);
+		ActorRef iotManager = system.actorOf(IoTManager.props());
+		ActorRef other = system.actorOf(IoTManager.props());
+		Map<String, ActorRef> groups = GroupRegistry.get(system).groupsOf(iotManager);
+		assertTrue(groups.isEmpty());
+		iotManager.tell(new DeviceManager.RequestRegisterDevice("group", "device1"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		assertEquals(1, groups.size());
+		assertTrue(GroupRegistry.get(system).groupsOf(other).isEmpty());
+
+		// the group answers what the IoTManager would have forwarded to it
+		groups.get("group").tell(new DeviceManager.RecordTemperature(1L, "group", "device1", 21.0, 1L), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceTemperature.class);
+		TraceContext trace = TraceContext.traced();
+		trace.bypassed(TraceContext.DEVICE_GROUP);
+		groups.get("group").tell(new DeviceManager.ReadDeviceTemperature(trace, "group", "device1"), probe.getRef());
+		assertEquals(Double.valueOf(21.0), Double.valueOf(probe.expectMsgClass(DeviceManager.DeviceTemperature.class).temperature));
+		trace.completed();
+		assertTrue(trace.isComplete());
+		assertEquals(0L, trace.queueNanos(TraceContext.IOT_MANAGER) + trace.handleNanos(TraceContext.IOT_MANAGER)
+				+ trace.queueNanos(TraceContext.DEVICE_MANAGER) + trace.handleNanos(TraceContext.DEVICE_MANAGER));
+		assertTrue(trace.queueNanos(TraceContext.DEVICE_GROUP) >= 0);
+	}
+
+	@Test
+	public void testTerminatedGroupsAreRemoved() {
+		TestKit probe = new TestKit(system);
+		ActorRef iotManager = system.actorOf(IoTManager.props());
+		Map<String, ActorRef> groups = GroupRegistry.get(system).groupsOf(iotManager);
+		iotManager.tell(new DeviceManager.RequestRegisterDevice("group1", "device1"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		iotManager.tell(new DeviceManager.RequestRegisterDevice("group2", "device1"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+		ActorRef group1 = groups.get("group1");
+		system.stop(group1);
+		probe.awaitAssert(() -> {
+			assertNull(groups.get("group1"));
+			return null;
+		});
+		assertEquals(1, groups.size());
+
+		// registering again starts a new group and publishes it
+		iotManager.tell(new DeviceManager.RequestRegisterDevice("group1", "device1"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		assertTrue(groups.get("group1") != null && !groups.get("group1").equals(group1));
+
+		system.stop(iotManager);
+		probe.awaitAssert(() -> {
+			assertTrue(groups.isEmpty());
+			return null;
+		});
+	}
+
+	@Test
+	public void testGroupsArePublishedAgainAfterARestart() {
+		TestKit probe = new TestKit(system);
+		ActorRef iotManager = system.actorOf(IoTManager.props());
+		Map<String, ActorRef> groups = GroupRegistry.get(system).groupsOf(iotManager);
+		iotManager.tell(new DeviceManager.RequestRegisterDevice("group", "device1"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		assertEquals(1, groups.size());
+
+		// no shard for a null groupId, the IoTManager fails and is restarted with new shards
+		iotManager.tell(new DeviceManager.RequestRegisterDevice(null, "device1"), probe.getRef());
+		probe.awaitAssert(() -> {
+			assertTrue(groups.isEmpty());
+			return null;
+		});
+
+		// the view taken before the restart sees the groups of the new shards
+		iotManager.tell(new DeviceManager.RequestRegisterDevice("group", "device1"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		assertEquals(1, groups.size());
+		groups.get("group").tell(new DeviceManager.RecordTemperature(1L, "group", "device1", 21.0, 1L), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceTemperature.class);
+	}
+}
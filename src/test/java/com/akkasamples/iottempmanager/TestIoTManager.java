@@ -0,0 +1,79 @@
+package com.akkasamples.iottempmanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+
+public class TestIoTManager {
+	private static ActorSystem system;
+
+	@BeforeClass
+	public static void beforeTest() {
+		system = ActorSystem.create("test", ConfigFactory.parseString("iot.device-manager.shards = 4").withFallback(ConfigFactory.load()));
+	}
+
+	@AfterClass
+	public static void teardown() {
+		TestKit.shutdownActorSystem(system);
+		system = null;
+	}
+
+	@Test
+	public void testShardOf() {
+		Set<Integer> used = new HashSet<>();
+		for (int i = 0; i < 1000; i++) {
+			int shard = IoTManager.shardOf("group" + i, 4);
+			assertTrue(shard >= 0 && shard < 4);
+			assertEquals(shard, IoTManager.shardOf("group" + i, 4));
+			used.add(shard);
+		}
+		assertEquals(4, used.size());
+	}
+
+	@Test
+	public void testRoutesGroupsToTheirShard() {
+		TestKit probe = new TestKit(system);
+		ActorRef iotManager = system.actorOf(IoTManager.props());
+		for (int i = 0; i < 16; i++) {
+			iotManager.tell(new DeviceManager.RequestRegisterDevice("group" + i, "device"), probe.getRef());
+			probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+			iotManager.tell(new DeviceManager.RecordTemperatures(i, "group" + i, new String[] { "device" }, new double[] { i }, new long[] { i }), probe.getRef());
+			assertEquals(1, probe.expectMsgClass(DeviceManager.TemperaturesRecorded.class).accepted);
+		}
+		for (int i = 0; i < 16; i++) {
+			iotManager.tell(new DeviceManager.ReadDeviceTemperature(i, "group" + i, "device"), probe.getRef());
+			DeviceManager.DeviceTemperature temp = probe.expectMsgClass(DeviceManager.DeviceTemperature.class);
+			assertEquals("group" + i, temp.groupId);
+			assertEquals(Double.valueOf(i), Double.valueOf(temp.temperature));
+		}
+	}
+
+	@Test
+	public void testHighThroughputProfile() throws Exception {
+		ActorSystem tuned = ActorSystem.create("tuned", ConfigFactory.load("high-throughput"));
+		try {
+			assertEquals(100, tuned.settings().config().getInt("iot.dispatchers.device-group.throughput"));
+			assertEquals(120, tuned.settings().config().getInt("iot.device.history-size"));
+			TestKit probe = new TestKit(tuned);
+			ActorRef iotManager = tuned.actorOf(IoTManager.props());
+			iotManager.tell(new DeviceManager.RequestRegisterDevice("group", "device"), probe.getRef());
+			probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+			iotManager.tell(new DeviceManager.ReadDeviceGroupTemperature(1L, "group", true), probe.getRef());
+			assertEquals(1, probe.expectMsgClass(DeviceManager.DeviceGroupTemperature.class).readings.size());
+		} finally {
+			TestKit.shutdownActorSystem(tuned);
+		}
+	}
+}
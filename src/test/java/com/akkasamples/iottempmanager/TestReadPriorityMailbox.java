@@ -0,0 +1,73 @@
+package com.akkasamples.iottempmanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.testkit.javadsl.TestKit;
+
+public class TestReadPriorityMailbox {
+	private static ActorSystem system;
+
+	@BeforeClass
+	public static void beforeTest() {
+		String priority = "\"com.akkasamples.iottempmanager.ReadPriorityMailbox\"";
+		system = ActorSystem.create("priority", ConfigFactory.parseString(
+				"iot.mailbox.device-manager.underlying-mailbox-type = " + priority + "\n"
+				+ "iot.mailbox.device-group.underlying-mailbox-type = " + priority + "\n"
+				+ "iot.mailbox.device.underlying-mailbox-type = " + priority).withFallback(ConfigFactory.load()));
+	}
+
+	@AfterClass
+	public static void teardown() {
+		TestKit.shutdownActorSystem(system);
+		system = null;
+	}
+
+	private static long requestId(Envelope envelope) {
+		Object message = envelope.message();
+		return message instanceof Device.ReadTemperature ? ((Device.ReadTemperature) message).requestId : ((Device.RecordTemperature) message).requestId;
+	}
+
+	@Test
+	public void testReadsGoFirstButWritesKeepMoving() {
+		ReadPriorityMailbox.ReadPriorityQueue queue = new ReadPriorityMailbox.ReadPriorityQueue(2);
+		for (int i = 1; i <= 3; i++) {
+			queue.enqueue(null, new Envelope(new Device.RecordTemperature(i, 1.0), ActorRef.noSender()));
+		}
+		for (int i = 11; i <= 15; i++) {
+			queue.enqueue(null, new Envelope(new Device.ReadTemperature(i), ActorRef.noSender()));
+		}
+		assertEquals(8, queue.numberOfMessages());
+		long[] expected = { 11, 12, 1, 13, 14, 2, 15, 3 };
+		for (long id : expected) {
+			assertEquals(id, requestId(queue.dequeue()));
+		}
+		assertNull(queue.dequeue());
+		assertFalse(queue.hasMessages());
+		assertEquals(0, queue.numberOfMessages());
+	}
+
+	@Test
+	public void testIoTManagerWorksOnPriorityMailboxes() {
+		TestKit probe = new TestKit(system);
+		ActorRef iotManager = system.actorOf(IoTManager.props());
+		iotManager.tell(new DeviceManager.RequestRegisterDevice("group", "device1"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		iotManager.tell(new DeviceManager.RecordTemperatures(1L, "group", new String[] { "device1" }, new double[] { 21.0 }, new long[] { 1L }), probe.getRef());
+		assertEquals(1, probe.expectMsgClass(DeviceManager.TemperaturesRecorded.class).accepted);
+		iotManager.tell(new DeviceManager.ReadDeviceTemperature(2L, "group", "device1"), probe.getRef());
+		assertEquals(Double.valueOf(21.0), Double.valueOf(probe.expectMsgClass(DeviceManager.DeviceTemperature.class).temperature));
+		iotManager.tell(new DeviceManager.ReadDeviceGroupTemperature(3L, "group", true), probe.getRef());
+		assertEquals(1, probe.expectMsgClass(DeviceManager.DeviceGroupTemperature.class).readings.size());
+	}
+}
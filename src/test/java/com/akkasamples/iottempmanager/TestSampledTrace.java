@@ -0,0 +1,55 @@
+package com.akkasamples.iottempmanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import akka.actor.ActorSystem;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.testkit.javadsl.TestKit;
+
+public class TestSampledTrace {
+	private static ActorSystem system;
+
+	@BeforeClass
+	public static void beforeTest() {
+		system = ActorSystem.create("test");
+	}
+
+	@AfterClass
+	public static void teardown() {
+		TestKit.shutdownActorSystem(system);
+		system = null;
+	}
+
+	@Test
+	public void testOffAtInfoLevel() {
+		LoggingAdapter log = Logging.getLogger(system, this);
+		SampledTrace trace = new SampledTrace(log, 0);
+		for (int i = 0; i < 100; i++) {
+			assertFalse(trace.isEnabled());
+		}
+	}
+
+	@Test
+	public void testLogsOneInN() {
+		LoggingAdapter log = Logging.getLogger(system, this);
+		SampledTrace trace = new SampledTrace(log, 10);
+		int enabled = 0;
+		int last = -1;
+		for (int i = 0; i < 1000; i++) {
+			if (trace.isEnabled()) {
+				if (last >= 0) {
+					assertEquals(10, i - last);
+				}
+				last = i;
+				enabled++;
+			}
+		}
+		assertEquals(100, enabled);
+	}
+}
@@ -0,0 +1,71 @@
+package com.akkasamples.iottempmanager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.akkasamples.iottempmanager.metrics.IoTMetrics;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+
+public class TestTraceContext {
+	private static ActorSystem system;
+
+	@BeforeClass
+	public static void beforeTest() {
+		system = ActorSystem.create("test");
+	}
+
+	@AfterClass
+	public static void teardown() {
+		TestKit.shutdownActorSystem(system);
+		system = null;
+	}
+
+	@Test
+	public void testUntracedOnlyCarriesRequestId() {
+		TraceContext first = TraceContext.untraced();
+		TraceContext second = TraceContext.untraced();
+		assertNotEquals(first.requestId, second.requestId);
+		first.enqueued(TraceContext.IOT_MANAGER);
+		first.started(TraceContext.IOT_MANAGER);
+		first.replied();
+		first.completed();
+		assertFalse(first.isTraced());
+		assertFalse(first.isComplete());
+	}
+
+	@Test
+	public void testTracedThroughEveryHop() {
+		TestKit probe = new TestKit(system);
+		ActorRef iotManager = system.actorOf(IoTManager.props());
+		iotManager.tell(new DeviceManager.RequestRegisterDevice("group", "device"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+
+		TraceContext trace = TraceContext.traced();
+		trace.enqueued(TraceContext.IOT_MANAGER);
+		iotManager.tell(new DeviceManager.ReadDeviceTemperature(trace, "group", "device"), probe.getRef());
+		DeviceManager.DeviceTemperature reply = probe.expectMsgClass(DeviceManager.DeviceTemperature.class);
+		trace.completed();
+		assertEquals(trace.requestId, reply.requestId);
+		assertTrue(trace.isComplete());
+		for (int hop = TraceContext.IOT_MANAGER; hop <= TraceContext.DEVICE; hop++) {
+			assertTrue(trace.queueNanos(hop) >= 0);
+			assertTrue(trace.handleNanos(hop) >= 0);
+		}
+		assertTrue(trace.replyNanos() >= 0);
+		assertTrue(trace.breakdown().startsWith("id=" + trace.requestId + ", iot-manager;queue="));
+		assertTrue(trace.breakdown().contains(", device;queue="));
+
+		IoTMetrics metrics = IoTMetrics.get(system);
+		trace.recordInto(metrics);
+		assertTrue(metrics.scrape().contains("iot_hop_latency_seconds_count{hop=\"device-group\",phase=\"queue\"} 1.0\n"));
+	}
+}
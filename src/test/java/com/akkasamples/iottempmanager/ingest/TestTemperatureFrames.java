@@ -0,0 +1,104 @@
+package com.akkasamples.iottempmanager.ingest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.akkasamples.iottempmanager.DeviceManager;
+import com.akkasamples.iottempmanager.IoTManager;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.stream.ActorMaterializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.testkit.javadsl.TestKit;
+import akka.util.ByteString;
+
+public class TestTemperatureFrames {
+	private static ActorSystem system;
+
+	@BeforeClass
+	public static void beforeTest() {
+		system = ActorSystem.create("test");
+	}
+
+	@AfterClass
+	public static void teardown() {
+		TestKit.shutdownActorSystem(system);
+		system = null;
+	}
+
+	@Test
+	public void testEncodeDecode() {
+		ByteString frame = TemperatureFrames.encode("group", "gerät", 1539800000000L, -21.5);
+		assertEquals(frame.size() - TemperatureFrames.LENGTH_FIELD_SIZE, frame.iterator().getInt(ByteOrder.BIG_ENDIAN));
+		TemperatureRow row = TemperatureFrames.decode(frame);
+		assertEquals("group", row.groupId);
+		assertEquals("gerät", row.deviceId);
+		assertEquals(-21.5, row.temperature, 0.0);
+		assertEquals(1539800000000L, row.timestamp);
+	}
+
+	@Test
+	public void testDecodeSlicedFrame() {
+		ByteString frames = TemperatureFrames.encode("g", "d1", 1L, 1.0).concat(TemperatureFrames.encode("g", "d2", 2L, 2.0)).compact();
+		int first = TemperatureFrames.encode("g", "d1", 1L, 1.0).size();
+		TemperatureRow row = TemperatureFrames.decode(frames.slice(first, frames.size()));
+		assertEquals("d2", row.deviceId);
+		assertEquals(2L, row.timestamp);
+	}
+
+	@Test
+	public void testInvalidFrames() {
+		ByteString frame = TemperatureFrames.encode("group", "device", 1L, 1.0);
+		assertSame(TemperatureRow.INVALID, TemperatureFrames.decode(frame.take(frame.size() - 1)));
+		assertSame(TemperatureRow.INVALID, TemperatureFrames.decode(frame.concat(ByteString.fromString("x"))));
+		assertSame(TemperatureRow.INVALID, TemperatureFrames.decode(TemperatureFrames.encode("", "device", 1L, 1.0)));
+		assertSame(TemperatureRow.INVALID, TemperatureFrames.decode(TemperatureFrames.encode("group", "device", 1L, Double.NaN)));
+		assertSame(TemperatureRow.INVALID, TemperatureFrames.decode(TemperatureFrames.encode("group", "device", 1L, Double.POSITIVE_INFINITY)));
+		assertSame(TemperatureRow.INVALID, TemperatureFrames.decode(TemperatureFrames.encode("group", "device", 1L, Double.NEGATIVE_INFINITY)));
+		assertSame(TemperatureRow.INVALID, TemperatureFrames.decode(frame.take(5)));
+	}
+
+	@Test
+	public void testFramesAreRecordedAndAcked() throws Exception {
+		TestKit probe = new TestKit(system);
+		ActorRef iotManager = system.actorOf(IoTManager.props());
+		iotManager.tell(new DeviceManager.RequestRegisterDevice("group", "device1"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		// frames split at arbitrary points, as they may arrive from a socket
+		ByteString bytes = TemperatureFrames.encode("group", "device1", 1000L, 21.5)
+				.concat(TemperatureFrames.encode("group", "unknown", 1000L, 1.0))
+				.concat(TemperatureFrames.encode("", "device1", 1000L, 1.0));
+		List<ByteString> chunks = new ArrayList<>();
+		for (int i = 0; i < bytes.size(); i += 7) {
+			chunks.add(bytes.slice(i, Math.min(bytes.size(), i + 7)));
+		}
+		TemperatureIngestion ingestion = new TemperatureIngestion(iotManager);
+		List<ByteString> answer = Source.from(chunks)
+				.via(ingestion.frames(TemperatureFrames.DEFAULT_MAX_FRAME_LENGTH))
+				.runWith(Sink.seq(), ActorMaterializer.create(system))
+				.toCompletableFuture().get(3, TimeUnit.SECONDS);
+		List<IngestResult> acks = Source.from(answer).via(TemperatureFrames.acks())
+				.runWith(Sink.seq(), ActorMaterializer.create(system))
+				.toCompletableFuture().get(3, TimeUnit.SECONDS);
+		IngestResult total = IngestResult.EMPTY;
+		for (IngestResult ack : acks) {
+			total = total.plus(ack);
+		}
+		assertEquals(1, total.accepted);
+		assertEquals(2, total.rejected);
+
+		iotManager.tell(new DeviceManager.ReadDeviceTemperature(1L, "group", "device1"), probe.getRef());
+		assertEquals(Double.valueOf(21.5), Double.valueOf(probe.expectMsgClass(DeviceManager.DeviceTemperature.class).temperature));
+	}
+}
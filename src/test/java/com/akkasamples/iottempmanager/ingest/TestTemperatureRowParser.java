@@ -0,0 +1,69 @@
+package com.akkasamples.iottempmanager.ingest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestTemperatureRowParser {
+
+	@Test
+	public void testParseCsv() {
+		TemperatureRow row = TemperatureRowParser.parse("group, device ,21.5,1539800000000", 7L);
+		assertEquals("group", row.groupId);
+		assertEquals("device", row.deviceId);
+		assertEquals(21.5, row.temperature, 0.0);
+		assertEquals(1539800000000L, row.timestamp);
+	}
+
+	@Test
+	public void testParseCsvWithoutTimestamp() {
+		TemperatureRow row = TemperatureRowParser.parse("group,device,-3\r", 7L);
+		assertEquals(-3.0, row.temperature, 0.0);
+		assertEquals(7L, row.timestamp);
+	}
+
+	@Test
+	public void testParseJson() {
+		TemperatureRow row = TemperatureRowParser.parse("{\"groupId\": \"group\", \"deviceId\": 42, \"temperature\": 21.5, \"timestamp\": 1539800000000}", 7L);
+		assertEquals("group", row.groupId);
+		assertEquals("42", row.deviceId);
+		assertEquals(21.5, row.temperature, 0.0);
+		assertEquals(1539800000000L, row.timestamp);
+	}
+
+	@Test
+	public void testParseJsonWithoutTimestamp() {
+		TemperatureRow row = TemperatureRowParser.parse("{\"temperature\":1e1,\"deviceId\":\"device\",\"groupId\":\"group\",\"unit\":\"C\"}", 7L);
+		assertEquals("device", row.deviceId);
+		assertEquals(10.0, row.temperature, 0.0);
+		assertEquals(7L, row.timestamp);
+	}
+
+	@Test
+	public void testInvalidRows() {
+		assertSame(TemperatureRow.INVALID, TemperatureRowParser.parse("group,device", 7L));
+		assertSame(TemperatureRow.INVALID, TemperatureRowParser.parse("group,device,warm", 7L));
+		assertSame(TemperatureRow.INVALID, TemperatureRowParser.parse(",device,1.0", 7L));
+		assertSame(TemperatureRow.INVALID, TemperatureRowParser.parse("{\"groupId\":\"group\",\"deviceId\":\"device\"}", 7L));
+		assertSame(TemperatureRow.INVALID, TemperatureRowParser.parse("{\"groupId\":\"group\",", 7L));
+		assertSame(TemperatureRow.INVALID, TemperatureRowParser.parse("group,device,NaN", 7L));
+		assertSame(TemperatureRow.INVALID, TemperatureRowParser.parse("group,device,Infinity", 7L));
+		assertSame(TemperatureRow.INVALID, TemperatureRowParser.parse("{\"groupId\":\"group\",\"deviceId\":\"device\",\"temperature\":-Infinity}", 7L));
+		assertFalse(TemperatureRow.INVALID.isValid());
+	}
+
+	@Test
+	public void testSkippedLines() {
+		assertTrue(TemperatureRowParser.isSkipped("   ", false));
+		assertTrue(TemperatureRowParser.isSkipped("groupId,deviceId,temperature,timestamp", true));
+		assertTrue(TemperatureRowParser.isSkipped("groupId,deviceId,temperature\r", true));
+		assertFalse(TemperatureRowParser.isSkipped("group,device,1.0", true));
+		// only a header first line is skipped, groups named like the header column are data
+		assertFalse(TemperatureRowParser.isSkipped("groupId,deviceId,temperature", false));
+		assertFalse(TemperatureRowParser.isSkipped("groupId1,device,1.0", true));
+		assertFalse(TemperatureRowParser.isSkipped("GroupIdX,device,1.0", false));
+	}
+}
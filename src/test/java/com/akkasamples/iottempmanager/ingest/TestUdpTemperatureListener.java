@@ -0,0 +1,127 @@
+package com.akkasamples.iottempmanager.ingest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.akkasamples.iottempmanager.DeviceManager;
+import com.akkasamples.iottempmanager.IoTManager;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import akka.util.ByteString;
+
+public class TestUdpTemperatureListener {
+	private static ActorSystem system;
+
+	@BeforeClass
+	public static void beforeTest() {
+		system = ActorSystem.create("test");
+	}
+
+	@AfterClass
+	public static void teardown() {
+		TestKit.shutdownActorSystem(system);
+		system = null;
+	}
+
+	private static Config settings(String overrides) {
+		return ConfigFactory.parseString(overrides).withFallback(system.settings().config().getConfig("iot.udp-ingestion"));
+	}
+
+	private static UdpTemperatureListener.Stats bound(TestKit probe, ActorRef listener) {
+		return probe.awaitAssert(() -> {
+			listener.tell(new UdpTemperatureListener.GetStats(), probe.getRef());
+			UdpTemperatureListener.Stats stats = probe.expectMsgClass(UdpTemperatureListener.Stats.class);
+			assertNotNull(stats.localAddress);
+			return stats;
+		});
+	}
+
+	private static void send(InetSocketAddress address, ByteString datagram) throws Exception {
+		try (DatagramSocket socket = new DatagramSocket()) {
+			byte[] bytes = datagram.toArray();
+			socket.send(new DatagramPacket(bytes, bytes.length, address));
+		}
+	}
+
+	@Test
+	public void testDatagramsAreRecorded() throws Exception {
+		TestKit probe = new TestKit(system);
+		ActorRef iotManager = system.actorOf(IoTManager.props());
+		iotManager.tell(new DeviceManager.RequestRegisterDevice("group", "device1"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		iotManager.tell(new DeviceManager.RequestRegisterDevice("group", "device2"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		ActorRef listener = system.actorOf(UdpTemperatureListener.props(iotManager, new InetSocketAddress("127.0.0.1", 0)));
+		InetSocketAddress address = bound(probe, listener).localAddress;
+
+		send(address, TemperatureFrames.encode("group", "device1", 1000L, 21.5)
+				.concat(TemperatureFrames.encode("group", "device2", 1000L, 22.5))
+				.concat(TemperatureFrames.encode("group", "unknown", 1000L, 1.0)));
+		// a bad frame and a datagram cut short in its second frame
+		ByteString next = TemperatureFrames.encode("group", "device1", 2000L, 23.5);
+		send(address, TemperatureFrames.encode("", "device1", 1000L, 1.0).concat(next).concat(next.take(10)));
+
+		UdpTemperatureListener.Stats stats = probe.awaitAssert(() -> {
+			listener.tell(new UdpTemperatureListener.GetStats(), probe.getRef());
+			UdpTemperatureListener.Stats s = probe.expectMsgClass(UdpTemperatureListener.Stats.class);
+			assertEquals(3, s.recorded);
+			return s;
+		});
+		assertEquals(2, stats.datagrams);
+		assertEquals(4, stats.readings);
+		assertEquals(2, stats.malformed);
+		assertEquals(1, stats.dropped);
+		assertEquals(0, stats.overflow);
+
+		iotManager.tell(new DeviceManager.ReadDeviceTemperature(1L, "group", "device1"), probe.getRef());
+		assertEquals(Double.valueOf(23.5), Double.valueOf(probe.expectMsgClass(DeviceManager.DeviceTemperature.class).temperature));
+	}
+
+	@Test
+	public void testReadingsBeyondMaxPendingOverflow() throws Exception {
+		TestKit probe = new TestKit(system);
+		ActorRef listener = system.actorOf(UdpTemperatureListener.props(probe.getRef(), new InetSocketAddress("127.0.0.1", 0),
+				settings("max-pending = 2, flush-interval = 1h")));
+		InetSocketAddress address = bound(probe, listener).localAddress;
+
+		send(address, TemperatureFrames.encode("group", "device1", 1000L, 1.0)
+				.concat(TemperatureFrames.encode("group", "device2", 1000L, 2.0))
+				.concat(TemperatureFrames.encode("group", "device3", 1000L, 3.0)));
+
+		UdpTemperatureListener.Stats stats = probe.awaitAssert(() -> {
+			listener.tell(new UdpTemperatureListener.GetStats(), probe.getRef());
+			UdpTemperatureListener.Stats s = probe.expectMsgClass(UdpTemperatureListener.Stats.class);
+			assertEquals(1, s.datagrams);
+			return s;
+		});
+		assertEquals(3, stats.readings);
+		assertEquals(1, stats.overflow);
+		probe.expectNoMsg();
+	}
+
+	@Test
+	public void testOccupiedPortStopsTheListener() throws Exception {
+		TestKit probe = new TestKit(system);
+		try (DatagramSocket occupied = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0))) {
+			InetSocketAddress address = new InetSocketAddress("127.0.0.1", occupied.getLocalPort());
+			ActorRef listener = system.actorOf(UdpTemperatureListener.props(probe.getRef(), address));
+			probe.watch(listener);
+			listener.tell(new UdpTemperatureListener.AwaitBound(), probe.getRef());
+			assertEquals(address, probe.expectMsgClass(UdpTemperatureListener.BindFailed.class).address);
+			// stopped, not restarted into binding the same port again
+			probe.expectTerminated(listener);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package com.akkasamples.iottempmanager.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestTemperatureJournal {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	// Replay that records what it is handed as "register deviceNo groupId deviceId" and "deviceNo timestamp temperature"
+	static class Recorded implements TemperatureJournal.Replay {
+		final List<String> records = new ArrayList<>();
+
+		@Override
+		public void onRegister(int deviceNo, String groupId, String deviceId) {
+			records.add(String.format("register %d %s %s", deviceNo, groupId, deviceId));
+		}
+
+		@Override
+		public void onTemperature(int deviceNo, long timestamp, double temperature) {
+			records.add(String.format("%d %d %s", deviceNo, timestamp, temperature));
+		}
+	}
+
+	@Test
+	public void testReplayAfterReopen() throws IOException {
+		Path directory = folder.getRoot().toPath();
+		try (TemperatureJournal journal = TemperatureJournal.open(directory, 4096, new Recorded())) {
+			assertEquals(0, journal.register("group", "device1"));
+			assertEquals(1, journal.register("group", "device2"));
+			assertEquals(0, journal.register("group", "device1"));
+			journal.append(0, 1000L, 1.5);
+			journal.append(1, 2000L, -2.5);
+		}
+		Recorded replayed = new Recorded();
+		try (TemperatureJournal journal = TemperatureJournal.open(directory, 4096, replayed)) {
+			assertEquals(1, journal.deviceNumber("group", "device2"));
+			assertEquals(-1, journal.deviceNumber("group", "device3"));
+			assertEquals(4, journal.replayedRecords());
+		}
+		assertEquals(4, replayed.records.size());
+		assertEquals("register 0 group device1", replayed.records.get(0));
+		assertEquals("register 1 group device2", replayed.records.get(1));
+		assertEquals("0 1000 1.5", replayed.records.get(2));
+		assertEquals("1 2000 -2.5", replayed.records.get(3));
+	}
+
+	@Test
+	public void testAppendsRollOverToNewSegments() throws IOException {
+		Path directory = folder.getRoot().toPath();
+		try (TemperatureJournal journal = TemperatureJournal.open(directory, 256, new Recorded())) {
+			journal.register("group", "device");
+			for (int i = 0; i < 100; i++) {
+				journal.append(0, i, i);
+			}
+		}
+		assertTrue(folder.getRoot().listFiles().length > 10);
+		Recorded replayed = new Recorded();
+		try (TemperatureJournal journal = TemperatureJournal.open(directory, 256, replayed)) {
+			journal.append(0, 100, 100);
+		}
+		assertEquals(101, replayed.records.size());
+		assertEquals("0 99 99.0", replayed.records.get(100));
+	}
+
+	@Test
+	public void testTornRecordIsDiscarded() throws IOException {
+		Path directory = folder.getRoot().toPath();
+		try (TemperatureJournal journal = TemperatureJournal.open(directory, 4096, new Recorded())) {
+			journal.register("group", "device");
+			journal.append(0, 1000L, 1.0);
+			journal.append(0, 2000L, 2.0);
+		}
+		// break the checksum of the last reading
+		File segment = folder.getRoot().listFiles()[0];
+		int last = TemperatureJournal.registerRecordSize("groupdevice".length()) + TemperatureJournal.TEMPERATURE_RECORD_SIZE;
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			file.seek(last + 24);
+			file.writeInt(42);
+		}
+		Recorded replayed = new Recorded();
+		try (TemperatureJournal journal = TemperatureJournal.open(directory, 4096, replayed)) {
+			journal.append(0, 3000L, 3.0);
+		}
+		assertEquals(2, replayed.records.size());
+		replayed = new Recorded();
+		TemperatureJournal.open(directory, 4096, replayed).close();
+		assertEquals(3, replayed.records.size());
+		assertEquals("0 3000 3.0", replayed.records.get(2));
+	}
+
+	@Test
+	public void testRegisterChecksumCoversTheHeader() {
+		byte[] group = "group".getBytes(StandardCharsets.UTF_8);
+		byte[] device = "device".getBytes(StandardCharsets.UTF_8);
+		int checksum = TemperatureJournal.registerChecksum(1, group, device);
+		// deviceNo differing above its low byte
+		assertNotEquals(checksum, TemperatureJournal.registerChecksum(1 + 256, group, device));
+		assertNotEquals(checksum, TemperatureJournal.registerChecksum(1 + (1 << 24), group, device));
+		// the same bytes split differently between the ids
+		assertNotEquals(checksum, TemperatureJournal.registerChecksum(1, "groupd".getBytes(StandardCharsets.UTF_8), "evice".getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void testReplayStartsFromSnapshot() throws IOException {
+		Path directory = folder.getRoot().toPath();
+		try (TemperatureJournal journal = TemperatureJournal.open(directory, 4096, new Recorded())) {
+			journal.register("group", "device1");
+			journal.register("group", "device2");
+			journal.append(0, 1000L, 1.0);
+			journal.append(0, 2000L, 2.0);
+			JournalSnapshot snapshot = journal.startSnapshot();
+			snapshot.addGroup("group", new int[] { 0, 1 }, new String[] { "device1", "device2" }, new double[] { 2.0, Double.NaN }, new long[] { 2000L, 0L });
+			journal.register("group", "device3");
+			journal.append(2, 3000L, 3.0);
+			snapshot.write();
+			journal.snapshotWritten(snapshot);
+		}
+		assertEquals(2, folder.getRoot().listFiles().length);
+		Recorded replayed = new Recorded();
+		try (TemperatureJournal journal = TemperatureJournal.open(directory, 4096, replayed)) {
+			assertEquals(3, journal.devices());
+			assertEquals(1, journal.deviceNumber("group", "device2"));
+		}
+		assertEquals(5, replayed.records.size());
+		assertEquals("register 0 group device1", replayed.records.get(0));
+		assertEquals("0 2000 2.0", replayed.records.get(1));
+		assertEquals("register 1 group device2", replayed.records.get(2));
+		assertEquals("register 2 group device3", replayed.records.get(3));
+		assertEquals("2 3000 3.0", replayed.records.get(4));
+	}
+}
@@ -0,0 +1,39 @@
+package com.akkasamples.iottempmanager.main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Test;
+
+public class TestIngestionLimiter {
+
+	@Test
+	public void testInFlightSlots() {
+		IngestionLimiter limiter = new IngestionLimiter(2, 0L);
+		assertTrue(limiter.tryAcquire());
+		assertTrue(limiter.tryAcquire());
+		assertFalse(limiter.tryAcquire());
+		assertEquals(2, limiter.inFlight());
+		limiter.release();
+		assertTrue(limiter.tryAcquire());
+		assertTrue(limiter.admit());
+	}
+
+	@Test
+	public void testShedsOnMailboxDepth() {
+		LongAdder groups = new LongAdder();
+		LongAdder managers = new LongAdder();
+		IngestionLimiter limiter = new IngestionLimiter(10, 100L, groups, managers);
+		groups.add(60);
+		assertTrue(limiter.admit());
+		managers.add(40);
+		assertFalse(limiter.admit());
+		assertFalse(limiter.tryAcquire());
+		assertEquals(0, limiter.inFlight());
+		groups.add(-1);
+		assertTrue(limiter.tryAcquire());
+	}
+}
@@ -0,0 +1,148 @@
+package com.akkasamples.iottempmanager.main;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.akkasamples.iottempmanager.DeviceManager;
+import com.akkasamples.iottempmanager.IoTManager;
+import com.typesafe.config.ConfigFactory;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.http.javadsl.Http;
+import akka.http.javadsl.ServerBinding;
+import akka.http.javadsl.model.HttpRequest;
+import akka.http.javadsl.model.HttpResponse;
+import akka.http.javadsl.model.StatusCodes;
+import akka.stream.ActorMaterializer;
+import akka.testkit.javadsl.TestKit;
+
+/**
+ * The write routes against a bound server, with a probe standing in for the IoTManager where
+ * the test has to decide when and whether the write is answered.
+ */
+public class TestIoTHttpApplication {
+	private static ActorSystem system;
+	private static ActorMaterializer materializer;
+
+	@BeforeClass
+	public static void beforeTest() {
+		system = ActorSystem.create("http", ConfigFactory.parseString(
+				"iot.ingestion.max-in-flight = 1\n"
+				+ "iot.ingestion.ack-timeout = 1s\n"
+				+ "iot.ingestion.retry-after = 7s").withFallback(ConfigFactory.load()));
+		materializer = ActorMaterializer.create(system);
+	}
+
+	@AfterClass
+	public static void teardown() {
+		TestKit.shutdownActorSystem(system);
+		system = null;
+	}
+
+	private static String bind(ActorRef iotManager) throws Exception {
+		ServerBinding binding = IoTHttpApplication.bind(system, materializer, iotManager, "127.0.0.1", 0).toCompletableFuture().get(5, TimeUnit.SECONDS);
+		return "http://127.0.0.1:" + binding.localAddress().getPort();
+	}
+
+	private static CompletableFuture<HttpResponse> post(String baseUri, String deviceId) {
+		return post(baseUri, deviceId, "21.5");
+	}
+
+	private static CompletableFuture<HttpResponse> post(String baseUri, String deviceId, String temperature) {
+		return Http.get(system).singleRequest(HttpRequest.POST(baseUri + "/temperature?groupId=group&deviceId=" + deviceId + "&temperature=" + temperature), materializer)
+				.toCompletableFuture();
+	}
+
+	private static String body(HttpResponse response) throws Exception {
+		return response.entity().toStrict(5000, materializer).toCompletableFuture().get(5, TimeUnit.SECONDS).getData().utf8String();
+	}
+
+	@Test
+	public void testWriteIsAnsweredOnceTheGroupAppliedIt() throws Exception {
+		TestKit iotManager = new TestKit(system);
+		String baseUri = bind(iotManager.getRef());
+		CompletableFuture<HttpResponse> response = post(baseUri, "device1");
+		DeviceManager.RecordTemperatures record = iotManager.expectMsgClass(DeviceManager.RecordTemperatures.class);
+		assertEquals("device1", record.deviceIds[0]);
+		assertFalse(response.isDone());
+		iotManager.reply(new DeviceManager.TemperaturesRecorded(record.requestId, "group", 1, 0));
+		HttpResponse recorded = response.get(5, TimeUnit.SECONDS);
+		assertEquals(StatusCodes.OK, recorded.status());
+		assertEquals("Recording completed", body(recorded));
+	}
+
+	@Test
+	public void testUnknownDeviceIsNotFound() throws Exception {
+		TestKit probe = new TestKit(system);
+		ActorRef iotManager = system.actorOf(IoTManager.props());
+		iotManager.tell(new DeviceManager.RequestRegisterDevice("group", "device1"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		String baseUri = bind(iotManager);
+		assertEquals(StatusCodes.OK, post(baseUri, "device1").get(5, TimeUnit.SECONDS).status());
+		HttpResponse unknown = post(baseUri, "unknown").get(5, TimeUnit.SECONDS);
+		assertEquals(StatusCodes.NOT_FOUND, unknown.status());
+		assertEquals("Unknown device group/unknown", body(unknown));
+	}
+
+	@Test
+	public void testGroupReadsOfAnUnknownGroupAreNotFound() throws Exception {
+		String baseUri = bind(system.actorOf(IoTManager.props()));
+		for (String read : new String[] { "stats?groupId=unknown", "top?groupId=unknown", "range?groupId=unknown&min=0&max=100" }) {
+			HttpResponse response = Http.get(system).singleRequest(HttpRequest.GET(baseUri + "/temperature/" + read), materializer)
+					.toCompletableFuture().get(5, TimeUnit.SECONDS);
+			assertEquals(StatusCodes.NOT_FOUND, response.status());
+			assertEquals("Unknown device group unknown", body(response));
+		}
+	}
+
+	@Test
+	public void testFullLimiterIsServiceUnavailable() throws Exception {
+		TestKit iotManager = new TestKit(system);
+		String baseUri = bind(iotManager.getRef());
+		// holds the only in-flight slot until it is answered
+		CompletableFuture<HttpResponse> first = post(baseUri, "device1");
+		DeviceManager.RecordTemperatures record = iotManager.expectMsgClass(DeviceManager.RecordTemperatures.class);
+		HttpResponse shed = post(baseUri, "device2").get(5, TimeUnit.SECONDS);
+		assertEquals(StatusCodes.SERVICE_UNAVAILABLE, shed.status());
+		assertEquals("7", shed.getHeader("Retry-After").get().value());
+		iotManager.reply(new DeviceManager.TemperaturesRecorded(record.requestId, "group", 1, 0));
+		assertEquals(StatusCodes.OK, first.get(5, TimeUnit.SECONDS).status());
+		// the slot is given back
+		post(baseUri, "device2");
+		assertEquals("device2", iotManager.expectMsgClass(DeviceManager.RecordTemperatures.class).deviceIds[0]);
+		iotManager.reply(new DeviceManager.TemperaturesRecorded(record.requestId, "group", 1, 0));
+	}
+
+	@Test
+	public void testNonFiniteTemperatureIsBadRequest() throws Exception {
+		TestKit iotManager = new TestKit(system);
+		String baseUri = bind(iotManager.getRef());
+		for (String temperature : new String[] { "NaN", "Infinity", "-Infinity" }) {
+			HttpResponse rejected = post(baseUri, "device1", temperature).get(5, TimeUnit.SECONDS);
+			assertEquals(StatusCodes.BAD_REQUEST, rejected.status());
+			assertEquals("temperature must be a finite number", body(rejected));
+		}
+		iotManager.expectNoMessage();
+	}
+
+	@Test
+	public void testAckTimeoutIsServiceUnavailable() throws Exception {
+		TestKit iotManager = new TestKit(system);
+		String baseUri = bind(iotManager.getRef());
+		CompletableFuture<HttpResponse> response = post(baseUri, "device1");
+		iotManager.expectMsgClass(DeviceManager.RecordTemperatures.class);
+		// never answered
+		HttpResponse timedOut = response.get(5, TimeUnit.SECONDS);
+		assertEquals(StatusCodes.SERVICE_UNAVAILABLE, timedOut.status());
+		assertTrue(timedOut.getHeader("Retry-After").isPresent());
+	}
+}
@@ -0,0 +1,93 @@
+package com.akkasamples.iottempmanager.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.akkasamples.iottempmanager.Device;
+import com.akkasamples.iottempmanager.DeviceManager;
+import com.akkasamples.iottempmanager.IoTManager;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+
+public class TestIoTMetrics {
+	private static ActorSystem system;
+
+	@BeforeClass
+	public static void beforeTest() {
+		system = ActorSystem.create("test");
+	}
+
+	@AfterClass
+	public static void teardown() {
+		TestKit.shutdownActorSystem(system);
+		system = null;
+	}
+
+	@Test
+	public void testScrapeSummaries() {
+		IoTMetrics metrics = new IoTMetrics(true);
+		Latency latency = metrics.route("temperature", "GET");
+		for (int i = 1; i <= 100; i++) {
+			latency.recordNanos(TimeUnit.MILLISECONDS.toNanos(i));
+		}
+		metrics.messageLatencies(IoTMetrics.DEVICE).record(new Device.ReadTemperature(1L), TimeUnit.MICROSECONDS.toNanos(50));
+		metrics.queryCompleted(true, true);
+		metrics.queryCompleted(false, false);
+		metrics.groupReadings("group\"1").add(3);
+
+		String scrape = metrics.scrape();
+		assertTrue(scrape.contains("# TYPE iot_route_latency_seconds summary\n"));
+		assertTrue(scrape.contains("iot_route_latency_seconds_count{route=\"temperature\",method=\"GET\"} 100.0\n"));
+		assertTrue(scrape.contains("iot_route_latency_seconds{route=\"temperature\",method=\"GET\",quantile=\"0.5\"} 0.05"));
+		assertTrue(scrape.contains("iot_message_latency_seconds_count{tier=\"device\",message=\"Device.ReadTemperature\"} 1.0\n"));
+		assertTrue(scrape.contains("iot_group_queries_total 2.0\n"));
+		assertTrue(scrape.contains("iot_group_query_timeouts_total 1.0\n"));
+		assertTrue(scrape.contains("iot_group_query_partial_total 1.0\n"));
+		assertTrue(scrape.contains("iot_group_readings_total{group=\"group\\\"1\"} 3.0\n"));
+	}
+
+	@Test
+	public void testDisabledSkipsTiming() {
+		IoTMetrics metrics = new IoTMetrics(false);
+		assertNull(metrics.messageLatencies(IoTMetrics.DEVICE));
+		LongAdder readings = metrics.groupReadings("group");
+		readings.increment();
+		assertTrue(metrics.scrape().contains("iot_group_readings_total{group=\"group\"} 1.0\n"));
+		metrics.removeGroup("group", readings);
+		assertTrue(!metrics.scrape().contains("iot_group_readings_total{"));
+	}
+
+	@Test
+	public void testActorsRecordIntoTheExtension() {
+		TestKit probe = new TestKit(system);
+		ActorRef iotManager = system.actorOf(IoTManager.props());
+		iotManager.tell(new DeviceManager.RequestRegisterDevice("metrics", "device1"), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceRegistered.class);
+		iotManager.tell(new DeviceManager.RecordTemperatures(1L, "metrics", new String[] { "device1" }, new double[] { 21.5 }, new long[] { 1L }), probe.getRef());
+		assertEquals(1, probe.expectMsgClass(DeviceManager.TemperaturesRecorded.class).accepted);
+		iotManager.tell(new DeviceManager.ReadDeviceGroupTemperature(2L, "metrics", true), probe.getRef());
+		probe.expectMsgClass(DeviceManager.DeviceGroupTemperature.class);
+
+		// an actor records its message after handling it, that is after the reply went out
+		probe.awaitAssert(() -> {
+			String scrape = IoTMetrics.get(system).scrape();
+			assertTrue(scrape.contains("iot_message_latency_seconds_count{tier=\"iot-manager\",message=\"DeviceManager.RecordTemperatures\"} 1.0\n"));
+			assertTrue(scrape.contains("iot_message_latency_seconds_count{tier=\"device\",message=\"Device.RecordTemperatures\"} 1.0\n"));
+			assertTrue(scrape.contains("iot_group_readings_total{group=\"metrics\"} 1.0\n"));
+			assertTrue(scrape.contains("iot_group_queries_total 1.0\n"));
+			assertTrue(scrape.contains("iot_mailbox_depth{tier=\"device\"} 0.0\n"));
+			assertEquals(0L, IoTMetrics.get(system).mailboxDepth(IoTMetrics.DEVICE_GROUP).sum());
+			return null;
+		});
+	}
+}
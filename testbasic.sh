@@ -11,4 +11,15 @@ curl -X POST "http://localhost:8080/temperature?groupId=1&deviceId=1&temperature
 curl "http://localhost:8080/temperature?groupId=1"
 echo "Temperature for Device 1"
 curl "http://localhost:8080/temperature?groupId=1&deviceId=1"
-echo ""
\ No newline at end of file
+curl "http://localhost:8080/temperature/stats?groupId=1"
+curl "http://localhost:8080/temperature?groupId=1&fresh=true"
+echo ""
+echo "Batch of temperatures"
+printf 'groupId,deviceId,temperature\n1,1,10\n1,2,20\n{"groupId":"1","deviceId":"3","temperature":30}\n' | curl -X POST --data-binary @- "http://localhost:8080/temperature/batch"
+curl "http://localhost:8080/temperature?groupId=1"
+echo ""
+echo "History of a device"
+curl "http://localhost:8080/temperature/history?groupId=1&deviceId=1&stats=true"
+echo ""
+echo "Live feed of group 1 for 3 seconds"
+curl -N --max-time 3 "http://localhost:8080/temperature/stream?groupId=1"